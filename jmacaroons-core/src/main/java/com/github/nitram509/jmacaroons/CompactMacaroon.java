@@ -0,0 +1,357 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import com.github.nitram509.jmacaroons.util.Base64;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import static com.github.nitram509.jmacaroons.CaveatPacket.Type;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.IDENTIFIER_CHARSET;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.V2_FIELD_IDENTIFIER;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.V2_FIELD_LOCATION;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.V2_FIELD_VID;
+import static com.github.nitram509.jmacaroons.util.BinHex.bin2hex;
+
+/**
+ * <p>
+ * A memory saving representation of a {@link Macaroon}, meant for keeping lots of macaroons in a cache.
+ * </p>
+ * All values are kept in a single byte array, together with a small table of their end offsets.
+ * There's no hex signature, no Strings and no {@link CaveatPacket}s until they are asked for,
+ * and none of them are kept afterwards.
+ * <pre>
+ * [flags] [field count] [caveat types ...] [end offsets ...] [location] [identifier] [signature] [caveats ...]
+ * </pre>
+ * Field count and end offsets are 2 bytes wide, or 4 bytes, when the values don't fit into 64K.
+ * The lowest flag bits hold the version, 1 or 2, and a caveat type is its V2 field tag,
+ * i.e. 1 (cl), 2 (cid) or 4 (vid), so the serialized form doesn't depend on the order of the enum constants.
+ * This is an immutable and serializable object.
+ */
+public final class CompactMacaroon implements Serializable {
+
+  private static final long serialVersionUID = 2L;
+
+  private static final int VERSION_1_CODE = 1;
+  private static final int VERSION_2_CODE = 2;
+
+  private static final int FLAG_VERSION_MASK = 0x03;
+  private static final int FLAG_WIDE = 0x04;
+  private static final int FLAG_HAS_LOCATION = 0x08;
+  private static final int FLAGS = FLAG_VERSION_MASK | FLAG_WIDE | FLAG_HAS_LOCATION;
+
+  /* location, identifier and signature come first, the caveats follow */
+  private static final int FIXED_FIELDS = 3;
+  private static final int LOCATION = 0;
+  private static final int IDENTIFIER = 1;
+  private static final int SIGNATURE = 2;
+
+  private final byte[] data;
+
+  private CompactMacaroon(byte[] data) {
+    this.data = data;
+  }
+
+  /**
+   * @param macaroon macaroon
+   * @return a compact copy of the given macaroon
+   */
+  public static CompactMacaroon from(Macaroon macaroon) {
+    assert macaroon != null;
+    CaveatPacket[] caveats = macaroon.caveatPackets != null ? macaroon.caveatPackets : new CaveatPacket[0];
+    int fieldCount = FIXED_FIELDS + caveats.length;
+    byte[][] values = new byte[fieldCount][];
+    values[LOCATION] = macaroon.location != null ? macaroon.location.getBytes(IDENTIFIER_CHARSET) : new byte[0];
+    values[IDENTIFIER] = macaroon.identifier != null ? macaroon.identifier.getBytes(IDENTIFIER_CHARSET) : new byte[0];
+    values[SIGNATURE] = macaroon.signatureBytes;
+    int valuesLength = values[LOCATION].length + values[IDENTIFIER].length + values[SIGNATURE].length;
+    for (int i = 0; i < caveats.length; i++) {
+      values[FIXED_FIELDS + i] = caveats[i].rawValue;
+      valuesLength += caveats[i].rawValue.length;
+    }
+
+    boolean wide = valuesLength > 0xffff || fieldCount > 0xffff;
+    int width = wide ? 4 : 2;
+    int tableEnd = 1 + width + caveats.length + fieldCount * width;
+    byte[] data = new byte[tableEnd + valuesLength];
+
+    int flags = versionCode(macaroon.version);
+    if (wide) flags |= FLAG_WIDE;
+    if (macaroon.location != null) flags |= FLAG_HAS_LOCATION;
+    data[0] = (byte) flags;
+    putInt(data, 1, width, fieldCount);
+    int pos = 1 + width;
+    for (CaveatPacket caveat : caveats) {
+      data[pos++] = (byte) typeCode(caveat.type);
+    }
+    int end = 0;
+    for (byte[] value : values) {
+      System.arraycopy(value, 0, data, tableEnd + end, value.length);
+      end += value.length;
+      putInt(data, pos, width, end);
+      pos += width;
+    }
+    return new CompactMacaroon(data);
+  }
+
+  /**
+   * @return a new {@link Macaroon}, equal to the one this compact macaroon was created from
+   */
+  public Macaroon toMacaroon() {
+    int caveatCount = getCaveatCount();
+    CaveatPacket[] caveats = new CaveatPacket[caveatCount];
+    for (int i = 0; i < caveatCount; i++) {
+      caveats[i] = getCaveatPacket(i);
+    }
+    return new Macaroon(getLocation(), getIdentifier(), getSignatureBytes(), caveats, getVersion());
+  }
+
+  public MacaroonVersion getVersion() {
+    return version(data[0] & FLAG_VERSION_MASK);
+  }
+
+  /**
+   * @return the location, or null if the macaroon has no location
+   */
+  public String getLocation() {
+    return (data[0] & FLAG_HAS_LOCATION) == 0 ? null : text(LOCATION);
+  }
+
+  public String getIdentifier() {
+    return text(IDENTIFIER);
+  }
+
+  /**
+   * @return the signature in hex, same as {@link Macaroon#signature}
+   */
+  public String getSignature() {
+    return bin2hex(getSignatureBytes());
+  }
+
+  /**
+   * @return a copy of the signature bytes
+   */
+  public byte[] getSignatureBytes() {
+    return copy(SIGNATURE);
+  }
+
+  public int getCaveatCount() {
+    return getInt(1) - FIXED_FIELDS;
+  }
+
+  /**
+   * @param index index of the caveat packet, see {@link #getCaveatCount()}
+   * @return type of the caveat packet
+   */
+  public Type getCaveatType(int index) {
+    return type(data[1 + width() + checkCaveatIndex(index)] & 0xff);
+  }
+
+  /**
+   * @param index index of the caveat packet, see {@link #getCaveatCount()}
+   * @return a copy of the caveat packet's raw value
+   */
+  public byte[] getCaveatRawValue(int index) {
+    return copy(FIXED_FIELDS + checkCaveatIndex(index));
+  }
+
+  /**
+   * @param index index of the caveat packet, see {@link #getCaveatCount()}
+   * @return same as {@link CaveatPacket#getValueAsText()}
+   */
+  public String getCaveatValueAsText(int index) {
+    Type type = getCaveatType(index);
+    return type == Type.vid ? Base64.encodeUrlSafeToString(getCaveatRawValue(index)) : text(FIXED_FIELDS + index);
+  }
+
+  /**
+   * @param index index of the caveat packet, see {@link #getCaveatCount()}
+   * @return a new caveat packet, equal to the one of the original macaroon
+   */
+  public CaveatPacket getCaveatPacket(int index) {
+    return new CaveatPacket(getCaveatType(index), getCaveatRawValue(index));
+  }
+
+  /**
+   * @return this macaroon in the {@link MacaroonVersion.SerializationVersion#V1_BINARY} format
+   */
+  public String serialize() {
+    return toMacaroon().serialize();
+  }
+
+  private static int versionCode(MacaroonVersion version) {
+    switch (version) {
+      case VERSION_1:
+        return VERSION_1_CODE;
+      case VERSION_2:
+        return VERSION_2_CODE;
+      default:
+        throw new IllegalArgumentException("Macaroons of version " + version + " can't be compacted.");
+    }
+  }
+
+  private static int typeCode(Type type) {
+    switch (type) {
+      case cl:
+        return V2_FIELD_LOCATION;
+      case cid:
+        return V2_FIELD_IDENTIFIER;
+      case vid:
+        return V2_FIELD_VID;
+      default:
+        throw new IllegalArgumentException("Caveats of type " + type + " can't be compacted.");
+    }
+  }
+
+  /**
+   * @return the version, or null for an unknown code, which {@link #invalidity()} doesn't let pass
+   */
+  private static MacaroonVersion version(int code) {
+    switch (code) {
+      case VERSION_1_CODE:
+        return MacaroonVersion.VERSION_1;
+      case VERSION_2_CODE:
+        return MacaroonVersion.VERSION_2;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * @return the caveat type, or null for an unknown code, which {@link #invalidity()} doesn't let pass
+   */
+  private static Type type(int code) {
+    switch (code) {
+      case V2_FIELD_LOCATION:
+        return Type.cl;
+      case V2_FIELD_IDENTIFIER:
+        return Type.cid;
+      case V2_FIELD_VID:
+        return Type.vid;
+      default:
+        return null;
+    }
+  }
+
+  private String text(int field) {
+    int start = start(field);
+    return new String(data, start, end(field) - start, IDENTIFIER_CHARSET);
+  }
+
+  private byte[] copy(int field) {
+    int start = start(field);
+    return Arrays.copyOfRange(data, start, end(field));
+  }
+
+  private int start(int field) {
+    return field == 0 ? tableEnd() : tableEnd() + getInt(endOffsetPosition(field - 1));
+  }
+
+  private int end(int field) {
+    return tableEnd() + getInt(endOffsetPosition(field));
+  }
+
+  private int endOffsetPosition(int field) {
+    int width = width();
+    return 1 + width + getCaveatCount() + field * width;
+  }
+
+  private int tableEnd() {
+    return endOffsetPosition(getInt(1));
+  }
+
+  private int width() {
+    return (data[0] & FLAG_WIDE) == 0 ? 2 : 4;
+  }
+
+  private int getInt(int pos) {
+    if (width() == 2) {
+      return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+    }
+    return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16) | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+  }
+
+  private static void putInt(byte[] data, int pos, int width, int value) {
+    if (width == 4) {
+      data[pos++] = (byte) (value >>> 24);
+      data[pos++] = (byte) (value >>> 16);
+    }
+    data[pos++] = (byte) (value >>> 8);
+    data[pos] = (byte) value;
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    String invalid = invalidity();
+    if (invalid != null) {
+      throw new InvalidObjectException("Invalid compact macaroon, " + invalid);
+    }
+  }
+
+  /**
+   * @return what's wrong with the data, or null, when flags, offset table and lengths fit together
+   */
+  private String invalidity() {
+    if (data == null || data.length == 0) return "no data.";
+    int flags = data[0] & 0xff;
+    if ((flags & ~FLAGS) != 0 || version(flags & FLAG_VERSION_MASK) == null) return "unknown flags " + flags + ".";
+    int width = width();
+    if (data.length < 1 + width) return "no field count.";
+    int fieldCount = getInt(1);
+    if (fieldCount < FIXED_FIELDS) return "only " + fieldCount + " fields.";
+    long tableEnd = 1L + width + (fieldCount - FIXED_FIELDS) + (long) fieldCount * width;
+    if (tableEnd > data.length) return "the offset table is cut off.";
+    for (int i = 0; i < fieldCount - FIXED_FIELDS; i++) {
+      if (type(data[1 + width + i] & 0xff) == null) return "unknown caveat type " + (data[1 + width + i] & 0xff) + ".";
+    }
+    int previous = 0;
+    for (int field = 0; field < fieldCount; field++) {
+      int end = getInt(endOffsetPosition(field));
+      if (end < previous) return "the end offset of field " + field + " is before its start.";
+      previous = end;
+    }
+    if (tableEnd + previous != data.length) return "the values don't end with the data.";
+    return null;
+  }
+
+  private int checkCaveatIndex(int index) {
+    int caveatCount = getCaveatCount();
+    if (index < 0 || index >= caveatCount) {
+      throw new IndexOutOfBoundsException("Caveat index " + index + " is out of range, there are " + caveatCount + " caveat packets.");
+    }
+    return index;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    CompactMacaroon that = (CompactMacaroon) o;
+
+    return Arrays.equals(data, that.data);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(data);
+  }
+}
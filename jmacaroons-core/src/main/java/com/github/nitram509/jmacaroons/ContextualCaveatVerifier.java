@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+/**
+ * A general caveat verifier, which gets the context of the request, e.g. the current user or operation,
+ * as an argument. So a single, stateless instance can be shared by all requests,
+ * instead of creating a {@link GeneralCaveatVerifier}, which captures the context, for every request.
+ * <pre>{@code
+ * static final ContextualCaveatVerifier<Account> ACCOUNT = (caveat, offset, length, account) -> ...;
+ * // ... for every request
+ * new MacaroonsVerifier(macaroon)
+ *     .satisfyGeneral(ACCOUNT, currentAccount)
+ *     .isValid(secret);
+ * }</pre>
+ *
+ * @param <C> type of the context
+ */
+@FunctionalInterface
+public interface ContextualCaveatVerifier<C> {
+
+    /**
+     * @param caveat  bytes, holding the caveat's raw value, must not be modified
+     * @param offset  start of the caveat
+     * @param length  length of the caveat
+     * @param context the context given to {@link MacaroonsVerifier#satisfyGeneral(ContextualCaveatVerifier, Object)}
+     * @return True, if this caveat is satisfies the applications requirements within the given context. False otherwise.
+     */
+    boolean verifyCaveat(byte[] caveat, int offset, int length, C context);
+}
@@ -35,6 +35,22 @@ class CryptoTools {
   private static final Mac HMACSHA256_PROTOTYPE;
   private static final SecureRandom SECURE_RANDOM;
 
+  /**
+   * Every link of a macaroon's HMAC chain re-keys the MAC with the previous signature,
+   * so one engine per thread is enough. Re-initializing it is cheaper than cloning
+   * a fresh {@link Mac} (or calling 'getInstance()') for every single link.
+   */
+  private static final ThreadLocal<Mac> HMACSHA256_ENGINE = new ThreadLocal<Mac>() {
+    @Override
+    protected Mac initialValue() {
+      try {
+        return createNewHmacInstance();
+      } catch (NoSuchAlgorithmException e) {
+        throw new GeneralSecurityRuntimeException(e);
+      }
+    }
+  };
+
   static {
     try {
       HMACSHA256_PROTOTYPE = Mac.getInstance(HMAC_SHA_256_ALGO);
@@ -53,16 +69,24 @@ class CryptoTools {
   }
 
   static byte[] macaroon_hmac(byte[] key, byte[] message) throws NoSuchAlgorithmException, InvalidKeyException {
-    Mac sha256HMAC = createNewHmacInstance();
-    SecretKeySpec secret_key = new SecretKeySpec(key, HMAC_SHA_256_ALGO);
-    sha256HMAC.init(secret_key);
-    return sha256HMAC.doFinal(message);
+    return macaroon_hmac(key, message, 0, message.length);
+  }
+
+  static byte[] macaroon_hmac(byte[] key, byte[] message, int offset, int length) throws NoSuchAlgorithmException, InvalidKeyException {
+    Mac sha256HMAC = HMACSHA256_ENGINE.get();
+    sha256HMAC.init(new SecretKeySpec(key, HMAC_SHA_256_ALGO));
+    sha256HMAC.update(message, offset, length);
+    return sha256HMAC.doFinal();
   }
 
   static byte[] macaroon_hash2(byte[] key, byte[] message1, byte[] message2) throws NoSuchAlgorithmException, InvalidKeyException {
+    return macaroon_hash2(key, message1, 0, message1.length, message2, 0, message2.length);
+  }
+
+  static byte[] macaroon_hash2(byte[] key, byte[] message1, int offset1, int length1, byte[] message2, int offset2, int length2) throws NoSuchAlgorithmException, InvalidKeyException {
     byte[] tmp = new byte[2 * MACAROON_HASH_BYTES];
-    System.arraycopy(macaroon_hmac(key, message1), 0, tmp, 0, MACAROON_HASH_BYTES);
-    System.arraycopy(macaroon_hmac(key, message2), 0, tmp, MACAROON_HASH_BYTES, MACAROON_HASH_BYTES);
+    System.arraycopy(macaroon_hmac(key, message1, offset1, length1), 0, tmp, 0, MACAROON_HASH_BYTES);
+    System.arraycopy(macaroon_hmac(key, message2, offset2, length2), 0, tmp, MACAROON_HASH_BYTES, MACAROON_HASH_BYTES);
     return macaroon_hmac(key, tmp);
   }
 
@@ -135,13 +159,25 @@ class CryptoTools {
    * @return true if both have same length and content
    */
   static boolean safeEquals(byte[] a, byte[] b) {
-    if (a.length != b.length) {
+    return safeEquals(a, b, 0, b.length);
+  }
+
+  /**
+   * Constant time comparison of an array with a slice of another array, see {@link #safeEquals(byte[], byte[])}
+   * @param a an array
+   * @param b an array, holding the slice
+   * @param offset start of the slice
+   * @param length length of the slice
+   * @return true if both have same length and content
+   */
+  static boolean safeEquals(byte[] a, byte[] b, int offset, int length) {
+    if (a.length != length) {
       return false;
     }
 
     int result = 0;
-    for (int i = 0; i < a.length; i++) {
-      result |= a[i] ^ b[i];
+    for (int i = 0; i < length; i++) {
+      result |= a[i] ^ b[offset + i];
     }
     return result == 0;
   }
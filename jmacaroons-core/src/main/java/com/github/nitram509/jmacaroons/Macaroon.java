@@ -16,8 +16,13 @@
 
 package com.github.nitram509.jmacaroons;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import static com.github.nitram509.jmacaroons.CaveatPacket.Type;
 import static com.github.nitram509.jmacaroons.MacaroonsConstants.KEY_VALUE_SEPARATOR;
@@ -29,6 +34,7 @@ import static com.github.nitram509.jmacaroons.util.BinHex.bin2hex;
  * Macaroons: Cookies with Contextual Caveats for Decentralized Authorization in the Cloud
  * </p>
  * This is an immutable and serializable object.
+ * Its serialized forms are computed once and kept as long as memory permits.
  * Use {@link com.github.nitram509.jmacaroons.MacaroonsBuilder} to modify it.
  * Use {@link com.github.nitram509.jmacaroons.MacaroonsVerifier} to verify it.
  *
@@ -44,6 +50,9 @@ public class Macaroon implements Serializable {
 
   final byte[] signatureBytes;
 
+  /* serialized forms by SerializationVersion ordinal, softly referenced, so the GC may drop them */
+  private transient volatile AtomicReferenceArray<SoftReference<String>> serialized;
+
   Macaroon(String location, String identifier, byte[] signature, MacaroonVersion version) {
     this(location, identifier, signature, new CaveatPacket[0], version);
   }
@@ -83,11 +92,63 @@ public class Macaroon implements Serializable {
    * @return - Base64 encoded {@link String} representation of the given
    */
   public String serialize() {
-    return MacaroonsSerializer.serialize(this, MacaroonVersion.SerializationVersion.V1_BINARY);
+    return serialize(MacaroonVersion.SerializationVersion.V1_BINARY);
   }
 
+  /**
+   * The result is computed once per version and reused by later calls, until memory runs low.
+   * A macaroon de-serialized from its canonical binary form returns that very string.
+   *
+   * @param version serialization format
+   * @return the serialized macaroon
+   */
   public String serialize(MacaroonVersion.SerializationVersion version) {
-    return MacaroonsSerializer.serialize(this, version);
+    AtomicReferenceArray<SoftReference<String>> forms = serializedForms();
+    SoftReference<String> ref = forms.get(version.ordinal());
+    String result = ref != null ? ref.get() : null;
+    if (result == null) {
+      result = MacaroonsSerializer.serialize(this, version);
+      forms.set(version.ordinal(), new SoftReference<>(result));
+    }
+    return result;
+  }
+
+  /**
+   * Remembers a serialized form, which must be identical to what {@link MacaroonsSerializer} would return.
+   */
+  void cacheSerialized(MacaroonVersion.SerializationVersion version, String serializedForm) {
+    serializedForms().set(version.ordinal(), new SoftReference<>(serializedForm));
+  }
+
+  /* racing threads may create two arrays, one of them wins, the other's entries are just computed again */
+  private AtomicReferenceArray<SoftReference<String>> serializedForms() {
+    AtomicReferenceArray<SoftReference<String>> forms = serialized;
+    if (forms == null) {
+      forms = new AtomicReferenceArray<>(MacaroonVersion.SerializationVersion.values().length);
+      serialized = forms;
+    }
+    return forms;
+  }
+
+  /**
+   * @param version serialization format
+   * @param out     the stream, the serialized macaroon is written to
+   * @throws IOException when writing to the stream fails
+   * @see MacaroonsSerializer#serialize(Macaroon, MacaroonVersion.SerializationVersion, OutputStream)
+   */
+  public void serialize(MacaroonVersion.SerializationVersion version, OutputStream out) throws IOException {
+    MacaroonsSerializer.serialize(this, version, out);
+  }
+
+  /**
+   * @param version serialization format
+   * @param out     the buffer, the serialized macaroon is written to
+   * @return number of bytes written
+   * @throws java.nio.BufferOverflowException when there's not enough room left in the buffer
+   * @see MacaroonsSerializer#serialize(Macaroon, MacaroonVersion.SerializationVersion, ByteBuffer)
+   */
+  public int serialize(MacaroonVersion.SerializationVersion version, ByteBuffer out) {
+    return MacaroonsSerializer.serialize(this, version, out);
   }
 
   @Override
@@ -11,6 +11,10 @@ import java.util.List;
 
 import static com.github.nitram509.jmacaroons.MacaroonsConstants.RAW_BYTE_CHARSET;
 
+/**
+ * @deprecated V2 JSON isn't mapped through this bean anymore, macaroons are read and written by a streaming codec.
+ */
+@Deprecated
 @JsonInclude(JsonInclude.Include.NON_EMPTY)
 // The ordering is so that we can compare at least a part of the base64 encoding
 @JsonPropertyOrder({"v", "l", "i", "i64", "c", "s", "s64"})
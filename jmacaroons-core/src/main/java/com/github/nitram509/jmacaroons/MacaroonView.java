@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import java.nio.ByteBuffer;
+
+import static com.github.nitram509.jmacaroons.CaveatPacket.Type;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.IDENTIFIER_CHARSET;
+import static com.github.nitram509.jmacaroons.MacaroonsDeSerializer.PacketScanner;
+import static com.github.nitram509.jmacaroons.util.BinHex.bin2hex;
+
+/**
+ * <p>
+ * A read-only view of a serialized macaroon, which doesn't copy its data.
+ * </p>
+ * The view only remembers where location, identifier, signature and caveats are found within
+ * the packets of a {@link MacaroonVersion.SerializationVersion#V1_BINARY} or {@link MacaroonVersion.SerializationVersion#V2_BINARY} macaroon.
+ * Strings and {@link CaveatPacket}s are created on access, every time they are asked for.
+ * Thus, the underlying buffer must not be modified, while the view is in use.
+ * <pre>{@code
+ * MacaroonView view = MacaroonView.of(serialized);
+ * String identifier = view.getIdentifier();
+ * boolean valid = new MacaroonsVerifier(view)
+ *    .satisfyExact("account = 3735928559")
+ *    .isValid(secret);
+ * }</pre>
+ */
+public class MacaroonView {
+
+  private static final Type[] TYPES = Type.values();
+
+  final byte[] buffer;
+  final int offset;
+  final int length;
+  private MacaroonVersion version;
+
+  int locationOffset = -1;
+  int locationLength;
+  int identifierOffset = -1;
+  int identifierLength;
+  int signatureOffset = -1;
+  int signatureLength;
+
+  /* three ints per caveat: type ordinal, value offset, value length */
+  private int[] caveats = new int[3 * 4];
+  private int caveatCount;
+
+  private MacaroonView(byte[] buffer, int offset, int length) {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+    indexPackets();
+  }
+
+  /**
+   * @param serializedMacaroon serializedMacaroon in the {@link MacaroonVersion.SerializationVersion#V1_BINARY} or {@link MacaroonVersion.SerializationVersion#V2_BINARY} format
+   * @return a view of the given macaroon
+   * @throws com.github.nitram509.jmacaroons.NotDeSerializableException when serialized macaroon is not valid base64, length is to short or contains invalid packet data
+   */
+  public static MacaroonView of(String serializedMacaroon) throws NotDeSerializableException {
+    byte[] packets = MacaroonsDeSerializer.decodeBinaryPackets(serializedMacaroon);
+    if (packets == null) {
+      throw new NotDeSerializableException("Views are only available for macaroons in a binary format.");
+    }
+    return new MacaroonView(packets, 0, packets.length);
+  }
+
+  /**
+   * @param packets the Base64 decoded packets of a {@link MacaroonVersion.SerializationVersion#V1_BINARY} or {@link MacaroonVersion.SerializationVersion#V2_BINARY} macaroon
+   * @param offset  start of the packets
+   * @param length  length of the packets
+   * @return a view of the given macaroon
+   * @throws com.github.nitram509.jmacaroons.NotDeSerializableException when the packets are truncated or the signature is missing
+   */
+  public static MacaroonView of(byte[] packets, int offset, int length) throws NotDeSerializableException {
+    assert packets != null;
+    return new MacaroonView(packets, offset, length);
+  }
+
+  private void indexPackets() {
+    PacketScanner reader = MacaroonsDeSerializer.packetScanner(buffer, offset, length);
+    version = reader.version();
+    while (reader.nextPacket()) {
+      Type type = reader.packetType;
+      if (type == null) continue;
+      switch (type) {
+        case location:
+          locationOffset = reader.valueOffset;
+          locationLength = reader.valueLength;
+          break;
+        case identifier:
+          identifierOffset = reader.valueOffset;
+          identifierLength = reader.valueLength;
+          break;
+        case signature:
+          signatureOffset = reader.valueOffset;
+          signatureLength = reader.valueLength;
+          break;
+        default:
+          addCaveat(type, reader.valueOffset, reader.valueLength);
+      }
+    }
+    if (identifierOffset < 0 || signatureOffset < 0) {
+      throw new NotDeSerializableException("Couldn't deserialize macaroon. The " + (identifierOffset < 0 ? Type.identifier : Type.signature) + " packet is missing.");
+    }
+  }
+
+  private void addCaveat(Type type, int valueOffset, int valueLength) {
+    int i = 3 * caveatCount;
+    if (i == caveats.length) {
+      int[] tmp = new int[2 * caveats.length];
+      System.arraycopy(caveats, 0, tmp, 0, caveats.length);
+      caveats = tmp;
+    }
+    caveats[i] = type.ordinal();
+    caveats[i + 1] = valueOffset;
+    caveats[i + 2] = valueLength;
+    caveatCount++;
+  }
+
+  /**
+   * @return {@link MacaroonVersion#VERSION_2} for the V2 binary format, otherwise {@link MacaroonVersion#VERSION_1}
+   */
+  public MacaroonVersion getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the location, or null if the macaroon has no location
+   */
+  public String getLocation() {
+    return locationOffset < 0 ? null : new String(buffer, locationOffset, locationLength, IDENTIFIER_CHARSET);
+  }
+
+  /**
+   * @return a read-only slice of the location bytes, or null if the macaroon has no location
+   */
+  public ByteBuffer getLocationBytes() {
+    return locationOffset < 0 ? null : slice(locationOffset, locationLength);
+  }
+
+  public String getIdentifier() {
+    return new String(buffer, identifierOffset, identifierLength, IDENTIFIER_CHARSET);
+  }
+
+  /**
+   * @return a read-only slice of the identifier bytes
+   */
+  public ByteBuffer getIdentifierBytes() {
+    return slice(identifierOffset, identifierLength);
+  }
+
+  /**
+   * @return the signature in hex, same as {@link Macaroon#signature}
+   */
+  public String getSignature() {
+    return bin2hex(getSignatureBytes());
+  }
+
+  /**
+   * @return a copy of the signature bytes
+   */
+  public byte[] getSignatureBytes() {
+    byte[] signature = new byte[signatureLength];
+    System.arraycopy(buffer, signatureOffset, signature, 0, signatureLength);
+    return signature;
+  }
+
+  public int getCaveatCount() {
+    return caveatCount;
+  }
+
+  /**
+   * @param index index of the caveat packet, see {@link #getCaveatCount()}
+   * @return type of the caveat packet
+   */
+  public Type getCaveatType(int index) {
+    return TYPES[caveats[3 * checkCaveatIndex(index)]];
+  }
+
+  /**
+   * @param index index of the caveat packet, see {@link #getCaveatCount()}
+   * @return a read-only slice of the caveat packet's raw value
+   */
+  public ByteBuffer getCaveatBytes(int index) {
+    int i = 3 * checkCaveatIndex(index);
+    return slice(caveats[i + 1], caveats[i + 2]);
+  }
+
+  int getCaveatOffset(int index) {
+    return caveats[3 * checkCaveatIndex(index) + 1];
+  }
+
+  int getCaveatLength(int index) {
+    return caveats[3 * checkCaveatIndex(index) + 2];
+  }
+
+  /**
+   * @param index index of the caveat packet, see {@link #getCaveatCount()}
+   * @return a new caveat packet, equal to the one {@link MacaroonsBuilder#deserialize(String)} creates
+   */
+  public CaveatPacket getCaveatPacket(int index) {
+    int i = 3 * checkCaveatIndex(index);
+    Type type = TYPES[caveats[i]];
+    if (type == Type.vid) {
+      byte[] raw = new byte[caveats[i + 2]];
+      System.arraycopy(buffer, caveats[i + 1], raw, 0, raw.length);
+      return new CaveatPacket(type, raw);
+    }
+    return new CaveatPacket(type, new String(buffer, caveats[i + 1], caveats[i + 2], IDENTIFIER_CHARSET));
+  }
+
+  /**
+   * @return a new {@link Macaroon}, equal to the one {@link MacaroonsBuilder#deserialize(String)} creates
+   */
+  public Macaroon toMacaroon() {
+    CaveatPacket[] caveatPackets = new CaveatPacket[caveatCount];
+    for (int i = 0; i < caveatCount; i++) {
+      caveatPackets[i] = getCaveatPacket(i);
+    }
+    return new Macaroon(getLocation(), getIdentifier(), getSignatureBytes(), caveatPackets, version);
+  }
+
+  private int checkCaveatIndex(int index) {
+    if (index < 0 || index >= caveatCount) {
+      throw new IndexOutOfBoundsException("Caveat index " + index + " is out of range, there are " + caveatCount + " caveat packets.");
+    }
+    return index;
+  }
+
+  private ByteBuffer slice(int sliceOffset, int sliceLength) {
+    return ByteBuffer.wrap(buffer, sliceOffset, sliceLength).slice().asReadOnlyBuffer();
+  }
+}
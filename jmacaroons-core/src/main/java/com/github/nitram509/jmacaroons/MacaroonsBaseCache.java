@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import com.github.nitram509.jmacaroons.util.Base64;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.github.nitram509.jmacaroons.CaveatPacket.Type;
+import static com.github.nitram509.jmacaroons.CryptoTools.generate_derived_key;
+import static com.github.nitram509.jmacaroons.CryptoTools.macaroon_hmac;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.RAW_BYTE_CHARSET;
+
+/**
+ * <p>
+ * Remembers recently issued base macaroons, so {@link MacaroonsDelta}s of them can be rebuilt and verified.
+ * </p>
+ * A base, which only has first party caveats, is verified by hashing the caveats of the delta only.
+ * Its own caveats still have to be satisfied, but their HMAC chain is taken from the base's signature.
+ * Bases with third party caveats are verified as usual.
+ * Only register macaroons, which were issued or verified by this server, since their signatures are trusted.
+ * <pre>{@code
+ * MacaroonsBaseCache bases = new MacaroonsBaseCache(10000);
+ * bases.register(base, secret);
+ * // ... later, for every request
+ * bases.verifier(delta)
+ *     .satisfyExact("account = 3735928559")
+ *     .assertIsValid(secret);
+ * }</pre>
+ * The least recently used bases are dropped, when there are more than the given maximum.
+ * This class is thread safe.
+ */
+public class MacaroonsBaseCache {
+
+  private final Map<ByteBuffer, Base> bases;
+
+  /**
+   * @param maxSize maximum number of bases to keep
+   */
+  public MacaroonsBaseCache(final int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive, but was " + maxSize);
+    }
+    this.bases = new LinkedHashMap<ByteBuffer, Base>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Base> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @param base   base macaroon, issued by this server
+   * @param secret the secret, the base was created with
+   * @throws com.github.nitram509.jmacaroons.GeneralSecurityRuntimeException when the runtime doesn't provide sufficient crypto support
+   */
+  public void register(Macaroon base, String secret) throws GeneralSecurityRuntimeException {
+    try {
+      register(base, generate_derived_key(secret));
+    } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+      throw new GeneralSecurityRuntimeException(e);
+    }
+  }
+
+  /**
+   * @param base   base macaroon, issued by this server
+   * @param secret the secret, the base was created with, used as it is
+   * @throws com.github.nitram509.jmacaroons.GeneralSecurityRuntimeException when the runtime doesn't provide sufficient crypto support
+   */
+  public void register(Macaroon base, byte[] secret) throws GeneralSecurityRuntimeException {
+    assert base != null;
+    byte[] identifierSignature = null;
+    if (hasFirstPartyCaveatsOnly(base)) {
+      try {
+        // same as the first step of MacaroonsVerifier, which tells whether the right secret is used
+        identifierSignature = macaroon_hmac(secret, base.identifier.getBytes(RAW_BYTE_CHARSET));
+      } catch (InvalidKeyException | NoSuchAlgorithmException e) {
+        throw new GeneralSecurityRuntimeException(e);
+      }
+    }
+    Base entry = new Base(base, identifierSignature);
+    ByteBuffer fingerprint = ByteBuffer.wrap(MacaroonsDelta.fingerprint(base));
+    synchronized (bases) {
+      bases.put(fingerprint, entry);
+    }
+  }
+
+  /**
+   * @param delta binary data, as created by {@link MacaroonsDelta#serialize(Macaroon, Macaroon)}
+   * @return the attenuated macaroon
+   * @throws NotDeSerializableException when the delta is malformed or its base is unknown
+   */
+  public Macaroon deserialize(byte[] delta, int offset, int length) throws NotDeSerializableException {
+    return MacaroonsDelta.deserialize(lookup(delta, offset, length).macaroon, delta, offset, length);
+  }
+
+  /**
+   * @param delta Base64 encoded delta, as created by {@link MacaroonsDelta#serializeToString(Macaroon, Macaroon)}
+   * @return the attenuated macaroon
+   * @throws NotDeSerializableException when the delta is malformed or its base is unknown
+   */
+  public Macaroon deserialize(String delta) throws NotDeSerializableException {
+    byte[] bytes = decodeBase64(delta);
+    return deserialize(bytes, 0, bytes.length);
+  }
+
+  /**
+   * @param delta binary data, as created by {@link MacaroonsDelta#serialize(Macaroon, Macaroon)}
+   * @return a verifier of the attenuated macaroon
+   * @throws NotDeSerializableException when the delta is malformed or its base is unknown
+   */
+  public MacaroonsVerifier verifier(byte[] delta, int offset, int length) throws NotDeSerializableException {
+    Base base = lookup(delta, offset, length);
+    Macaroon macaroon = MacaroonsDelta.deserialize(base.macaroon, delta, offset, length);
+    if (base.identifierSignature == null) {
+      return new MacaroonsVerifier(macaroon);
+    }
+    return new MacaroonsVerifier(macaroon, base.macaroon, base.identifierSignature);
+  }
+
+  /**
+   * @param delta Base64 encoded delta, as created by {@link MacaroonsDelta#serializeToString(Macaroon, Macaroon)}
+   * @return a verifier of the attenuated macaroon
+   * @throws NotDeSerializableException when the delta is malformed or its base is unknown
+   */
+  public MacaroonsVerifier verifier(String delta) throws NotDeSerializableException {
+    byte[] bytes = decodeBase64(delta);
+    return verifier(bytes, 0, bytes.length);
+  }
+
+  /**
+   * @return number of bases
+   */
+  public int size() {
+    synchronized (bases) {
+      return bases.size();
+    }
+  }
+
+  private Base lookup(byte[] delta, int offset, int length) {
+    ByteBuffer fingerprint = MacaroonsDelta.fingerprintOf(delta, offset, length);
+    Base base;
+    synchronized (bases) {
+      base = bases.get(fingerprint);
+    }
+    if (base == null) {
+      throw new NotDeSerializableException("Couldn't deserialize delta. Its base macaroon is unknown.");
+    }
+    return base;
+  }
+
+  private static boolean hasFirstPartyCaveatsOnly(Macaroon macaroon) {
+    if (macaroon.caveatPackets == null) return true;
+    for (CaveatPacket caveat : macaroon.caveatPackets) {
+      if (caveat.type != Type.cid) return false;
+    }
+    return true;
+  }
+
+  private static byte[] decodeBase64(String delta) {
+    if (delta == null || delta.isEmpty()) {
+      throw new NotDeSerializableException("Couldn't deserialize delta. It's empty.");
+    }
+    try {
+      return Base64.decode(delta, 0, delta.length());
+    } catch (IllegalArgumentException e) {
+      throw new NotDeSerializableException("Couldn't deserialize delta. " + e.getMessage(), e);
+    }
+  }
+
+  private static class Base {
+    final Macaroon macaroon;
+    /* HMAC of the identifier, null when the base has third party caveats */
+    final byte[] identifierSignature;
+
+    Base(Macaroon macaroon, byte[] identifierSignature) {
+      this.macaroon = macaroon;
+      this.identifierSignature = identifierSignature;
+    }
+  }
+}
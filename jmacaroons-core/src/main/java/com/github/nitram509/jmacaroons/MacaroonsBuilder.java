@@ -18,6 +18,7 @@ package com.github.nitram509.jmacaroons;
 
 import com.github.nitram509.jmacaroons.util.ArrayTools;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
@@ -196,6 +197,37 @@ public class MacaroonsBuilder {
         return MacaroonsDeSerializer.deserialize(serializedMacaroon);
     }
 
+    /**
+     * @param serializedMacaroon ASCII/UTF-8 bytes of a serialized macaroon, e.g. taken from a request buffer
+     * @param offset             start of the serialized macaroon
+     * @param length             length of the serialized macaroon
+     * @return {@link List} of {@link com.github.nitram509.jmacaroons.Macaroon}
+     * @throws com.github.nitram509.jmacaroons.NotDeSerializableException when serialized macaroon is not valid base64, length is to short or contains invalid packet data
+     */
+    public static List<Macaroon> deserialize(byte[] serializedMacaroon, int offset, int length) throws IllegalArgumentException {
+        return MacaroonsDeSerializer.deserialize(serializedMacaroon, offset, length);
+    }
+
+    /**
+     * @param serializedMacaroon ASCII/UTF-8 bytes of a serialized macaroon, between position and limit; the position isn't changed
+     * @return {@link List} of {@link com.github.nitram509.jmacaroons.Macaroon}
+     * @throws com.github.nitram509.jmacaroons.NotDeSerializableException when serialized macaroon is not valid base64, length is to short or contains invalid packet data
+     */
+    public static List<Macaroon> deserialize(ByteBuffer serializedMacaroon) throws IllegalArgumentException {
+        return MacaroonsDeSerializer.deserialize(serializedMacaroon);
+    }
+
+    /**
+     * @param serializedMacaroon chars of a serialized macaroon, e.g. a header value
+     * @param offset             start of the serialized macaroon
+     * @param length             length of the serialized macaroon
+     * @return {@link List} of {@link com.github.nitram509.jmacaroons.Macaroon}
+     * @throws com.github.nitram509.jmacaroons.NotDeSerializableException when serialized macaroon is not valid base64, length is to short or contains invalid packet data
+     */
+    public static List<Macaroon> deserialize(CharSequence serializedMacaroon, int offset, int length) throws IllegalArgumentException {
+        return MacaroonsDeSerializer.deserialize(serializedMacaroon, offset, length);
+    }
+
     /**
      * @return a {@link com.github.nitram509.jmacaroons.Macaroon}
      */
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import com.github.nitram509.jmacaroons.util.Base64;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.nitram509.jmacaroons.CaveatPacket.Type;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.IDENTIFIER_CHARSET;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.V2_FIELD_IDENTIFIER;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.V2_FIELD_LOCATION;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.V2_FIELD_VID;
+
+/**
+ * <p>
+ * A root macaroon and its bound discharge macaroons in one compact binary buffer, as sent along with every request.
+ * </p>
+ * Every value is written once, repeated values refer back to their first occurrence.
+ * So a discharge's identifier costs a single byte, since it's the root's third party caveat identifier,
+ * and so does its location, which is the caveat's location.
+ * <pre>
+ * bundle   = BUNDLE_VERSION count macaroon*
+ * macaroon = version location identifier caveats (type value)* signature-length signature
+ * value    = 0 (null) | 2 * (length + 1) bytes (new value) | 2 * index + 1 (earlier value)
+ * </pre>
+ * Counts, lengths and indexes are unsigned varints, version and type are single bytes.
+ * The version is 1 or 2, the caveat type is its V2 field tag, i.e. 1 (cl), 2 (cid) or 4 (vid).
+ * The first macaroon is the root, the following ones are its discharges.
+ * <pre>{@code
+ * String bundle = MacaroonsBundle.serializeToString(root, discharges);
+ * // ... on the server
+ * boolean valid = MacaroonsBundle.verifier(bundle)
+ *     .satisfyExact("account = 3735928559")
+ *     .isValid(secret);
+ * }</pre>
+ */
+public final class MacaroonsBundle {
+
+  static final byte BUNDLE_VERSION = 1;
+
+  private static final byte VERSION_1_CODE = 1;
+  private static final byte VERSION_2_CODE = 2;
+
+  private MacaroonsBundle() {
+  }
+
+  /**
+   * @param root       the authorizing macaroon
+   * @param discharges discharge macaroons, already bound to the root
+   * @return the bundle as binary data
+   */
+  public static byte[] serialize(Macaroon root, List<Macaroon> discharges) {
+    assert root != null;
+    assert discharges != null;
+    Writer writer = new Writer();
+    writer.buffer[writer.pos++] = BUNDLE_VERSION;
+    writer.writeVarint(1 + discharges.size());
+    writer.writeMacaroon(root);
+    for (Macaroon discharge : discharges) {
+      writer.writeMacaroon(discharge);
+    }
+    return Arrays.copyOf(writer.buffer, writer.pos);
+  }
+
+  /**
+   * @param root       the authorizing macaroon
+   * @param discharges discharge macaroons, already bound to the root
+   * @return the bundle, URL safe Base64 encoded
+   */
+  public static String serializeToString(Macaroon root, List<Macaroon> discharges) {
+    return Base64.encodeUrlSafeToString(serialize(root, discharges));
+  }
+
+  /**
+   * @param bundle binary data, as created by {@link #serialize(Macaroon, List)}
+   * @return the root macaroon first, followed by its discharges
+   * @throws NotDeSerializableException when the bundle is malformed
+   */
+  public static List<Macaroon> deserialize(byte[] bundle, int offset, int length) throws NotDeSerializableException {
+    final List<Macaroon> macaroons = new ArrayList<>();
+    read(bundle, offset, length, new Handler() {
+      @Override
+      void root(Macaroon root) {
+        macaroons.add(root);
+      }
+
+      @Override
+      void discharge(Macaroon discharge) {
+        macaroons.add(discharge);
+      }
+    });
+    return macaroons;
+  }
+
+  /**
+   * @param bundle Base64 encoded bundle, as created by {@link #serializeToString(Macaroon, List)}
+   * @return the root macaroon first, followed by its discharges
+   * @throws NotDeSerializableException when the bundle is malformed
+   */
+  public static List<Macaroon> deserialize(String bundle) throws NotDeSerializableException {
+    byte[] bytes = decodeBase64(bundle);
+    return deserialize(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Reads the bundle in a single pass, each discharge is handed to {@link MacaroonsVerifier#satisfy3rdParty(Macaroon)},
+   * as soon as it's read.
+   *
+   * @param bundle binary data, as created by {@link #serialize(Macaroon, List)}
+   * @return a verifier of the root macaroon, with all discharges bound
+   * @throws NotDeSerializableException when the bundle is malformed
+   */
+  public static MacaroonsVerifier verifier(byte[] bundle, int offset, int length) throws NotDeSerializableException {
+    final MacaroonsVerifier[] verifier = new MacaroonsVerifier[1];
+    read(bundle, offset, length, new Handler() {
+      @Override
+      void root(Macaroon root) {
+        verifier[0] = new MacaroonsVerifier(root);
+      }
+
+      @Override
+      void discharge(Macaroon discharge) {
+        verifier[0].satisfy3rdParty(discharge);
+      }
+    });
+    return verifier[0];
+  }
+
+  /**
+   * @param bundle Base64 encoded bundle, as created by {@link #serializeToString(Macaroon, List)}
+   * @return a verifier of the root macaroon, with all discharges bound
+   * @throws NotDeSerializableException when the bundle is malformed
+   * @see #verifier(byte[], int, int)
+   */
+  public static MacaroonsVerifier verifier(String bundle) throws NotDeSerializableException {
+    byte[] bytes = decodeBase64(bundle);
+    return verifier(bytes, 0, bytes.length);
+  }
+
+  private static byte[] decodeBase64(String bundle) {
+    if (bundle == null || bundle.isEmpty()) {
+      throw new NotDeSerializableException("Couldn't deserialize bundle. It's empty.");
+    }
+    try {
+      return Base64.decode(bundle, 0, bundle.length());
+    } catch (IllegalArgumentException e) {
+      throw new NotDeSerializableException("Couldn't deserialize bundle. " + e.getMessage(), e);
+    }
+  }
+
+  private static void read(byte[] bundle, int offset, int length, Handler handler) {
+    assert bundle != null;
+    Reader reader = new Reader(bundle, offset, offset + length);
+    if (length == 0 || bundle[reader.pos++] != BUNDLE_VERSION) {
+      throw new NotDeSerializableException("Couldn't deserialize bundle. Unsupported bundle version.");
+    }
+    int count = reader.readVarint();
+    if (count == 0) {
+      throw new NotDeSerializableException("Couldn't deserialize bundle. There's no root macaroon.");
+    }
+    handler.root(reader.readMacaroon());
+    for (int i = 1; i < count; i++) {
+      handler.discharge(reader.readMacaroon());
+    }
+    if (reader.pos != reader.end) {
+      throw new NotDeSerializableException("Couldn't deserialize bundle. Found " + (reader.end - reader.pos) + " bytes after the last macaroon.");
+    }
+  }
+
+  private static abstract class Handler {
+    abstract void root(Macaroon root);
+
+    abstract void discharge(Macaroon discharge);
+  }
+
+  private static class Writer {
+
+    private final Map<ByteBuffer, Integer> indexes = new HashMap<>();
+    private byte[] buffer = new byte[512];
+    private int pos;
+
+    void writeMacaroon(Macaroon macaroon) {
+      ensure(1);
+      buffer[pos++] = macaroon.version == MacaroonVersion.VERSION_1 ? VERSION_1_CODE : VERSION_2_CODE;
+      writeValue(macaroon.location != null ? macaroon.location.getBytes(IDENTIFIER_CHARSET) : null);
+      writeValue(macaroon.identifier.getBytes(IDENTIFIER_CHARSET));
+      CaveatPacket[] caveats = macaroon.caveatPackets != null ? macaroon.caveatPackets : new CaveatPacket[0];
+      writeVarint(caveats.length);
+      for (CaveatPacket caveat : caveats) {
+        ensure(1);
+        buffer[pos++] = (byte) typeCode(caveat.type);
+        writeValue(caveat.rawValue);
+      }
+      writeVarint(macaroon.signatureBytes.length);
+      writeBytes(macaroon.signatureBytes);
+    }
+
+    private static int typeCode(Type type) {
+      switch (type) {
+        case cl:
+          return V2_FIELD_LOCATION;
+        case cid:
+          return V2_FIELD_IDENTIFIER;
+        case vid:
+          return V2_FIELD_VID;
+        default:
+          throw new IllegalArgumentException("Caveats of type " + type + " can't be bundled.");
+      }
+    }
+
+    private void writeValue(byte[] value) {
+      if (value == null) {
+        writeVarint(0);
+        return;
+      }
+      ByteBuffer key = ByteBuffer.wrap(value);
+      Integer index = indexes.get(key);
+      if (index != null) {
+        writeVarint(2 * index + 1);
+        return;
+      }
+      indexes.put(key, indexes.size());
+      writeVarint(2 * (value.length + 1));
+      writeBytes(value);
+    }
+
+    private void writeBytes(byte[] bytes) {
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+      pos += bytes.length;
+    }
+
+    void writeVarint(int value) {
+      ensure(5);
+      while ((value & ~0x7f) != 0) {
+        buffer[pos++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      buffer[pos++] = (byte) value;
+    }
+
+    private void ensure(int bytes) {
+      if (pos + bytes > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(2 * buffer.length, pos + bytes));
+      }
+    }
+  }
+
+  /**
+   * Values are located in the bundle by their offset and length, Strings are created once per distinct value.
+   */
+  private static class Reader {
+
+    private final byte[] buffer;
+    private final int end;
+    private int pos;
+
+    private int[] offsets = new int[16];
+    private int[] lengths = new int[16];
+    private String[] texts = new String[16];
+    private int size;
+
+    /* the value found by the last call to readValue() */
+    private int index;
+
+    Reader(byte[] buffer, int offset, int end) {
+      if (offset < 0 || end > buffer.length || offset > end) {
+        throw new IndexOutOfBoundsException("offset " + offset + ", length " + (end - offset) + ", buffer " + buffer.length);
+      }
+      this.buffer = buffer;
+      this.pos = offset;
+      this.end = end;
+    }
+
+    Macaroon readMacaroon() {
+      MacaroonVersion version = version(readByte());
+      String location = readValue() ? text() : null;
+      if (!readValue()) {
+        throw new NotDeSerializableException("Couldn't deserialize bundle. Found a macaroon without identifier.");
+      }
+      String identifier = text();
+      int count = readVarint();
+      if (count > end - pos) {
+        throw new NotDeSerializableException("Couldn't deserialize bundle. Found " + count + " caveats, but only " + (end - pos) + " bytes.");
+      }
+      CaveatPacket[] caveats = new CaveatPacket[count];
+      for (int i = 0; i < count; i++) {
+        Type type = type(readByte());
+        if (!readValue()) {
+          throw new NotDeSerializableException("Couldn't deserialize bundle. Found a caveat without value.");
+        }
+        caveats[i] = new CaveatPacket(type, bytes());
+      }
+      int signatureLength = readVarint();
+      checkAvailable(signatureLength);
+      byte[] signature = Arrays.copyOfRange(buffer, pos, pos + signatureLength);
+      pos += signatureLength;
+      return new Macaroon(location, identifier, signature, caveats, version);
+    }
+
+    private static MacaroonVersion version(int code) {
+      switch (code) {
+        case VERSION_1_CODE:
+          return MacaroonVersion.VERSION_1;
+        case VERSION_2_CODE:
+          return MacaroonVersion.VERSION_2;
+        default:
+          throw new NotDeSerializableException("Couldn't deserialize bundle. Unknown macaroon version " + code + ".");
+      }
+    }
+
+    private static Type type(int code) {
+      switch (code) {
+        case V2_FIELD_LOCATION:
+          return Type.cl;
+        case V2_FIELD_IDENTIFIER:
+          return Type.cid;
+        case V2_FIELD_VID:
+          return Type.vid;
+        default:
+          throw new NotDeSerializableException("Couldn't deserialize bundle. Invalid caveat type " + code + ".");
+      }
+    }
+
+    /**
+     * @return false for null values
+     */
+    private boolean readValue() {
+      int value = readVarint();
+      if (value == 0) return false;
+      if ((value & 1) == 1) {
+        index = value >>> 1;
+        if (index >= size) {
+          throw new NotDeSerializableException("Couldn't deserialize bundle. Invalid reference to value " + index + ", there are only " + size + ".");
+        }
+        return true;
+      }
+      int length = (value >>> 1) - 1;
+      checkAvailable(length);
+      if (size == offsets.length) {
+        offsets = Arrays.copyOf(offsets, 2 * size);
+        lengths = Arrays.copyOf(lengths, 2 * size);
+        texts = Arrays.copyOf(texts, 2 * size);
+      }
+      offsets[size] = pos;
+      lengths[size] = length;
+      index = size++;
+      pos += length;
+      return true;
+    }
+
+    private String text() {
+      if (texts[index] == null) {
+        texts[index] = new String(buffer, offsets[index], lengths[index], IDENTIFIER_CHARSET);
+      }
+      return texts[index];
+    }
+
+    private byte[] bytes() {
+      return Arrays.copyOfRange(buffer, offsets[index], offsets[index] + lengths[index]);
+    }
+
+    private void checkAvailable(int length) {
+      if (length > end - pos) {
+        throw new NotDeSerializableException("Not enough data bytes available. Needed " + length + " bytes, but was only " + (end - pos));
+      }
+    }
+
+    private int readByte() {
+      checkAvailable(1);
+      return buffer[pos++] & 0xff;
+    }
+
+    int readVarint() {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        int b = readByte();
+        value |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          if (value < 0) break;
+          return value;
+        }
+      }
+      throw new NotDeSerializableException("Couldn't deserialize bundle. Invalid varint.");
+    }
+  }
+}
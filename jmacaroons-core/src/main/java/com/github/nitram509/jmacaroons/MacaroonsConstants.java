@@ -86,6 +86,15 @@ public interface MacaroonsConstants {
   char KEY_VALUE_SEPARATOR = ' ';
   int KEY_VALUE_SEPARATOR_LEN = 1;
 
+  /* V2 binary format: a version byte, followed by varint tagged and varint length prefixed fields */
+
+  byte V2_BINARY_VERSION = 2;
+  int V2_FIELD_EOS = 0;
+  int V2_FIELD_LOCATION = 1;
+  int V2_FIELD_IDENTIFIER = 2;
+  int V2_FIELD_VID = 4;
+  int V2_FIELD_SIGNATURE = 6;
+
   Charset IDENTIFIER_CHARSET = Charset.forName("UTF-8");
 
   Charset RAW_BYTE_CHARSET = StandardCharsets.ISO_8859_1;
@@ -16,13 +16,16 @@
 
 package com.github.nitram509.jmacaroons;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.github.nitram509.jmacaroons.util.Base64;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -31,220 +34,804 @@ import static com.github.nitram509.jmacaroons.MacaroonsConstants.*;
 
 class MacaroonsDeSerializer {
 
-  private static final ObjectMapper mapper = new ObjectMapper();
-
-  private static final byte[] HEX_ALPHABET = new byte[]{
-      0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-      0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-      0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-      0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 0, 0, 0, 0, 0, 0,
-      0, 10, 11, 12, 13, 14, 15, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-      0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-      0, 10, 11, 12, 13, 14, 15, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-      0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  /* value of every hex digit, -1 for all other bytes */
+  private static final byte[] HEX_ALPHABET = hexAlphabet();
   private static final String MACAROON_IS_NULL = "Macaroon cannot be null";
 
+  private static byte[] hexAlphabet() {
+    byte[] alphabet = new byte[256];
+    Arrays.fill(alphabet, (byte) -1);
+    for (int i = 0; i < 10; i++) {
+      alphabet['0' + i] = (byte) i;
+    }
+    for (int i = 0; i < 6; i++) {
+      alphabet['a' + i] = (byte) (10 + i);
+      alphabet['A' + i] = (byte) (10 + i);
+    }
+    return alphabet;
+  }
+
   public static List<Macaroon> deserialize(String serializedMacaroon) throws NotDeSerializableException {
         assert serializedMacaroon != null;
 
         // Determine which format to use
         // Check to see if we're a single JSON Macaroon, or an array of JSON macaroons
-        if (serializedMacaroon.charAt(0) == '{' || serializedMacaroon.charAt(0) == '[') {
+        if (isJSON(serializedMacaroon)) {
             return deserializeMaybeJSONArray(serializedMacaroon);
         }
-        return Collections.singletonList(deserializeBinaryFormat(Base64.decode(serializedMacaroon)));
+        byte[] bytes = decodeBase64(serializedMacaroon, 0, serializedMacaroon.length());
+        // the original string is handed over, to be reused by Macaroon.serialize(), when it's canonical
+        String canonical = Base64.isCanonicalUrlSafe(serializedMacaroon, 0, serializedMacaroon.length()) ? serializedMacaroon : null;
+        return Collections.singletonList(deserializeBinaryFormat(bytes, canonical));
+    }
+
+  /**
+   * Same as {@link #deserialize(String)}, but reads the serialized macaroon as ASCII/UTF-8 bytes,
+   * e.g. straight out of a request buffer, without creating a String first.
+   */
+  public static List<Macaroon> deserialize(byte[] serializedMacaroon, int offset, int length) throws NotDeSerializableException {
+    assert serializedMacaroon != null;
+    checkNotEmpty(length);
+    if (isJSON(serializedMacaroon[offset])) {
+      try (JsonParser parser = JSON_FACTORY.createParser(serializedMacaroon, offset, length)) {
+        return deserializeMaybeJSONArray(parser);
+      } catch (IOException e) {
+        throw new NotDeSerializableException(e);
+      }
+    }
+    return Collections.singletonList(deserializeBinaryFormat(decodeBase64(serializedMacaroon, offset, length)));
+  }
+
+  /**
+   * Same as {@link #deserialize(byte[], int, int)}, reads the remaining bytes of the buffer,
+   * but doesn't change its position. Only direct buffers are copied.
+   */
+  public static List<Macaroon> deserialize(ByteBuffer serializedMacaroon) throws NotDeSerializableException {
+    assert serializedMacaroon != null;
+    if (serializedMacaroon.hasArray()) {
+      return deserialize(serializedMacaroon.array(), serializedMacaroon.arrayOffset() + serializedMacaroon.position(), serializedMacaroon.remaining());
+    }
+    byte[] bytes = new byte[serializedMacaroon.remaining()];
+    serializedMacaroon.duplicate().get(bytes);
+    return deserialize(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Same as {@link #deserialize(String)}, but reads a part of any char sequence, e.g. a header value
+   * within a {@link StringBuilder}, without creating a String first.
+   */
+  public static List<Macaroon> deserialize(CharSequence serializedMacaroon, int offset, int length) throws NotDeSerializableException {
+    assert serializedMacaroon != null;
+    checkNotEmpty(length);
+    if (isJSON(serializedMacaroon.charAt(offset))) {
+      char[] chars = new char[length];
+      for (int i = 0; i < length; i++) {
+        chars[i] = serializedMacaroon.charAt(offset + i);
+      }
+      try (JsonParser parser = JSON_FACTORY.createParser(chars)) {
+        return deserializeMaybeJSONArray(parser);
+      } catch (IOException e) {
+        throw new NotDeSerializableException(e);
+      }
+    }
+    return Collections.singletonList(deserializeBinaryFormat(decodeBase64(serializedMacaroon, offset, length)));
+  }
+
+  /* malformed base64 is rejected here, so it never reaches the packet parsers */
+  private static byte[] decodeBase64(CharSequence serializedMacaroon, int offset, int length) {
+    try {
+      return Base64.decode(serializedMacaroon, offset, length);
+    } catch (IllegalArgumentException e) {
+      throw new NotDeSerializableException("Couldn't deserialize macaroon. " + e.getMessage(), e);
     }
+  }
+
+  private static byte[] decodeBase64(byte[] serializedMacaroon, int offset, int length) {
+    try {
+      return Base64.decode(serializedMacaroon, offset, length);
+    } catch (IllegalArgumentException e) {
+      throw new NotDeSerializableException("Couldn't deserialize macaroon. " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @param in JSON input
+   * @return a parser, which reads macaroons via {@link #deserializeJSONFormat(JsonParser)}, it closes the input when closed
+   */
+  static JsonParser createJSONParser(InputStream in) throws IOException {
+    return JSON_FACTORY.createParser(in);
+  }
+
+  private static void checkNotEmpty(int length) {
+    if (length <= 0) {
+      throw new NotDeSerializableException(MACAROON_IS_NULL);
+    }
+  }
+
+  /**
+   * Decodes a macaroon in the {@link MacaroonVersion.SerializationVersion#V1_BINARY} or
+   * {@link MacaroonVersion.SerializationVersion#V2_BINARY} format, but leaves its packets as they are,
+   * so they can be scanned by a {@link PacketScanner}, see {@link #packetScanner(byte[], int, int)}.
+   *
+   * @param serializedMacaroon serialized macaroon
+   * @return the raw packet bytes, or null when the macaroon is serialized in a JSON format
+   * @throws NotDeSerializableException when there are not enough bytes for a signature
+   */
+  static byte[] decodeBinaryPackets(String serializedMacaroon) throws NotDeSerializableException {
+    if (isJSON(serializedMacaroon)) return null;
+    byte[] bytes = decodeBase64(serializedMacaroon, 0, serializedMacaroon.length());
+    if (!isV2Binary(bytes, 0, bytes.length)) {
+      checkV1MinimalLength(bytes);
+    }
+    return bytes;
+  }
+
+  /**
+   * @param buffer buffer
+   * @param offset start of the packets
+   * @param length length of the packets
+   * @return a scanner for the binary format the packets are encoded in
+   */
+  static PacketScanner packetScanner(byte[] buffer, int offset, int length) {
+    if (isV2Binary(buffer, offset, length)) {
+      return new V2PacketReader(buffer, offset, length);
+    }
+    return new StatefulPacketReader(buffer, offset, length);
+  }
+
+  private static boolean isJSON(String serializedMacaroon) {
+    return isJSON(serializedMacaroon.charAt(0));
+  }
+
+  private static boolean isJSON(int firstChar) {
+    return firstChar == '{' || firstChar == '[';
+  }
+
+  /* V1 packets start with a hex digit of their length */
+  private static boolean isV2Binary(byte[] buffer, int offset, int length) {
+    return length > 0 && buffer[offset] == V2_BINARY_VERSION;
+  }
 
   private static Macaroon deserializeBinaryFormat(byte[] bytes) {
-    return deserializeV1BinaryFormat(bytes);
+    return deserializeBinaryFormat(bytes, null);
+  }
+
+  private static Macaroon deserializeBinaryFormat(byte[] bytes, String serialized) {
+    if (isV2Binary(bytes, 0, bytes.length)) {
+      return deserializePackets(new V2PacketReader(bytes, 0, bytes.length), serialized);
+    }
+    checkV1MinimalLength(bytes);
+    return deserializePackets(new StatefulPacketReader(bytes), serialized);
   }
 
-  private static Macaroon deserializeV1BinaryFormat(byte[] bytes) {
+  static Macaroon deserializeV1BinaryFormat(byte[] bytes) {
+    return deserializeBinaryFormat(bytes, null);
+  }
+
+  /**
+   * Every value is created once, straight from its slice of the decoded buffer.
+   * Unknown packets are skipped.
+   * The serialized form is only remembered by the macaroon, when serializing it again would result in the same string,
+   * see {@link PacketScanner#canonical}.
+   *
+   * @param serialized the Base64 encoded packets in canonical form, or null
+   */
+  private static Macaroon deserializePackets(PacketScanner reader, String serialized) {
+    String location = null;
+    String identifier = null;
+    List<CaveatPacket> caveats = new ArrayList<>(3);
+    byte[] signature = null;
+    while (reader.nextPacket()) {
+      if (reader.packetType == null) continue;
+      switch (reader.packetType) {
+        case location:
+          location = reader.valueAsText();
+          break;
+        case identifier:
+          identifier = reader.valueAsText();
+          break;
+        case signature:
+          signature = reader.valueAsBytes();
+          break;
+        case vid:
+          caveats.add(new CaveatPacket(Type.vid, reader.valueAsBytes()));
+          break;
+        default:
+          caveats.add(new CaveatPacket(reader.packetType, reader.valueAsText()));
+      }
+    }
+    Macaroon macaroon = new Macaroon(location, identifier, signature, caveats.toArray(new CaveatPacket[0]), reader.version());
+    if (serialized != null && reader.canonical) {
+      macaroon.cacheSerialized(reader.serializationVersion(), serialized);
+    }
+    return macaroon;
+  }
+
+  private static void checkV1MinimalLength(byte[] bytes) {
     int minLength = MACAROON_HASH_BYTES + KEY_VALUE_SEPARATOR_LEN + SIGNATURE.length();
     if (bytes.length < minLength) {
       throw new NotDeSerializableException("Couldn't deserialize macaroon. Not enough bytes for signature found. There have to be at least " + minLength + " bytes");
     }
-    return deserializeStream(new StatefulPacketReader(bytes));
   }
 
   private static List<Macaroon> deserializeMaybeJSONArray(String macaroonBytes) {
-    final JsonNode jsonValue;
-    try {
-      jsonValue = mapper.readTree(macaroonBytes);
+    try (JsonParser parser = JSON_FACTORY.createParser(macaroonBytes)) {
+      return deserializeMaybeJSONArray(parser);
     } catch (IOException e) {
-      throw new NotDeSerializableException(e.getCause());
+      throw new NotDeSerializableException(e);
     }
+  }
 
-    if (jsonValue == null) {
+  private static List<Macaroon> deserializeMaybeJSONArray(JsonParser parser) throws IOException {
+    JsonToken token = parser.nextToken();
+    if (token == null) {
       throw new NotDeSerializableException(MACAROON_IS_NULL);
     }
 
     final List<Macaroon> macaroons = new ArrayList<>();
 
     // If it's an array, iterate over all the children and convert them
-    if (jsonValue.isArray()) {
-      for (final JsonNode jsonNode : jsonValue) {
-        macaroons.add(deserializeJSONFormat(jsonNode));
+    if (token == JsonToken.START_ARRAY) {
+      // the first invalid macaroon is reported, once the whole array turned out to be valid JSON
+      RuntimeException failure = null;
+      while (parser.nextToken() != JsonToken.END_ARRAY) {
+        try {
+          macaroons.add(deserializeJSONFormat(parser));
+        } catch (NotDeSerializableException | IllegalArgumentException e) {
+          if (failure == null) failure = e;
+        }
       }
+      if (failure != null) throw failure;
     } else {
       // If it's not an array, deserialize the Macaroon directly.
-      macaroons.add(deserializeJSONFormat(jsonValue));
+      macaroons.add(deserializeJSONFormat(parser));
     }
-
     return macaroons;
   }
 
-  private static Macaroon deserializeJSONFormat(JsonNode jsonValue) {
+  /**
+   * Reads one macaroon object in a single pass, the parser is left at the end of the object.
+   * Problems with its content are only reported after the whole object was read,
+   * and an unsupported version takes precedence over them.
+   */
+  static Macaroon deserializeJSONFormat(JsonParser parser) throws IOException {
+    if (parser.currentToken() != JsonToken.START_OBJECT) {
+      boolean isNull = parser.currentToken() == JsonToken.VALUE_NULL;
+      parser.skipChildren();
+      throw new NotDeSerializableException(isNull ? MACAROON_IS_NULL : "Expected a JSON object, but found " + parser.currentToken());
+    }
     // Check for version, if it doesn't have one, assume V2 encoding
     int version = 2;
-    if (jsonValue.has("v")) {
-      version = jsonValue.get("v").asInt(0);
+    String location = "";
+    String identifier = "";
+    String identifier64 = "";
+    String signature = "";
+    String signature64 = "";
+    List<CaveatPacket> caveats = new ArrayList<>();
+    String failure = null;
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      switch (field) {
+        case "v":
+          version = parser.getValueAsInt(0);
+          parser.skipChildren();
+          break;
+        case "l":
+          location = readJSONText(parser);
+          if (location == null && parser.currentToken() != JsonToken.VALUE_NULL) {
+            failure = "Invalid value of field \"l\"";
+          }
+          break;
+        case "i":
+          identifier = readJSONText(parser);
+          break;
+        case "i64":
+          identifier64 = readJSONText(parser);
+          break;
+        case "s":
+          signature = readJSONText(parser);
+          break;
+        case "s64":
+          signature64 = readJSONText(parser);
+          break;
+        case "c":
+          caveats = readJSONCaveats(parser);
+          break;
+        default:
+          parser.skipChildren();
+          failure = "Unrecognized field \"" + field + "\"";
+      }
+      if (failure == null && (identifier == null || identifier64 == null || signature == null || signature64 == null || caveats == null)) {
+        failure = "Invalid value of field \"" + field + "\"";
+      }
     }
+
     switch (version) {
-      case 2: return deserializeV2JSON(jsonValue);
+      case 2: break;
       case 1: throw new IllegalArgumentException("Don't support V1 json, yet");
       default: throw new IllegalArgumentException(String.format("Cannot deserialize version %d", version));
     }
+    if (failure != null) {
+      throw new NotDeSerializableException(failure);
+    }
+
+    // Get the optionally base64 encoded values
+    return new Macaroon(location,
+            identifier.isEmpty() ? new String(Base64.decode(identifier64), RAW_BYTE_CHARSET) : identifier,
+            signature.isEmpty() ? Base64.decode(signature64) : signature.getBytes(RAW_BYTE_CHARSET),
+            caveats.toArray(new CaveatPacket[0]), MacaroonVersion.VERSION_1);
   }
 
-  private static Macaroon deserializeV2JSON(JsonNode json) {
-    final MacaroonJSONV2 jsonMacaroon;
-    try {
-       jsonMacaroon = mapper.treeToValue(json, MacaroonJSONV2.class);
-    } catch (JsonProcessingException e) {
-      throw new NotDeSerializableException(e.getCause());
+  /**
+   * @return the caveat packets, or null if they are not valid
+   */
+  private static List<CaveatPacket> readJSONCaveats(JsonParser parser) throws IOException {
+    if (parser.currentToken() != JsonToken.START_ARRAY) {
+      parser.skipChildren();
+      return null;
+    }
+    List<CaveatPacket> packets = new ArrayList<>();
+    boolean valid = true;
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      valid &= readJSONCaveat(parser, packets);
+    }
+    return valid ? packets : null;
+  }
+
+  /**
+   * Order is important because the Macaroon.equals method checks that the values are in the same order:
+   * cid, vid (optional), cl (optional).
+   *
+   * @return false, if the caveat is not valid
+   */
+  private static boolean readJSONCaveat(JsonParser parser, List<CaveatPacket> packets) throws IOException {
+    if (parser.currentToken() != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      return false;
+    }
+    String location = "";
+    String cid = "";
+    String cid64 = "";
+    String vid = "";
+    String vid64 = "";
+    boolean valid = true;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      switch (field) {
+        case "l":
+          location = readJSONText(parser);
+          break;
+        case "i":
+          cid = readJSONText(parser);
+          break;
+        case "i64":
+          cid64 = readJSONText(parser);
+          break;
+        case "v":
+          vid = readJSONText(parser);
+          break;
+        case "v64":
+          vid64 = readJSONText(parser);
+          break;
+        default:
+          parser.skipChildren();
+          valid = false;
+      }
+    }
+    if (!valid || location == null || cid == null || cid64 == null || vid == null || vid64 == null) {
+      return false;
+    }
+    packets.add(new CaveatPacket(Type.cid, cid.isEmpty() ? Base64.decode(cid64) : cid.getBytes(RAW_BYTE_CHARSET)));
+    byte[] vidBytes = vid.isEmpty() ? Base64.decode(vid64) : vid.getBytes(RAW_BYTE_CHARSET);
+    if (vidBytes.length != 0) {
+      packets.add(new CaveatPacket(Type.vid, vidBytes));
+    }
+    if (!location.isEmpty()) {
+      packets.add(new CaveatPacket(Type.cl, location));
+    }
+    return true;
+  }
+
+  /**
+   * Scalars are taken as text, same as Jackson's data binding does.
+   *
+   * @return the text, or null if the value is null or not a scalar
+   */
+  private static String readJSONText(JsonParser parser) throws IOException {
+    if (parser.currentToken().isStructStart()) {
+      parser.skipChildren();
+      return null;
     }
+    return parser.getValueAsString();
+  }
 
+  /**
+   * Walks the packets of a binary macaroon without copying any of their data.
+   * After each call to {@link #nextPacket()}, {@link #packetType}, {@link #valueOffset} and {@link #valueLength}
+   * describe the packet's value as a slice of the underlying buffer.
+   * Caveat packets are found in the order cid, vid, cl, no matter of the format.
+   */
+  abstract static class PacketScanner {
 
-    if (jsonMacaroon == null) {
-      throw new NotDeSerializableException(MACAROON_IS_NULL);
+    final byte[] buffer;
+
+    /* the packet found by the last call to nextPacket(), type is null for unknown packets */
+    Type packetType;
+    int valueOffset;
+    int valueLength;
+
+    /**
+     * Stays true as long as the packets read so far are exactly what the serializer writes,
+     * any redundant encoding, unknown packet or malformed UTF-8 text value turns it false.
+     */
+    boolean canonical = true;
+
+    PacketScanner(byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    /**
+     * @return false, when there are no more packets
+     * @throws NotDeSerializableException when the packet is truncated or malformed
+     */
+    abstract boolean nextPacket();
+
+    abstract MacaroonVersion version();
+
+    /**
+     * Malformed UTF-8 is replaced by U+FFFD, which can't be encoded back to the original bytes,
+     * so such values aren't {@link #canonical}. Values, which contain U+FFFD on purpose, are treated alike.
+     */
+    String valueAsText() {
+      String text = new String(buffer, valueOffset, valueLength, IDENTIFIER_CHARSET);
+      if (canonical && text.indexOf('\uFFFD') >= 0) canonical = false;
+      return text;
+    }
+
+    MacaroonVersion.SerializationVersion serializationVersion() {
+      return version() == MacaroonVersion.VERSION_2 ? MacaroonVersion.SerializationVersion.V2_BINARY : MacaroonVersion.SerializationVersion.V1_BINARY;
     }
 
-    // Extract the caveats
-    return new Macaroon(jsonMacaroon.getLocation(),
-            jsonMacaroon.parseIdentifier(),
-            jsonMacaroon.parseSignature(),
-            jsonMacaroon.getCaveatPackets(), MacaroonVersion.VERSION_1);
+    byte[] valueAsBytes() {
+      byte[] value = new byte[valueLength];
+      System.arraycopy(buffer, valueOffset, value, 0, valueLength);
+      return value;
+    }
   }
 
-  private static Macaroon deserializeStream(StatefulPacketReader packetReader) {
-    String location = null;
-    String identifier = null;
-    List<CaveatPacket> caveats = new ArrayList<>( 3 );
-    byte[] signature = null;
+  static class StatefulPacketReader extends PacketScanner {
+
+    /* the canonical order is location, identifier, caveats, signature */
+    private static final int EXPECT_LOCATION = 0;
+    private static final int EXPECT_IDENTIFIER = 1;
+    private static final int EXPECT_CAVEAT_OR_SIGNATURE = 2;
+    private static final int AFTER_SIGNATURE = 3;
 
-    for (Packet packet; (packet = readPacket(packetReader)) != null; ) {
-      if (bytesStartWith(packet.data, LOCATION_BYTES)) {
-        location = parsePacket(packet, LOCATION_BYTES);
-      } else if (bytesStartWith(packet.data, IDENTIFIER_BYTES)) {
-        identifier = parsePacket(packet, IDENTIFIER_BYTES);
-      } else if (bytesStartWith(packet.data, CID_BYTES)) {
-        String s = parsePacket(packet, CID_BYTES);
-        caveats.add(new CaveatPacket(Type.cid, s));
-      } else if (bytesStartWith(packet.data, CL_BYTES)) {
-        String s = parsePacket(packet, CL_BYTES);
-        caveats.add(new CaveatPacket(Type.cl, s));
-      } else if (bytesStartWith(packet.data, VID_BYTES)) {
-        byte[] raw = parseRawPacket(packet, VID_BYTES);
-        caveats.add(new CaveatPacket(Type.vid, raw));
-      } else if (bytesStartWith(packet.data, SIGNATURE_BYTES)) {
-        signature = parseSignature(packet, SIGNATURE_BYTES);
+    private final int end;
+    private int seekIndex;
+    private int order = EXPECT_LOCATION;
+
+    public StatefulPacketReader(byte[] buffer) {
+      this(buffer, 0, buffer.length);
+    }
+
+    StatefulPacketReader(byte[] buffer, int offset, int length) {
+      super(buffer);
+      this.seekIndex = offset;
+      this.end = offset + length;
+    }
+
+    public int readPacketHeader() throws NotDeSerializableException {
+      int size = 0;
+      for (int i = 0; i < PACKET_PREFIX_LENGTH; i++) {
+        int digit = HEX_ALPHABET[buffer[seekIndex] & 0xff];
+        if (digit < 0) {
+          throw new NotDeSerializableException("Invalid packet size, found byte " + (buffer[seekIndex] & 0xff) + " instead of a hex digit at index " + seekIndex + ".");
+        }
+        seekIndex++;
+        size = (size << 4) | digit;
       }
+      return size;
     }
-    return new Macaroon(location, identifier, signature, caveats.toArray(new CaveatPacket[0]), MacaroonVersion.VERSION_1);
-  }
 
-  private static byte[] parseSignature(Packet packet, byte[] signaturePacketData) {
-    int headerLen = signaturePacketData.length + KEY_VALUE_SEPARATOR_LEN;
-    int len = Math.min(packet.data.length - headerLen, MacaroonsConstants.MACAROON_HASH_BYTES);
-    byte[] signature = new byte[len];
-    System.arraycopy(packet.data, headerLen, signature, 0, len);
-    return signature;
-  }
+    public boolean isPacketHeaderAvailable() {
+      return seekIndex <= (end - PACKET_PREFIX_LENGTH);
+    }
 
-  private static String parsePacket(Packet packet, byte[] header) {
-    int headerLen = header.length + KEY_VALUE_SEPARATOR_LEN;
-    int len = packet.data.length - headerLen;
-    if (packet.data[headerLen + len - 1] == LINE_SEPARATOR) len--;
-    return new String(packet.data, headerLen, len, IDENTIFIER_CHARSET);
-  }
+    public boolean isEOF() {
+      return !(seekIndex < end);
+    }
 
-  private static byte[] parseRawPacket(Packet packet, byte[] header) {
-    int headerLen = header.length + KEY_VALUE_SEPARATOR_LEN;
-    int len = packet.data.length - headerLen - LINE_SEPARATOR_LEN;
-    byte[] raw = new byte[len];
-    System.arraycopy(packet.data, headerLen, raw, 0, len);
-    return raw;
-  }
+    @Override
+    MacaroonVersion version() {
+      return MacaroonVersion.VERSION_1;
+    }
 
-  private static boolean bytesStartWith(byte[] bytes, byte[] startBytes) {
-    if (bytes.length < startBytes.length) return false;
-    for (int i = 0, len = startBytes.length; i < len; i++) {
-      if (bytes[i] != startBytes[i]) return false;
+    /**
+     * Moves to the next packet without copying any of its data.
+     * The packet type is dispatched on the first header byte.
+     *
+     * @return false, when there are no more packets
+     * @throws NotDeSerializableException when the packet is truncated or malformed
+     */
+    @Override
+    boolean nextPacket() {
+      if (isEOF()) {
+        if (order != AFTER_SIGNATURE) canonical = false;
+        return false;
+      }
+      if (!isPacketHeaderAvailable()) {
+        throw new NotDeSerializableException("Not enough header bytes available. Needed " + PACKET_PREFIX_LENGTH + " bytes.");
+      }
+      if (canonical && !isLowerCaseHex(seekIndex)) canonical = false;
+      int size = readPacketHeader();
+      int dataLength = size - PACKET_PREFIX_LENGTH;
+      if (dataLength < 0) {
+        throw new NotDeSerializableException("Invalid packet size " + size + ". Packets have at least " + PACKET_PREFIX_LENGTH + " bytes.");
+      }
+      if (isEOF()) {
+        canonical = false;
+        return false;
+      }
+      if (dataLength > end - seekIndex) {
+        throw new NotDeSerializableException("Not enough data bytes available. Needed " + dataLength + " bytes, but was only " + (end - seekIndex));
+      }
+      int data = seekIndex;
+      seekIndex += dataLength;
+
+      packetType = null;
+      if (dataLength == 0) {
+        canonical = false;
+        return true;
+      }
+      boolean found = findPacket(data, dataLength);
+      if (canonical) trackCanonical(data, dataLength);
+      return found;
     }
-    return true;
-  }
 
-  private static Packet readPacket(StatefulPacketReader stream) {
-    if (stream.isEOF()) return null;
-    if (!stream.isPacketHeaderAvailable()) {
-      throw new NotDeSerializableException("Not enough header bytes available. Needed " + PACKET_PREFIX_LENGTH + " bytes.");
+    private boolean findPacket(int data, int dataLength) {
+      switch (buffer[data]) {
+        case 'l':
+          if (startsWith(data, dataLength, LOCATION_BYTES)) return textValue(Type.location, data, dataLength, LOCATION_BYTES);
+          break;
+        case 'i':
+          if (startsWith(data, dataLength, IDENTIFIER_BYTES)) return textValue(Type.identifier, data, dataLength, IDENTIFIER_BYTES);
+          break;
+        case 'c':
+          if (startsWith(data, dataLength, CID_BYTES)) return textValue(Type.cid, data, dataLength, CID_BYTES);
+          if (startsWith(data, dataLength, CL_BYTES)) return textValue(Type.cl, data, dataLength, CL_BYTES);
+          break;
+        case 'v':
+          if (startsWith(data, dataLength, VID_BYTES)) {
+            return value(Type.vid, data, VID_BYTES, dataLength - VID_BYTES.length - KEY_VALUE_SEPARATOR_LEN - LINE_SEPARATOR_LEN);
+          }
+          break;
+        case 's':
+          if (startsWith(data, dataLength, SIGNATURE_BYTES)) {
+            int len = Math.min(dataLength - SIGNATURE_BYTES.length - KEY_VALUE_SEPARATOR_LEN, MACAROON_HASH_BYTES);
+            return value(Type.signature, data, SIGNATURE_BYTES, len);
+          }
+          break;
+      }
+      return true;
     }
-    int size = stream.readPacketHeader();
-    assert size <= PACKET_MAX_SIZE;
 
-    byte[] data = new byte[size - PACKET_PREFIX_LENGTH];
-    int read = stream.read(data);
-    if (read < 0) return null;
-    if (read != data.length) {
-      throw new NotDeSerializableException("Not enough data bytes available. Needed " + data.length + " bytes, but was only " + read);
+    /* the serializer writes lower case hex sizes, a ' ' separator and a '\n' after every value, and a signature of MACAROON_HASH_BYTES */
+    private void trackCanonical(int data, int dataLength) {
+      Type type = packetType;
+      if (type == null
+          || buffer[valueOffset - KEY_VALUE_SEPARATOR_LEN] != KEY_VALUE_SEPARATOR
+          || valueOffset + valueLength + LINE_SEPARATOR_LEN != data + dataLength
+          || buffer[data + dataLength - 1] != LINE_SEPARATOR
+          || (type == Type.signature && valueLength != MACAROON_HASH_BYTES)) {
+        canonical = false;
+        return;
+      }
+      switch (type) {
+        case location:
+          order = order == EXPECT_LOCATION ? EXPECT_IDENTIFIER : -1;
+          break;
+        case identifier:
+          order = order == EXPECT_IDENTIFIER ? EXPECT_CAVEAT_OR_SIGNATURE : -1;
+          break;
+        case signature:
+          order = order == EXPECT_CAVEAT_OR_SIGNATURE ? AFTER_SIGNATURE : -1;
+          break;
+        default:
+          if (order != EXPECT_CAVEAT_OR_SIGNATURE) order = -1;
+      }
+      if (order < 0) canonical = false;
     }
 
-    return new Packet(size, data);
-  }
+    private boolean isLowerCaseHex(int index) {
+      for (int i = index; i < index + PACKET_PREFIX_LENGTH; i++) {
+        byte b = buffer[i];
+        if (!((b >= '0' && b <= '9') || (b >= 'a' && b <= 'f'))) return false;
+      }
+      return true;
+    }
 
-  private static class Packet {
-    final int size;
-    final byte[] data;
+    private boolean textValue(Type type, int data, int dataLength, byte[] header) {
+      int len = dataLength - header.length - KEY_VALUE_SEPARATOR_LEN;
+      if (len > 0 && buffer[data + dataLength - 1] == LINE_SEPARATOR) len--;
+      return value(type, data, header, len);
+    }
 
-    private Packet(int size, byte[] data) {
-      this.size = size;
-      this.data = data;
+    private boolean value(Type type, int data, byte[] header, int len) {
+      if (len < 0) {
+        throw new NotDeSerializableException("Invalid " + type + " packet. No value found after its header.");
+      }
+      packetType = type;
+      valueOffset = data + header.length + KEY_VALUE_SEPARATOR_LEN;
+      valueLength = len;
+      return true;
+    }
+
+    private boolean startsWith(int data, int dataLength, byte[] header) {
+      if (dataLength < header.length) return false;
+      for (int i = 0; i < header.length; i++) {
+        if (buffer[data + i] != header[i]) return false;
+      }
+      return true;
     }
   }
 
-  static class StatefulPacketReader {
 
-    private final byte[] buffer;
-    private int seekIndex = 0;
+  /**
+   * Reads the {@link MacaroonVersion.SerializationVersion#V2_BINARY} format.
+   * A caveat's fields are stored as location, identifier, vid, so the identifier is returned first,
+   * the other two are remembered and returned by the following calls.
+   */
+  static class V2PacketReader extends PacketScanner {
+
+    private static final int HEADER = 0;
+    private static final int CAVEATS = 1;
+    private static final int SIGNATURE = 2;
+    private static final int DONE = 3;
+
+    private final int end;
+    private int seekIndex;
+    private int section = HEADER;
+
+    /* the field found by the last call to readField() */
+    private int fieldOffset;
+    private int fieldLength;
+
+    private int pendingVidOffset = -1;
+    private int pendingVidLength;
+    private int pendingClOffset = -1;
+    private int pendingClLength;
+
+    V2PacketReader(byte[] buffer, int offset, int length) {
+      super(buffer);
+      this.seekIndex = offset;
+      this.end = offset + length;
+      if (length == 0 || buffer[offset] != V2_BINARY_VERSION) {
+        throw new NotDeSerializableException("Couldn't deserialize macaroon. Unsupported binary format version.");
+      }
+      seekIndex++;
+    }
 
-    public StatefulPacketReader(byte[] buffer) {
-      this.buffer = buffer;
+    @Override
+    MacaroonVersion version() {
+      return MacaroonVersion.VERSION_2;
     }
 
-    public int read(byte[] data) {
-      int len = Math.min(data.length, buffer.length - seekIndex);
-      if (len > 0) {
-        System.arraycopy(buffer, seekIndex, data, 0, len);
-        seekIndex += len;
-        return len;
+    @Override
+    boolean nextPacket() {
+      if (pendingVidOffset >= 0) {
+        value(Type.vid, pendingVidOffset, pendingVidLength);
+        pendingVidOffset = -1;
+        return true;
+      }
+      if (pendingClOffset >= 0) {
+        value(Type.cl, pendingClOffset, pendingClLength);
+        pendingClOffset = -1;
+        return true;
+      }
+      switch (section) {
+        case HEADER:
+          return nextHeaderPacket();
+        case CAVEATS:
+          return nextCaveatPacket();
+        case SIGNATURE:
+          expectField(readField(), V2_FIELD_SIGNATURE, Type.signature);
+          value(Type.signature, fieldOffset, fieldLength);
+          section = DONE;
+          if (seekIndex != end) {
+            throw new NotDeSerializableException("Couldn't deserialize macaroon. Found " + (end - seekIndex) + " bytes after the signature.");
+          }
+          return true;
+        default:
+          return false;
       }
-      return -1;
     }
 
-    public int readPacketHeader() {
-      return (HEX_ALPHABET[buffer[seekIndex++]] << 12)
-          | (HEX_ALPHABET[buffer[seekIndex++]] << 8)
-          | (HEX_ALPHABET[buffer[seekIndex++]] << 4)
-          | HEX_ALPHABET[buffer[seekIndex++]];
+    private boolean nextHeaderPacket() {
+      int field = readField();
+      if (field == V2_FIELD_LOCATION && packetType == null) {
+        value(Type.location, fieldOffset, fieldLength);
+        return true;
+      }
+      expectField(field, V2_FIELD_IDENTIFIER, Type.identifier);
+      value(Type.identifier, fieldOffset, fieldLength);
+      expectField(readField(), V2_FIELD_EOS, null);
+      section = CAVEATS;
+      return true;
     }
 
-    public boolean isPacketHeaderAvailable() {
-      return seekIndex <= (buffer.length - PACKET_PREFIX_LENGTH);
+    private boolean nextCaveatPacket() {
+      int field = readField();
+      if (field == V2_FIELD_EOS) {
+        section = SIGNATURE;
+        return nextPacket();
+      }
+      if (field == V2_FIELD_LOCATION) {
+        pendingClOffset = fieldOffset;
+        pendingClLength = fieldLength;
+        field = readField();
+      }
+      expectField(field, V2_FIELD_IDENTIFIER, Type.cid);
+      int cidOffset = fieldOffset;
+      int cidLength = fieldLength;
+      field = readField();
+      if (field == V2_FIELD_VID) {
+        pendingVidOffset = fieldOffset;
+        pendingVidLength = fieldLength;
+        field = readField();
+      }
+      expectField(field, V2_FIELD_EOS, null);
+      value(Type.cid, cidOffset, cidLength);
+      return true;
     }
 
-    public boolean isEOF() {
-      return !(seekIndex < buffer.length);
+    private void expectField(int field, int expected, Type type) {
+      if (field != expected) {
+        String name = type != null ? type.name() : "end of section";
+        throw new NotDeSerializableException("Couldn't deserialize macaroon. Expected " + name + " but found field type " + field + ".");
+      }
+    }
+
+    private int readField() {
+      int field = readVarint();
+      if (field == V2_FIELD_EOS) return field;
+      int length = readVarint();
+      if (length > end - seekIndex) {
+        throw new NotDeSerializableException("Not enough data bytes available. Needed " + length + " bytes, but was only " + (end - seekIndex));
+      }
+      fieldOffset = seekIndex;
+      fieldLength = length;
+      seekIndex += length;
+      return field;
+    }
+
+    private int readVarint() {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        if (seekIndex >= end) {
+          throw new NotDeSerializableException("Couldn't deserialize macaroon. Unexpected end of data.");
+        }
+        int b = buffer[seekIndex++];
+        value |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          if (value < 0) break;
+          // a redundant trailing zero group, e.g. 0x80 0x00, isn't written by the serializer
+          if (b == 0 && shift > 0) canonical = false;
+          return value;
+        }
+      }
+      throw new NotDeSerializableException("Couldn't deserialize macaroon. Invalid varint.");
+    }
+
+    private void value(Type type, int offset, int length) {
+      packetType = type;
+      valueOffset = offset;
+      valueLength = length;
     }
   }
 
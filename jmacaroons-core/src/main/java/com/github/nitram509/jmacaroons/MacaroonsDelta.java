@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import com.github.nitram509.jmacaroons.util.Base64;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static com.github.nitram509.jmacaroons.CaveatPacket.Type;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.V2_FIELD_IDENTIFIER;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.V2_FIELD_LOCATION;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.V2_FIELD_VID;
+import static com.github.nitram509.jmacaroons.MacaroonsSerializer.writeVarint;
+
+/**
+ * <p>
+ * Sends an attenuated macaroon as the difference to a base macaroon, which the server issued and still knows.
+ * </p>
+ * Only a fingerprint of the base, the caveats added to it and the final signature go over the wire.
+ * The server rebuilds and verifies the macaroon with a {@link MacaroonsBaseCache}.
+ * <pre>
+ * delta  = DELTA_VERSION fingerprint count (type length value)* signature-length signature
+ * </pre>
+ * The fingerprint is made of the first {@link #FINGERPRINT_BYTES} bytes of the SHA-256 hash of the base's signature,
+ * count and lengths are unsigned varints, type is a single byte, the caveat's V2 field tag, i.e. 1 (cl), 2 (cid) or 4 (vid).
+ * <pre>{@code
+ * Macaroon attenuated = new MacaroonsBuilder(base).add_first_party_caveat("time < 2042-01-01T00:00").getMacaroon();
+ * String delta = MacaroonsDelta.serializeToString(base, attenuated);
+ * }</pre>
+ */
+public final class MacaroonsDelta {
+
+  static final byte DELTA_VERSION = 1;
+  public static final int FINGERPRINT_BYTES = 16;
+
+  private static final int HEADER_LENGTH = 1 + FINGERPRINT_BYTES;
+
+  private MacaroonsDelta() {
+  }
+
+  /**
+   * @param base base macaroon
+   * @return the bytes, which identify the base in a delta
+   */
+  public static byte[] fingerprint(Macaroon base) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(base.signatureBytes);
+      return Arrays.copyOf(hash, FINGERPRINT_BYTES);
+    } catch (NoSuchAlgorithmException e) {
+      throw new GeneralSecurityRuntimeException(e);
+    }
+  }
+
+  /**
+   * @param base       base macaroon, known to the server
+   * @param attenuated the base, with some more caveats added
+   * @return the delta as binary data
+   * @throws IllegalArgumentException when the attenuated macaroon doesn't start with all of the base's caveats
+   */
+  public static byte[] serialize(Macaroon base, Macaroon attenuated) throws IllegalArgumentException {
+    CaveatPacket[] baseCaveats = caveats(base);
+    CaveatPacket[] caveats = caveats(attenuated);
+    if (!base.identifier.equals(attenuated.identifier)
+        || (base.location != null ? !base.location.equals(attenuated.location) : attenuated.location != null)) {
+      throw new IllegalArgumentException("The attenuated macaroon isn't derived from the base, identifier or location differ.");
+    }
+    if (caveats.length < baseCaveats.length || !Arrays.equals(baseCaveats, Arrays.copyOf(caveats, baseCaveats.length))) {
+      throw new IllegalArgumentException("The attenuated macaroon isn't derived from the base, it doesn't start with the base's caveats.");
+    }
+    int length = writeDelta(null, base, baseCaveats.length, attenuated);
+    byte[] delta = new byte[length];
+    writeDelta(delta, base, baseCaveats.length, attenuated);
+    return delta;
+  }
+
+  /**
+   * @param base       base macaroon, known to the server
+   * @param attenuated the base, with some more caveats added
+   * @return the delta, URL safe Base64 encoded
+   * @throws IllegalArgumentException when the attenuated macaroon doesn't start with all of the base's caveats
+   */
+  public static String serializeToString(Macaroon base, Macaroon attenuated) throws IllegalArgumentException {
+    return Base64.encodeUrlSafeToString(serialize(base, attenuated));
+  }
+
+  /**
+   * Writes the delta, or only sums up its size, when there's no buffer.
+   *
+   * @return the length of the delta
+   */
+  private static int writeDelta(byte[] out, Macaroon base, int from, Macaroon attenuated) {
+    int pos = 0;
+    if (out != null) {
+      out[pos] = DELTA_VERSION;
+      System.arraycopy(fingerprint(base), 0, out, 1, FINGERPRINT_BYTES);
+    }
+    pos += HEADER_LENGTH;
+    CaveatPacket[] caveats = attenuated.caveatPackets;
+    pos = writeVarint(out, pos, caveats.length - from);
+    for (int i = from; i < caveats.length; i++) {
+      if (out != null) out[pos] = (byte) typeCode(caveats[i].type);
+      pos = writeBytes(out, pos + 1, caveats[i].rawValue);
+    }
+    return writeBytes(out, pos, attenuated.signatureBytes);
+  }
+
+  private static int typeCode(Type type) {
+    switch (type) {
+      case cl:
+        return V2_FIELD_LOCATION;
+      case cid:
+        return V2_FIELD_IDENTIFIER;
+      case vid:
+        return V2_FIELD_VID;
+      default:
+        throw new IllegalArgumentException("Caveats of type " + type + " can't be sent in a delta.");
+    }
+  }
+
+  private static Type type(int code) {
+    switch (code) {
+      case V2_FIELD_LOCATION:
+        return Type.cl;
+      case V2_FIELD_IDENTIFIER:
+        return Type.cid;
+      case V2_FIELD_VID:
+        return Type.vid;
+      default:
+        throw new NotDeSerializableException("Couldn't deserialize delta. Invalid caveat type " + code + ".");
+    }
+  }
+
+  private static int writeBytes(byte[] out, int pos, byte[] value) {
+    pos = writeVarint(out, pos, value.length);
+    if (out != null) System.arraycopy(value, 0, out, pos, value.length);
+    return pos + value.length;
+  }
+
+  private static CaveatPacket[] caveats(Macaroon macaroon) {
+    return macaroon.caveatPackets != null ? macaroon.caveatPackets : new CaveatPacket[0];
+  }
+
+  /**
+   * @return the fingerprint of the delta's base
+   * @throws NotDeSerializableException when it's not a delta
+   */
+  static ByteBuffer fingerprintOf(byte[] delta, int offset, int length) throws NotDeSerializableException {
+    if (length < HEADER_LENGTH || delta[offset] != DELTA_VERSION) {
+      throw new NotDeSerializableException("Couldn't deserialize delta. Unsupported delta version or too short.");
+    }
+    return ByteBuffer.wrap(Arrays.copyOfRange(delta, offset + 1, offset + HEADER_LENGTH));
+  }
+
+  /**
+   * @param base the delta's base, see {@link #fingerprintOf(byte[], int, int)}
+   * @return the attenuated macaroon, with the base's version
+   * @throws NotDeSerializableException when the delta is malformed
+   */
+  static Macaroon deserialize(Macaroon base, byte[] delta, int offset, int length) throws NotDeSerializableException {
+    DeltaReader reader = new DeltaReader(delta, offset + HEADER_LENGTH, offset + length);
+    CaveatPacket[] baseCaveats = caveats(base);
+    int count = reader.readVarint();
+    if (count > reader.end - reader.pos) {
+      throw new NotDeSerializableException("Couldn't deserialize delta. Found " + count + " caveats, but only " + (reader.end - reader.pos) + " bytes.");
+    }
+    CaveatPacket[] caveats = Arrays.copyOf(baseCaveats, baseCaveats.length + count);
+    for (int i = baseCaveats.length; i < caveats.length; i++) {
+      Type type = type(reader.readByte());
+      caveats[i] = new CaveatPacket(type, reader.readBytes());
+    }
+    byte[] signature = reader.readBytes();
+    if (reader.pos != reader.end) {
+      throw new NotDeSerializableException("Couldn't deserialize delta. Found " + (reader.end - reader.pos) + " bytes after the signature.");
+    }
+    return new Macaroon(base.location, base.identifier, signature, caveats, base.version);
+  }
+
+  private static class DeltaReader {
+
+    private final byte[] buffer;
+    private final int end;
+    private int pos;
+
+    DeltaReader(byte[] buffer, int pos, int end) {
+      this.buffer = buffer;
+      this.pos = pos;
+      this.end = end;
+    }
+
+    byte[] readBytes() {
+      int length = readVarint();
+      if (length > end - pos) {
+        throw new NotDeSerializableException("Not enough data bytes available. Needed " + length + " bytes, but was only " + (end - pos));
+      }
+      pos += length;
+      return Arrays.copyOfRange(buffer, pos - length, pos);
+    }
+
+    int readByte() {
+      if (pos >= end) {
+        throw new NotDeSerializableException("Couldn't deserialize delta. Unexpected end of data.");
+      }
+      return buffer[pos++] & 0xff;
+    }
+
+    int readVarint() {
+      int value = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        int b = readByte();
+        value |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          if (value < 0) break;
+          return value;
+        }
+      }
+      throw new NotDeSerializableException("Couldn't deserialize delta. Invalid varint.");
+    }
+  }
+}
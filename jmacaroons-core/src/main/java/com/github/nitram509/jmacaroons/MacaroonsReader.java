@@ -0,0 +1,405 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * <p>
+ * Reads lots of serialized macaroons one at a time, so memory stays constant no matter how big the input is.
+ * </p>
+ * An input stream may contain a JSON array of macaroons, a sequence of JSON macaroons,
+ * or newline delimited macaroons in any format, see {@link MacaroonVersion.SerializationVersion}.
+ * <pre>{@code
+ * try (MacaroonsReader reader = MacaroonsReader.open(in)) {
+ *   while (reader.hasNext()) {
+ *     Macaroon macaroon = reader.next();
+ *   }
+ * }
+ * }</pre>
+ * Newline delimited files can be memory mapped and read in parallel by {@link #lines(Path)}.
+ * <pre>{@code
+ * try (Stream<Macaroon> macaroons = MacaroonsReader.lines(file)) {
+ *   long expired = macaroons.parallel().filter(m -> isExpired(m)).count();
+ * }
+ * }</pre>
+ * Malformed macaroons throw a {@link NotDeSerializableException}, when they are reached.
+ * A reader is not thread safe.
+ */
+public abstract class MacaroonsReader implements Iterator<Macaroon>, Closeable {
+
+  private static final int CHARACTERISTICS = Spliterator.ORDERED | Spliterator.NONNULL;
+
+  private Macaroon next;
+
+  MacaroonsReader() {
+  }
+
+  /**
+   * @param in serialized macaroons, the format is detected by the first non whitespace byte
+   * @return a reader, which closes the stream, when closed
+   * @throws NotDeSerializableException when the stream can't be read
+   */
+  public static MacaroonsReader open(InputStream in) throws NotDeSerializableException {
+    assert in != null;
+    BufferedInputStream buffered = new BufferedInputStream(in);
+    try {
+      // leading whitespace is consumed, only the first other byte is read again
+      int first;
+      do {
+        buffered.mark(1);
+        first = buffered.read();
+      } while (isWhitespace(first));
+      buffered.reset();
+      if (first == '[' || first == '{') {
+        return new JSONReader(MacaroonsDeSerializer.createJSONParser(buffered));
+      }
+      return new LineReader(buffered);
+    } catch (IOException e) {
+      throw new NotDeSerializableException(e);
+    }
+  }
+
+  /**
+   * Memory maps a file of newline delimited macaroons.
+   * The returned stream is sequential, but splits the file at line boundaries, when it's made {@link Stream#parallel()}.
+   * Close the stream to close the file.
+   *
+   * @param file newline delimited macaroons in any format, a line may hold a JSON array, too
+   * @return a stream of all macaroons in the file
+   * @throws IOException when the file can't be opened
+   */
+  public static Stream<Macaroon> lines(Path file) throws IOException {
+    final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    return StreamSupport.stream(new MappedLinesSpliterator(channel, 0, channel.size()), false)
+        .onClose(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              channel.close();
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+        });
+  }
+
+  /**
+   * @return a sequential stream of the remaining macaroons, which closes this reader, when closed
+   */
+  public Stream<Macaroon> stream() {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, CHARACTERISTICS), false)
+        .onClose(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              close();
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+        });
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null) {
+      try {
+        next = readNext();
+      } catch (IOException e) {
+        throw new NotDeSerializableException(e);
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public Macaroon next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    Macaroon macaroon = next;
+    next = null;
+    return macaroon;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("remove");
+  }
+
+  /**
+   * @return the next macaroon, or null at the end of the input
+   */
+  abstract Macaroon readNext() throws IOException;
+
+  private static boolean isWhitespace(int b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+
+  /* lines may end with '\r' */
+  private static int trimEnd(byte[] line, int start, int end) {
+    while (end > start && isWhitespace(line[end - 1])) end--;
+    return end;
+  }
+
+  private static int trimStart(byte[] line, int start, int end) {
+    while (start < end && isWhitespace(line[start])) start++;
+    return start;
+  }
+
+  /**
+   * JSON arrays and sequences of JSON values, at any mix.
+   */
+  static class JSONReader extends MacaroonsReader {
+
+    private final JsonParser parser;
+    private boolean inArray;
+
+    JSONReader(JsonParser parser) {
+      this.parser = parser;
+    }
+
+    @Override
+    Macaroon readNext() throws IOException {
+      for (JsonToken token; (token = parser.nextToken()) != null; ) {
+        if (!inArray && token == JsonToken.START_ARRAY) {
+          inArray = true;
+        } else if (inArray && token == JsonToken.END_ARRAY) {
+          inArray = false;
+        } else {
+          return MacaroonsDeSerializer.deserializeJSONFormat(parser);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+      parser.close();
+    }
+  }
+
+  /**
+   * Newline delimited macaroons, each line is de-serialized on its own, empty lines are skipped.
+   */
+  static class LineReader extends MacaroonsReader {
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[8192];
+    private int bufferPos;
+    private int bufferEnd;
+    private byte[] line = new byte[512];
+    private Iterator<Macaroon> pending = Collections.<Macaroon>emptyList().iterator();
+
+    LineReader(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    Macaroon readNext() throws IOException {
+      while (!pending.hasNext()) {
+        int length = readLine();
+        if (length < 0) return null;
+        int start = trimStart(line, 0, length);
+        int end = trimEnd(line, start, length);
+        if (start < end) {
+          pending = MacaroonsDeSerializer.deserialize(line, start, end - start).iterator();
+        }
+      }
+      return pending.next();
+    }
+
+    /* copies the next line into 'line', returns its length or -1 at the end of the stream */
+    private int readLine() throws IOException {
+      int length = 0;
+      for (; ; ) {
+        if (bufferPos == bufferEnd) {
+          bufferEnd = in.read(buffer, 0, buffer.length);
+          bufferPos = 0;
+          if (bufferEnd <= 0) {
+            bufferEnd = 0;
+            return length > 0 ? length : -1;
+          }
+        }
+        int start = bufferPos;
+        while (bufferPos < bufferEnd && buffer[bufferPos] != '\n') bufferPos++;
+        int chunk = bufferPos - start;
+        if (length + chunk > line.length) {
+          byte[] tmp = new byte[Math.max(2 * line.length, length + chunk)];
+          System.arraycopy(line, 0, tmp, 0, length);
+          line = tmp;
+        }
+        System.arraycopy(buffer, start, line, length, chunk);
+        length += chunk;
+        if (bufferPos < bufferEnd) {
+          bufferPos++;
+          return length;
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Walks the lines of a file region through memory mapped windows, and splits the region at line boundaries.
+   * Each split maps its own windows, the file channel is shared, since positional access is thread safe.
+   */
+  static class MappedLinesSpliterator implements Spliterator<Macaroon> {
+
+    static final int WINDOW_SIZE = 32 * 1024 * 1024;
+    static final int MIN_SPLIT_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private long pos;
+    private final long end;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private byte[] line = new byte[512];
+    private Iterator<Macaroon> pending = Collections.<Macaroon>emptyList().iterator();
+
+    MappedLinesSpliterator(FileChannel channel, long pos, long end) {
+      this.channel = channel;
+      this.pos = pos;
+      this.end = end;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Macaroon> action) {
+      while (!pending.hasNext()) {
+        if (pos >= end) return false;
+        int length = readLine();
+        int start = trimStart(line, 0, length);
+        int lineEnd = trimEnd(line, start, length);
+        if (start < lineEnd) {
+          List<Macaroon> macaroons = MacaroonsDeSerializer.deserialize(line, start, lineEnd - start);
+          pending = macaroons.iterator();
+        }
+      }
+      action.accept(pending.next());
+      return true;
+    }
+
+    /* copies the line at 'pos' into 'line' and moves behind its '\n' */
+    private int readLine() {
+      int windowSize = WINDOW_SIZE;
+      for (; ; ) {
+        if (window == null || pos < windowStart || pos >= windowStart + window.limit()) {
+          map(pos, windowSize);
+        }
+        int from = (int) (pos - windowStart);
+        int limit = window.limit();
+        int i = from;
+        while (i < limit && window.get(i) != '\n') i++;
+        boolean complete = i < limit || windowStart + limit >= end;
+        if (!complete) {
+          if (windowSize == Integer.MAX_VALUE) {
+            throw new NotDeSerializableException("Line at position " + pos + " is longer than " + Integer.MAX_VALUE + " bytes.");
+          }
+          windowSize = (int) Math.min(Integer.MAX_VALUE, 2L * windowSize);
+          window = null;
+          continue;
+        }
+        int length = i - from;
+        if (line.length < length) {
+          line = new byte[Math.max(2 * line.length, length)];
+        }
+        ByteBuffer slice = window.duplicate();
+        slice.position(from);
+        slice.get(line, 0, length);
+        pos += length + (i < limit ? 1 : 0);
+        return length;
+      }
+    }
+
+    private void map(long position, int size) {
+      try {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size, end - position));
+        windowStart = position;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public Spliterator<Macaroon> trySplit() {
+      // the prefix must not be split off, while macaroons of the current line are still pending
+      if (pending.hasNext() || end - pos < 2 * MIN_SPLIT_SIZE) return null;
+      long lineStart = nextLineStart(pos + (end - pos) / 2);
+      if (lineStart >= end) return null;
+      MappedLinesSpliterator prefix = new MappedLinesSpliterator(channel, pos, lineStart);
+      pos = lineStart;
+      window = null;
+      return prefix;
+    }
+
+    /* the position after the next '\n' at or after the given position */
+    private long nextLineStart(long position) {
+      ByteBuffer buffer = ByteBuffer.allocate(4096);
+      try {
+        while (position < end) {
+          buffer.clear();
+          int read = channel.read(buffer, position);
+          if (read <= 0) return end;
+          for (int i = 0; i < read; i++) {
+            if (buffer.get(i) == '\n') return position + i + 1;
+          }
+          position += read;
+        }
+        return end;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * @return the remaining bytes, as an estimate, which shrinks with every split
+     */
+    @Override
+    public long estimateSize() {
+      return end - pos;
+    }
+
+    @Override
+    public int characteristics() {
+      return CHARACTERISTICS;
+    }
+  }
+}
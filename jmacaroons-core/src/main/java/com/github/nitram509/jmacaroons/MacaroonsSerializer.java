@@ -16,18 +16,23 @@
 
 package com.github.nitram509.jmacaroons;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.github.nitram509.jmacaroons.util.Base64;
 import com.github.nitram509.jmacaroons.util.UTF8;
 
-import java.util.ArrayList;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import static com.github.nitram509.jmacaroons.CaveatPacket.Type;
 import static com.github.nitram509.jmacaroons.MacaroonsConstants.*;
-import static com.github.nitram509.jmacaroons.util.ArrayTools.flattenByteArray;
 
 class MacaroonsSerializer {
 
@@ -37,7 +42,9 @@ class MacaroonsSerializer {
           '8', '9', 'a', 'b',
           'c', 'd', 'e', 'f'};
 
-  private static ObjectMapper mapper = new ObjectMapper();
+  private static final byte[][] TYPE_NAMES = typeNames();
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
 
   /**
    * Serialize a given {@link Macaroon} in the {@link MacaroonVersion.SerializationVersion#V1_BINARY} format.
@@ -62,6 +69,8 @@ class MacaroonsSerializer {
       switch (version) {
           case V1_BINARY:
               return serializeV1Binary(macaroon);
+          case V2_BINARY:
+              return serializeV2Binary(macaroon);
           case V2_JSON:
               return serializeV2JSON(macaroon);
           default:
@@ -84,6 +93,11 @@ class MacaroonsSerializer {
                   throw new IllegalArgumentException("Cannot serialize multiple V1 Binary Macaroons");
               }
               return serializeV1Binary(macaroons.get(0));
+          case V2_BINARY:
+              if (macaroons.size() > 1) {
+                  throw new IllegalArgumentException("Cannot serialize multiple V2 Binary Macaroons");
+              }
+              return serializeV2Binary(macaroons.get(0));
           case V2_JSON:
               return serializeMaybeV2Array(macaroons);
           default:
@@ -91,131 +105,187 @@ class MacaroonsSerializer {
       }
   }
 
+  /**
+   * Serialize a {@link Macaroon} in the specified {@link MacaroonVersion.SerializationVersion} format,
+   * straight into the given stream, as ASCII (binary formats) or UTF-8 (JSON) bytes.
+   * The stream is not closed.
+   *
+   * @param macaroon - {@link Macaroon} to serialize.
+   * @param version - {@link MacaroonVersion.SerializationVersion} to use for serializing.
+   * @param out - the stream to write to.
+   * @throws IOException when writing to the stream fails
+   */
+  public static void serialize(Macaroon macaroon, MacaroonVersion.SerializationVersion version, OutputStream out) throws IOException {
+    byte[] packets = serializeBinaryPackets(macaroon, version);
+    if (packets != null) {
+      byte[] encoded = new byte[Base64.encodedLengthUrlSafe(packets.length)];
+      Base64.encodeUrlSafe(packets, 0, packets.length, encoded, 0);
+      out.write(encoded);
+      return;
+    }
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+      writeV2JSON(generator, macaroon);
+    }
+  }
+
+  /**
+   * Serialize a {@link Macaroon} in the specified {@link MacaroonVersion.SerializationVersion} format,
+   * straight into the given buffer, as ASCII (binary formats) or UTF-8 (JSON) bytes.
+   * Binary formats are Base64 encoded right into the buffer's array, if it has one.
+   *
+   * @param macaroon - {@link Macaroon} to serialize.
+   * @param version - {@link MacaroonVersion.SerializationVersion} to use for serializing.
+   * @param out - the buffer to write to, its position is advanced by the number of bytes written.
+   * @return - the number of bytes written
+   * @throws BufferOverflowException when there's not enough room left in the buffer, nothing is written then
+   */
+  public static int serialize(Macaroon macaroon, MacaroonVersion.SerializationVersion version, ByteBuffer out) {
+    if (version == MacaroonVersion.SerializationVersion.V1_BINARY && out.hasArray()) {
+      byte[] location = v1Location(macaroon);
+      byte[] identifier = macaroon.identifier.getBytes(IDENTIFIER_CHARSET);
+      int length = writeV1Binary(null, 0, location, identifier, macaroon);
+      int encodedLength = Base64.encodedLengthUrlSafe(length);
+      if (out.remaining() < encodedLength) throw new BufferOverflowException();
+      encodeV1BinaryInPlace(out.array(), out.arrayOffset() + out.position(), length, location, identifier, macaroon);
+      out.position(out.position() + encodedLength);
+      return encodedLength;
+    }
+    byte[] packets = serializeBinaryPackets(macaroon, version);
+    if (packets != null) {
+      int length = Base64.encodedLengthUrlSafe(packets.length);
+      if (out.remaining() < length) throw new BufferOverflowException();
+      if (out.hasArray()) {
+        Base64.encodeUrlSafe(packets, 0, packets.length, out.array(), out.arrayOffset() + out.position());
+        out.position(out.position() + length);
+      } else {
+        byte[] encoded = new byte[length];
+        Base64.encodeUrlSafe(packets, 0, packets.length, encoded, 0);
+        out.put(encoded);
+      }
+      return length;
+    }
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(json, JsonEncoding.UTF8)) {
+      writeV2JSON(generator, macaroon);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (out.remaining() < json.size()) throw new BufferOverflowException();
+    out.put(json.toByteArray());
+    return json.size();
+  }
+
+  /**
+   * @return the binary packets, not yet Base64 encoded, or null for {@link MacaroonVersion.SerializationVersion#V2_JSON}
+   */
+  private static byte[] serializeBinaryPackets(Macaroon macaroon, MacaroonVersion.SerializationVersion version) {
+    switch (version) {
+      case V1_BINARY:
+        return serializeV1BinaryPackets(macaroon);
+      case V2_BINARY:
+        return serializeV2BinaryPackets(macaroon);
+      case V2_JSON:
+        return null;
+      default:
+        throw new IllegalArgumentException(String.format("Cannot serialize to version: %s", version));
+    }
+  }
+
   private static String serializeMaybeV2Array(List<Macaroon> macaroons) {
-      return macaroons.stream()
-              .map(MacaroonsSerializer::serializeV2JSON)
-              .collect(Collectors.joining(",", "[", "]"));
+      StringWriter out = new StringWriter();
+      try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+          generator.writeStartArray();
+          for (Macaroon macaroon : macaroons) {
+              writeV2JSON(generator, macaroon);
+          }
+          generator.writeEndArray();
+      } catch (IOException e) {
+          throw new RuntimeException(e);
+      }
+      return out.toString();
   }
 
     private static String serializeV2JSON(Macaroon macaroon) {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            writeV2JSON(generator, macaroon);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
 
-        final MacaroonJSONV2 serialized = new MacaroonJSONV2();
+    /**
+     * Writes the fields in the order v, l, i, i64, c, s, s64, so that we can compare at least a part of the base64 encoding.
+     * Empty fields are left out.
+     */
+    private static void writeV2JSON(JsonGenerator generator, Macaroon macaroon) throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField("v", 2);
 
         // For each element determine whether or not we need to base64 encode the string, before serializing it.
-        serialized.setLocation(macaroon.location);
+        writeNonEmptyField(generator, "l", macaroon.location);
 
         // Identifier
-        if (UTF8.validUTF8(macaroon.identifier.getBytes(IDENTIFIER_CHARSET))) {
-            serialized.setIdentifier(macaroon.identifier);
+        byte[] identifier = macaroon.identifier.getBytes(IDENTIFIER_CHARSET);
+        if (UTF8.validUTF8(identifier)) {
+            writeNonEmptyField(generator, "i", macaroon.identifier);
         } else {
-            serialized.setIdentifier64(Base64.encodeUrlSafeToString(macaroon.identifier.getBytes(IDENTIFIER_CHARSET)));
-        }
-
-        // Signature
-        if (UTF8.validUTF8(macaroon.signatureBytes)) {
-            serialized.setSignature(macaroon.signature);
-        } else {
-            serialized.setSignature64(Base64.encodeUrlSafeToString(macaroon.signatureBytes));
+            writeNonEmptyField(generator, "i64", Base64.encodeUrlSafeToString(identifier));
         }
 
         // Caveats
-        // Initialize the caveat array
 //      A caveat can have up to three packets.
 //      First-party caveats only have a cid field.
 //      Third-party caveats can have an empty location.
-
         if (macaroon.caveatPackets.length > 0) {
-            final List<MacaroonJSONV2.CaveatJSONV2> caveats = serializeCaveatsToJSON(macaroon.caveatPackets);
-            serialized.setCaveats(caveats);
+            generator.writeArrayFieldStart("c");
+            writeV2JSONCaveats(generator, macaroon.caveatPackets);
+            generator.writeEndArray();
         }
 
-        try {
-            return mapper.writeValueAsString(serialized);
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException(e);
+        // Signature
+        if (UTF8.validUTF8(macaroon.signatureBytes)) {
+            writeNonEmptyField(generator, "s", macaroon.signature);
+        } else {
+            writeNonEmptyField(generator, "s64", Base64.encodeUrlSafeToString(macaroon.signatureBytes));
         }
+        generator.writeEndObject();
     }
 
-  private static String  serializeV1Binary(Macaroon macaroon) {
-    List<byte[]> packets = new ArrayList<>( 3 + macaroon.caveatPackets.length );
-    packets.add(serialize_packet(Type.location, macaroon.location));
-    packets.add(serialize_packet(Type.identifier, macaroon.identifier));
-    for (CaveatPacket caveatPacket : macaroon.caveatPackets) {
-      packets.add(serialize_packet(caveatPacket.type, caveatPacket.rawValue));
-    }
-    packets.add(serialize_packet(Type.signature, macaroon.signatureBytes));
-    return Base64.encodeUrlSafeToString(flattenByteArray(packets));
-  }
-
-  private static byte[] serialize_packet(Type type, String data) {
-    return serialize_packet(type, data.getBytes(IDENTIFIER_CHARSET));
-  }
-
-  private static byte[] serialize_packet(Type type, byte[] data) {
-    String typname = type.name();
-    int packet_len = PACKET_PREFIX_LENGTH + typname.length() + KEY_VALUE_SEPARATOR_LEN + data.length + LINE_SEPARATOR_LEN;
-    byte[] packet = new byte[packet_len];
-    int offset = 0;
-
-    System.arraycopy(packet_header(packet_len), 0, packet, offset, PACKET_PREFIX_LENGTH);
-    offset += PACKET_PREFIX_LENGTH;
-
-    System.arraycopy(typname.getBytes(), 0, packet, offset, typname.length());
-    offset += typname.length();
-
-    packet[offset] = KEY_VALUE_SEPARATOR;
-    offset += KEY_VALUE_SEPARATOR_LEN;
-
-    System.arraycopy(data, 0, packet, offset, data.length);
-    offset += data.length;
-
-    packet[offset] = LINE_SEPARATOR;
-    return packet;
-  }
-
-  private static byte[] packet_header(int size) {
-    assert (size < 65536);
-    size = (size & 0xffff);
-    byte[] packet = new byte[PACKET_PREFIX_LENGTH];
-    packet[0] = HEX[(size >> 12) & 15];
-    packet[1] = HEX[(size >> 8) & 15];
-    packet[2] = HEX[(size >> 4) & 15];
-    packet[3] = HEX[(size) & 15];
-    return packet;
-  }
-
-    private static List<MacaroonJSONV2.CaveatJSONV2> serializeCaveatsToJSON(CaveatPacket[] packets) {
+    /**
+     * Writes one object per caveat, its fields in the order l, i64, v, v64.
+     */
+    private static void writeV2JSONCaveats(JsonGenerator generator, CaveatPacket[] packets) throws IOException {
         boolean seenID = false;
-        List<MacaroonJSONV2.CaveatJSONV2> caveats = new ArrayList<>();
-        MacaroonJSONV2.CaveatJSONV2 caveat = new MacaroonJSONV2.CaveatJSONV2();
+        String location = null;
+        String cid64 = null;
+        String vid = null;
+        String vid64 = null;
 
         for (final CaveatPacket packet : packets) {
             switch (packet.type) {
                 case cid: {
-                    // If we've seen the ID, load the caveat, and start over
+                    // If we've seen the ID, write the caveat, and start over
                     if (seenID) {
-                        caveats.add(caveat);
-                        caveat = new MacaroonJSONV2.CaveatJSONV2();
+                        writeV2JSONCaveat(generator, location, cid64, vid, vid64);
+                        location = vid = vid64 = null;
                     }
                     // IDs always need to be base64 encoded
-//                    if (validUTF8(packet.rawValue)) {
-//                        caveat.setCID64(packet.getValueAsText());
-//                    } else {
-                        caveat.setCID64(Base64.encodeUrlSafeToString(packet.getRawValue()));
-//                    }
+                    cid64 = Base64.encodeUrlSafeToString(packet.getRawValue());
                     seenID = true;
                     break;
                 }
                 case cl: {
-                    caveat.setLocation(packet.getValueAsText());
+                    location = packet.getValueAsText();
                     break;
                 }
 //                We need to do better handling of non-Base64 encoded data
                 case vid: {
                     if (UTF8.validUTF8(packet.rawValue)) {
-                        caveat.setVID(packet.getValueAsText());
+                        vid = packet.getValueAsText();
                     } else {
-                        caveat.setVID64(packet.getValueAsText());
+                        vid64 = packet.getValueAsText();
                     }
                     break;
                 }
@@ -223,7 +293,183 @@ class MacaroonsSerializer {
                     throw new IllegalArgumentException(String.format("Caveat cannot have field %s", packet.getType()));
             }
         }
-        caveats.add(caveat);
-        return caveats;
+        writeV2JSONCaveat(generator, location, cid64, vid, vid64);
+    }
+
+    private static void writeV2JSONCaveat(JsonGenerator generator, String location, String cid64, String vid, String vid64) throws IOException {
+        generator.writeStartObject();
+        writeNonEmptyField(generator, "l", location);
+        writeNonEmptyField(generator, "i64", cid64);
+        writeNonEmptyField(generator, "v", vid);
+        writeNonEmptyField(generator, "v64", vid64);
+        generator.writeEndObject();
+    }
+
+    private static void writeNonEmptyField(JsonGenerator generator, String name, String value) throws IOException {
+        if (value != null && !value.isEmpty()) {
+            generator.writeStringField(name, value);
+        }
+    }
+
+  /* V1 always has a location packet, a macaroon without location gets an empty one */
+  private static byte[] v1Location(Macaroon macaroon) {
+    return macaroon.location != null ? macaroon.location.getBytes(IDENTIFIER_CHARSET) : new byte[0];
+  }
+
+  private static String serializeV1Binary(Macaroon macaroon) {
+    byte[] location = v1Location(macaroon);
+    byte[] identifier = macaroon.identifier.getBytes(IDENTIFIER_CHARSET);
+    int length = writeV1Binary(null, 0, location, identifier, macaroon);
+    byte[] encoded = new byte[Base64.encodedLengthUrlSafe(length)];
+    encodeV1BinaryInPlace(encoded, 0, length, location, identifier, macaroon);
+    return new String(encoded, StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * @param macaroon - {@link Macaroon} to serialize.
+   * @return - the V1 binary packets, not yet Base64 encoded
+   */
+  static byte[] serializeV1BinaryPackets(Macaroon macaroon) {
+    byte[] location = v1Location(macaroon);
+    byte[] identifier = macaroon.identifier.getBytes(IDENTIFIER_CHARSET);
+    byte[] packets = new byte[writeV1Binary(null, 0, location, identifier, macaroon)];
+    writeV1Binary(packets, 0, location, identifier, macaroon);
+    return packets;
+  }
+
+  /**
+   * The packets are written to the tail of the encoded range first, then Base64 encoded forward into the same range.
+   * The encoder writes 4 bytes for every 3 bytes read, which never overtakes the unread packets,
+   * since they start at least a third of their length behind.
+   *
+   * @return the encoded length
+   */
+  private static int encodeV1BinaryInPlace(byte[] out, int offset, int length, byte[] location, byte[] identifier, Macaroon macaroon) {
+    int encodedLength = Base64.encodedLengthUrlSafe(length);
+    int packetsOffset = offset + encodedLength - length;
+    writeV1Binary(out, packetsOffset, location, identifier, macaroon);
+    return Base64.encodeUrlSafe(out, packetsOffset, length, out, offset);
+  }
+
+  /**
+   * Writes all packets in the V1 binary format, or only sums up their size, when there's no buffer.
+   *
+   * @return the position after the last packet
+   */
+  private static int writeV1Binary(byte[] out, int pos, byte[] location, byte[] identifier, Macaroon macaroon) {
+    pos = writeV1Packet(out, pos, Type.location, location);
+    pos = writeV1Packet(out, pos, Type.identifier, identifier);
+    for (CaveatPacket caveatPacket : macaroon.caveatPackets) {
+      pos = writeV1Packet(out, pos, caveatPacket.type, caveatPacket.rawValue);
     }
+    return writeV1Packet(out, pos, Type.signature, macaroon.signatureBytes);
+  }
+
+  private static int writeV1Packet(byte[] out, int pos, Type type, byte[] data) {
+    byte[] typname = TYPE_NAMES[type.ordinal()];
+    int packet_len = PACKET_PREFIX_LENGTH + typname.length + KEY_VALUE_SEPARATOR_LEN + data.length + LINE_SEPARATOR_LEN;
+    if (out == null) return pos + packet_len;
+
+    assert (packet_len < 65536);
+    int size = (packet_len & 0xffff);
+    out[pos++] = HEX[(size >> 12) & 15];
+    out[pos++] = HEX[(size >> 8) & 15];
+    out[pos++] = HEX[(size >> 4) & 15];
+    out[pos++] = HEX[(size) & 15];
+
+    System.arraycopy(typname, 0, out, pos, typname.length);
+    pos += typname.length;
+
+    out[pos] = KEY_VALUE_SEPARATOR;
+    pos += KEY_VALUE_SEPARATOR_LEN;
+
+    System.arraycopy(data, 0, out, pos, data.length);
+    pos += data.length;
+
+    out[pos] = LINE_SEPARATOR;
+    return pos + LINE_SEPARATOR_LEN;
+  }
+
+  private static String serializeV2Binary(Macaroon macaroon) {
+    return Base64.encodeUrlSafeToString(serializeV2BinaryPackets(macaroon));
+  }
+
+  /**
+   * Encodes a macaroon in the V2 binary format.
+   * The same routine runs twice, first without a buffer to sum up the exact size, then to fill the buffer.
+   *
+   * @param macaroon - {@link Macaroon} to serialize.
+   * @return - the V2 binary encoding, not yet Base64 encoded
+   * @throws IllegalArgumentException when a caveat packet doesn't belong to a caveat identifier
+   */
+  static byte[] serializeV2BinaryPackets(Macaroon macaroon) {
+    byte[] location = macaroon.location != null ? macaroon.location.getBytes(IDENTIFIER_CHARSET) : null;
+    byte[] identifier = macaroon.identifier.getBytes(IDENTIFIER_CHARSET);
+    byte[] packets = new byte[writeV2Binary(null, location, identifier, macaroon)];
+    writeV2Binary(packets, location, identifier, macaroon);
+    return packets;
+  }
+
+  private static int writeV2Binary(byte[] out, byte[] location, byte[] identifier, Macaroon macaroon) {
+    int pos = 0;
+    if (out != null) out[pos] = V2_BINARY_VERSION;
+    pos++;
+    if (location != null) pos = writeV2Field(out, pos, V2_FIELD_LOCATION, location);
+    pos = writeV2Field(out, pos, V2_FIELD_IDENTIFIER, identifier);
+    pos = writeV2EOS(out, pos);
+    CaveatPacket[] caveats = macaroon.caveatPackets;
+    for (int i = 0; i < caveats.length; ) {
+      if (caveats[i].type != Type.cid) {
+        throw new IllegalArgumentException(String.format("Caveat packet %s has no preceding caveat identifier", caveats[i].type));
+      }
+      CaveatPacket cid = caveats[i++];
+      CaveatPacket vid = null;
+      CaveatPacket cl = null;
+      for (; i < caveats.length && caveats[i].type != Type.cid; i++) {
+        if (caveats[i].type == Type.vid && vid == null) {
+          vid = caveats[i];
+        } else if (caveats[i].type == Type.cl && cl == null) {
+          cl = caveats[i];
+        } else {
+          throw new IllegalArgumentException(String.format("Caveat cannot have field %s", caveats[i].type));
+        }
+      }
+      if (cl != null) pos = writeV2Field(out, pos, V2_FIELD_LOCATION, cl.rawValue);
+      pos = writeV2Field(out, pos, V2_FIELD_IDENTIFIER, cid.rawValue);
+      if (vid != null) pos = writeV2Field(out, pos, V2_FIELD_VID, vid.rawValue);
+      pos = writeV2EOS(out, pos);
+    }
+    pos = writeV2EOS(out, pos);
+    return writeV2Field(out, pos, V2_FIELD_SIGNATURE, macaroon.signatureBytes);
+  }
+
+  private static int writeV2Field(byte[] out, int pos, int fieldType, byte[] data) {
+    pos = writeVarint(out, pos, fieldType);
+    pos = writeVarint(out, pos, data.length);
+    if (out != null) System.arraycopy(data, 0, out, pos, data.length);
+    return pos + data.length;
+  }
+
+  private static int writeV2EOS(byte[] out, int pos) {
+    return writeVarint(out, pos, V2_FIELD_EOS);
+  }
+
+  static int writeVarint(byte[] out, int pos, int value) {
+    while ((value & ~0x7f) != 0) {
+      if (out != null) out[pos] = (byte) ((value & 0x7f) | 0x80);
+      pos++;
+      value >>>= 7;
+    }
+    if (out != null) out[pos] = (byte) value;
+    return pos + 1;
+  }
+
+  private static byte[][] typeNames() {
+    Type[] types = Type.values();
+    byte[][] names = new byte[types.length][];
+    for (Type type : types) {
+      names[type.ordinal()] = type.name().getBytes(StandardCharsets.US_ASCII);
+    }
+    return names;
+  }
 }
@@ -16,9 +16,13 @@
 
 package com.github.nitram509.jmacaroons;
 
+import com.github.nitram509.jmacaroons.util.CaveatBytes;
+import com.github.nitram509.jmacaroons.util.UTF8;
+
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static com.github.nitram509.jmacaroons.CaveatPacket.Type;
@@ -29,13 +33,75 @@ import static com.github.nitram509.jmacaroons.util.ArrayTools.containsElement;
 
 public class MacaroonsVerifier {
 
-  private String[] predicates = new String[0];
+  /* the exact caveats, as UTF-8 bytes */
+  private byte[][] predicates = new byte[0][];
+  /* the exact caveats, which only match a decoded caveat, since they aren't well formed */
+  private String[] textPredicates = new String[0];
   private List<Macaroon> boundMacaroons = new ArrayList<>(3);
   private GeneralCaveatVerifier[] generalCaveatVerifiers = new GeneralCaveatVerifier[0];
-  private final Macaroon macaroon;
+  private RawCaveatVerifier[] rawCaveatVerifiers = new RawCaveatVerifier[0];
+  private ContextualVerifier<?>[] contextualCaveatVerifiers = new ContextualVerifier<?>[0];
+  private VerificationHook[] hooks = new VerificationHook[0];
+  private Macaroon macaroon;
+
+  /* a serialized macaroon, which is verified without building a Macaroon object */
+  private final MacaroonView view;
+
+  /* a base of the macaroon with first party caveats only, whose HMAC chain is known, see MacaroonsBaseCache */
+  private Macaroon knownBase;
+  private byte[] knownBaseIdentifierSignature;
 
   public MacaroonsVerifier(Macaroon macaroon) {
     this.macaroon = macaroon;
+    this.view = null;
+  }
+
+  /**
+   * Verifies a macaroon, which starts with all caveats of a trusted base macaroon.
+   * The base's caveats must be satisfied, but aren't hashed, the chain continues at the base's signature.
+   *
+   * @param macaroon                 the macaroon to verify
+   * @param knownBase                trusted base, with first party caveats only
+   * @param baseIdentifierSignature  HMAC of the base's identifier with the derived key
+   */
+  MacaroonsVerifier(Macaroon macaroon, Macaroon knownBase, byte[] baseIdentifierSignature) {
+    this(macaroon);
+    this.knownBase = knownBase;
+    this.knownBaseIdentifierSignature = baseIdentifierSignature;
+  }
+
+  /**
+   * Verifies a serialized macaroon.
+   * A macaroon in the {@link MacaroonVersion.SerializationVersion#V1_BINARY} or {@link MacaroonVersion.SerializationVersion#V2_BINARY} format is verified in a single pass
+   * over its packets, which feeds the caveats straight into the HMAC chain.
+   * The {@link Macaroon} object is only built, when {@link #getMacaroon()} asks for it.
+   * Other formats are de-serialized as usual.
+   *
+   * @param serializedMacaroon serializedMacaroon, as created by {@link Macaroon#serialize()}
+   * @throws com.github.nitram509.jmacaroons.NotDeSerializableException when serialized macaroon is not valid base64, length is to short or contains invalid packet data
+   */
+  public MacaroonsVerifier(String serializedMacaroon) throws NotDeSerializableException {
+    byte[] packets = MacaroonsDeSerializer.decodeBinaryPackets(serializedMacaroon);
+    if (packets == null) {
+      List<Macaroon> macaroons = MacaroonsDeSerializer.deserialize(serializedMacaroon);
+      if (macaroons.size() != 1) {
+        throw new NotDeSerializableException("Expected exactly one serialized macaroon, but found " + macaroons.size());
+      }
+      this.macaroon = macaroons.get(0);
+      this.view = null;
+    } else {
+      this.view = MacaroonView.of(packets, 0, packets.length);
+    }
+  }
+
+  /**
+   * Verifies the macaroon behind a view, see {@link #MacaroonsVerifier(String)}.
+   *
+   * @param view view of a serialized macaroon
+   */
+  public MacaroonsVerifier(MacaroonView view) {
+    assert view != null;
+    this.view = view;
   }
 
   /**
@@ -58,10 +124,10 @@ public class MacaroonsVerifier {
    */
   public void assertIsValid(byte[] secret) throws MacaroonValidationException, GeneralSecurityRuntimeException {
     try {
-      VerificationResult result = isValid_verify_raw(macaroon, secret);
+      VerificationResult result = isValid_verify_raw(secret);
       if (result.fail) {
         String msg = result.failMessage != null ? result.failMessage : "This macaroon isn't valid.";
-        throw new MacaroonValidationException(msg, macaroon);
+        throw new MacaroonValidationException(msg, getMacaroon());
       }
     } catch (InvalidKeyException | NoSuchAlgorithmException e) {
       throw new GeneralSecurityRuntimeException(e);
@@ -88,18 +154,37 @@ public class MacaroonsVerifier {
    */
   public boolean isValid(byte[] secret) throws GeneralSecurityRuntimeException {
     try {
-      return !isValid_verify_raw(macaroon, secret).fail;
+      return !isValid_verify_raw(secret).fail;
     } catch (InvalidKeyException | NoSuchAlgorithmException e) {
       throw new GeneralSecurityRuntimeException(e);
     }
   }
 
-  private VerificationResult isValid_verify_raw(Macaroon M, byte[] secret) throws NoSuchAlgorithmException, InvalidKeyException {
-    VerificationResult vresult = macaroon_verify_inner(M, secret);
-    if (!vresult.fail) {
-      vresult.fail = !safeEquals(vresult.csig, getMacaroon().signatureBytes);
-      if (vresult.fail) {
-        vresult = new VerificationResult("Verification failed. Signature doesn't match. Maybe the key was wrong OR some caveats aren't satisfied.");
+  private VerificationResult isValid_verify_raw(byte[] secret) throws NoSuchAlgorithmException, InvalidKeyException {
+    for (VerificationHook hook : hooks) {
+      hook.beforeVerification();
+    }
+    VerificationResult vresult;
+    if (view != null) {
+      vresult = macaroon_verify_view(secret);
+      if (!vresult.fail) {
+        vresult.fail = !safeEquals(vresult.csig, view.buffer, view.signatureOffset, view.signatureLength);
+      }
+    } else {
+      vresult = knownBase != null
+          ? macaroon_verify_known_base(secret)
+          : macaroon_verify_inner(macaroon, secret, macaroon.signatureBytes);
+      if (!vresult.fail) {
+        vresult.fail = !safeEquals(vresult.csig, macaroon.signatureBytes);
+      }
+    }
+    if (vresult.fail && vresult.failMessage == null) {
+      vresult = new VerificationResult("Verification failed. Signature doesn't match. Maybe the key was wrong OR some caveats aren't satisfied.");
+    }
+    // caveats of forged macaroons must not take effect
+    for (int i = 0; i < hooks.length && !vresult.fail; i++) {
+      if (!hooks[i].afterVerification()) {
+        vresult = new VerificationResult("Verification failed. A caveat isn't satisfied anymore, i.e. a nonce was used meanwhile.");
       }
     }
     return vresult;
@@ -110,21 +195,47 @@ public class MacaroonsVerifier {
    *
    * @param M - {@link Macaroon} to verify
    * @param key - {@link byte[]} derived (HMACed) macaroon root key
+   * @param rootSignature - {@link byte[]} signature of the macaroon, this verifier was created for
    * @return - {@link VerificationResult} whether or not the Macaroon is valid
    * @throws InvalidKeyException
    * @throws NoSuchAlgorithmException
    */
-  private VerificationResult macaroon_verify_inner(Macaroon M, byte[] key) throws InvalidKeyException, NoSuchAlgorithmException {
+  private VerificationResult macaroon_verify_inner(Macaroon M, byte[] key, byte[] rootSignature) throws InvalidKeyException, NoSuchAlgorithmException {
     byte[] csig = macaroon_hmac(key, M.identifier.getBytes(RAW_BYTE_CHARSET));
+    return macaroon_verify_caveats(M, 0, csig, rootSignature);
+  }
+
+  /**
+   * Same as {@link #macaroon_verify_inner(Macaroon, byte[], byte[])}, but the HMAC chain of the known base's caveats
+   * is not computed again. The identifier is still hashed, to make sure the key is right.
+   */
+  private VerificationResult macaroon_verify_known_base(byte[] key) throws InvalidKeyException, NoSuchAlgorithmException {
+    byte[] csig = macaroon_hmac(key, macaroon.identifier.getBytes(RAW_BYTE_CHARSET));
+    if (!safeEquals(csig, knownBaseIdentifierSignature)) {
+      return new VerificationResult((String) null);
+    }
+    int prefixLength = knownBase.caveatPackets != null ? knownBase.caveatPackets.length : 0;
+    for (int i = 0; i < prefixLength; i++) {
+      if (!satisfiesFirstParty(macaroon.caveatPackets[i])) {
+        return new VerificationResult((String) null);
+      }
+    }
+    return macaroon_verify_caveats(macaroon, prefixLength, knownBase.signatureBytes, macaroon.signatureBytes);
+  }
+
+  /**
+   * Continues the HMAC chain at the given caveat.
+   */
+  private VerificationResult macaroon_verify_caveats(Macaroon M, int from, byte[] csig, byte[] rootSignature) throws InvalidKeyException, NoSuchAlgorithmException {
     if (M.caveatPackets != null) {
       CaveatPacket[] caveatPackets = M.caveatPackets;
-      for (int i = 0; i < caveatPackets.length; i++) {
+      for (int i = from; i < caveatPackets.length; i++) {
         CaveatPacket caveat = caveatPackets[i];
         if (caveat == null) continue;
         if (caveat.type == Type.cl) continue;
         // If there's no VID caveat, then we're looking at a 1st party caveat, so run it directly through the verifyer
         if (!(caveat.type == Type.cid && caveatPackets[Math.min(i + 1, caveatPackets.length - 1)].type == Type.vid)) {
-          if (containsElement(predicates, caveat.getValueAsText()) || verifiesGeneral(caveat.getValueAsText())) {
+          if (satisfiesFirstParty(caveat)) {
             csig = macaroon_hmac(csig, caveat.rawValue);
           }
         } else {
@@ -135,12 +246,12 @@ public class MacaroonsVerifier {
             String msg = "Couldn't verify 3rd party macaroon, because no discharged macaroon was provided to the verifier.";
             return new VerificationResult(msg);
           }
-          if (!macaroon_verify_inner_3rd(boundMacaroon, caveat_vid, csig)) {
+          byte[] vdata = caveat_vid.rawValue;
+          if (!macaroon_verify_inner_3rd(boundMacaroon, vdata, 0, vdata.length, csig, rootSignature)) {
             String msg = "Couldn't verify 3rd party macaroon, identifier= " + boundMacaroon.identifier;
             return new VerificationResult(msg);
           }
           byte[] data = caveat.rawValue;
-          byte[] vdata = caveat_vid.rawValue;
           csig = macaroon_hash2(csig, vdata, data);
         }
       }
@@ -148,39 +259,149 @@ public class MacaroonsVerifier {
     return new VerificationResult(csig);
   }
 
+  /**
+   * Same as {@link #macaroon_verify_inner(Macaroon, byte[], byte[])}, but walks the packets
+   * of a serialized macaroon instead. Caveat values are hashed and matched as slices of the packet buffer,
+   * they only become {@link String}s when a {@link GeneralCaveatVerifier} has to look at them.
+   *
+   * @param key - {@link byte[]} derived (HMACed) macaroon root key
+   * @return - {@link VerificationResult} whether or not the Macaroon is valid
+   * @throws InvalidKeyException
+   * @throws NoSuchAlgorithmException
+   */
+  private VerificationResult macaroon_verify_view(byte[] key) throws InvalidKeyException, NoSuchAlgorithmException {
+    byte[] buffer = view.buffer;
+    byte[] csig;
+    if (UTF8.isASCII(buffer, view.identifierOffset, view.identifierLength)) {
+      csig = macaroon_hmac(key, buffer, view.identifierOffset, view.identifierLength);
+    } else {
+      // same bytes as Macaroon.identifier would provide
+      csig = macaroon_hmac(key, view.getIdentifier().getBytes(RAW_BYTE_CHARSET));
+    }
+    byte[] rootSignature = null;
+    int caveatCount = view.getCaveatCount();
+    for (int i = 0; i < caveatCount; i++) {
+      Type type = view.getCaveatType(i);
+      if (type == Type.cl) continue;
+      int offset = view.getCaveatOffset(i);
+      int length = view.getCaveatLength(i);
+      // If there's no VID caveat, then we're looking at a 1st party caveat, so run it directly through the verifyer
+      if (!(type == Type.cid && view.getCaveatType(Math.min(i + 1, caveatCount - 1)) == Type.vid)) {
+        if (type == Type.cid && UTF8.isASCII(buffer, offset, length)) {
+          if (satisfiesFirstParty(buffer, offset, length, null)) {
+            csig = macaroon_hmac(csig, buffer, offset, length);
+          }
+        } else {
+          CaveatPacket caveat = view.getCaveatPacket(i);
+          if (satisfiesFirstParty(caveat)) {
+            csig = macaroon_hmac(csig, caveat.rawValue);
+          }
+        }
+      } else {
+        i++;
+        Macaroon boundMacaroon = findBoundMacaroon(buffer, offset, length);
+        if (boundMacaroon == null) {
+          String msg = "Couldn't verify 3rd party macaroon, because no discharged macaroon was provided to the verifier.";
+          return new VerificationResult(msg);
+        }
+        if (rootSignature == null) {
+          rootSignature = view.getSignatureBytes();
+        }
+        int vidOffset = view.getCaveatOffset(i);
+        int vidLength = view.getCaveatLength(i);
+        if (!macaroon_verify_inner_3rd(boundMacaroon, buffer, vidOffset, vidLength, csig, rootSignature)) {
+          String msg = "Couldn't verify 3rd party macaroon, identifier= " + boundMacaroon.identifier;
+          return new VerificationResult(msg);
+        }
+        if (UTF8.isASCII(buffer, offset, length)) {
+          csig = macaroon_hash2(csig, buffer, vidOffset, vidLength, buffer, offset, length);
+        } else {
+          byte[] data = view.getCaveatPacket(i - 1).rawValue;
+          csig = macaroon_hash2(csig, buffer, vidOffset, vidLength, data, 0, data.length);
+        }
+      }
+    }
+    return new VerificationResult(csig);
+  }
+
+  private boolean satisfiesFirstParty(CaveatPacket caveat) {
+    byte[] raw = caveat.rawValue;
+    if (caveat.type == Type.cid) {
+      return satisfiesFirstParty(raw, 0, raw.length, caveat);
+    }
+    // the text of other packets isn't their raw value
+    return verifiesContextual(raw, 0, raw.length) || verifiesRaw(raw, 0, raw.length)
+        || containsElement(textPredicates, caveat.getValueAsText()) || containsPredicate(caveat.getValueAsText().getBytes(IDENTIFIER_CHARSET))
+        || verifiesGeneral(caveat.getValueAsText());
+  }
+
+  /**
+   * Checks the caveat's bytes first, the caveat is only decoded for {@link GeneralCaveatVerifier}s, which need a {@link String}.
+   *
+   * @param packet the caveat's packet, which caches the decoded caveat, may be null
+   */
+  private boolean satisfiesFirstParty(byte[] caveat, int offset, int length, CaveatPacket packet) {
+    if (verifiesContextual(caveat, offset, length) || verifiesRaw(caveat, offset, length) || containsPredicate(caveat, offset, length)) {
+      return true;
+    }
+    if (textPredicates.length == 0 && generalCaveatVerifiers.length == 0) return false;
+    String text = packet != null ? packet.getValueAsText() : new String(caveat, offset, length, IDENTIFIER_CHARSET);
+    return containsElement(textPredicates, text) || verifiesGeneral(text);
+  }
+
+  private boolean containsPredicate(byte[] caveat) {
+    return containsPredicate(caveat, 0, caveat.length);
+  }
+
+  private boolean containsPredicate(byte[] caveat, int offset, int length) {
+    for (byte[] predicate : predicates) {
+      if (CaveatBytes.equals(caveat, offset, length, predicate)) return true;
+    }
+    return false;
+  }
+
+  private static boolean latin1Equals(String s, byte[] bytes, int offset, int length) {
+    if (s.length() != length) return false;
+    for (int i = 0; i < length; i++) {
+      if (s.charAt(i) != (bytes[offset + i] & 0xff)) return false;
+    }
+    return true;
+  }
+
   /**
    * Verify that the Macaroon is discharged correctly
    *
    * @param M - {@link Macaroon} discharge Macaroon
-   * @param C - {@link CaveatPacket} Caveat VID packet
+   * @param vid_data - {@link byte[]} holding the caveat VID
+   * @param vid_offset - start of the caveat VID
+   * @param vid_length - length of the caveat VID
    * @param sig - {@link byte[]} HMACed root Macaroon ID and derived root key
+   * @param rootSignature - {@link byte[]} signature of the macaroon, this verifier was created for
    * @return - {@code true} Third party caveat is valid. {@code false} Caveat is invalid
    * @throws InvalidKeyException
    * @throws NoSuchAlgorithmException
    */
-  private boolean macaroon_verify_inner_3rd(Macaroon M, CaveatPacket C, byte[] sig) throws InvalidKeyException, NoSuchAlgorithmException {
+  private boolean macaroon_verify_inner_3rd(Macaroon M, byte[] vid_data, int vid_offset, int vid_length, byte[] sig, byte[] rootSignature) throws InvalidKeyException, NoSuchAlgorithmException {
     byte[] enc_plaintext = new byte[MACAROON_SECRET_TEXT_ZERO_BYTES + MACAROON_HASH_BYTES];
     byte[] enc_ciphertext = new byte[MACAROON_SECRET_BOX_ZERO_BYTES + MACAROON_HASH_BYTES + SECRET_BOX_OVERHEAD];
 
-    byte[] vid_data = C.rawValue;
-    assert vid_data.length == VID_NONCE_KEY_SZ;
+    assert vid_length == VID_NONCE_KEY_SZ;
     /*
      * the nonce is in the first MACAROON_SECRET_NONCE_BYTES
      * of the vid; the ciphertext is in the rest of it.
      */
     byte[] enc_nonce = new byte[MACAROON_SECRET_NONCE_BYTES];
-    System.arraycopy(vid_data, 0, enc_nonce, 0, MACAROON_SECRET_NONCE_BYTES);
+    System.arraycopy(vid_data, vid_offset, enc_nonce, 0, MACAROON_SECRET_NONCE_BYTES);
 
     /* fill in the ciphertext */
-    System.arraycopy(vid_data, MACAROON_SECRET_NONCE_BYTES, enc_ciphertext, MACAROON_SECRET_BOX_ZERO_BYTES, vid_data.length - MACAROON_SECRET_NONCE_BYTES);
+    System.arraycopy(vid_data, vid_offset + MACAROON_SECRET_NONCE_BYTES, enc_ciphertext, MACAROON_SECRET_BOX_ZERO_BYTES, vid_length - MACAROON_SECRET_NONCE_BYTES);
     boolean valid = 0 == macaroon_secretbox_open(sig, enc_nonce, enc_ciphertext, enc_plaintext);
 
     byte[] key = new byte[MACAROON_HASH_BYTES];
     System.arraycopy(enc_plaintext, MACAROON_SECRET_TEXT_ZERO_BYTES, key, 0, MACAROON_HASH_BYTES);
-    VerificationResult vresult = macaroon_verify_inner(M, key);
+    VerificationResult vresult = macaroon_verify_inner(M, key, rootSignature);
 
-    byte[] data = getMacaroon().signatureBytes;
-    byte[] csig = macaroon_bind(data, vresult.csig);
+    byte[] csig = macaroon_bind(rootSignature, vresult.csig);
 
     return valid && safeEquals(csig, M.signatureBytes);
   }
@@ -194,6 +415,15 @@ public class MacaroonsVerifier {
     return null;
   }
 
+  private Macaroon findBoundMacaroon(byte[] identifier, int offset, int length) {
+    for (Macaroon boundMacaroon : boundMacaroons) {
+      if (boundMacaroon.identifier != null && latin1Equals(boundMacaroon.identifier, identifier, offset, length)) {
+        return boundMacaroon;
+      }
+    }
+    return null;
+  }
+
   private boolean verifiesGeneral(String caveat) {
     boolean found = false;
     for (GeneralCaveatVerifier verifier : this.generalCaveatVerifiers) {
@@ -202,6 +432,21 @@ public class MacaroonsVerifier {
     return found;
   }
 
+  private boolean verifiesRaw(byte[] caveat, int offset, int length) {
+    boolean found = false;
+    for (RawCaveatVerifier verifier : this.rawCaveatVerifiers) {
+      found |= verifier.verifyCaveat(caveat, offset, length);
+    }
+    return found;
+  }
+
+  private boolean verifiesContextual(byte[] caveat, int offset, int length) {
+    for (ContextualVerifier<?> verifier : this.contextualCaveatVerifiers) {
+      if (verifier.verifyCaveat(caveat, offset, length)) return true;
+    }
+    return false;
+  }
+
   /**
    * Caveats like these are called "exact caveats" because there is exactly one way
    * to satisfy them.  Either the given caveat matches, or it doesn't.  At
@@ -215,7 +460,14 @@ public class MacaroonsVerifier {
    */
   public MacaroonsVerifier satisfyExact(String caveat) {
     if (caveat != null) {
-      this.predicates = appendToArray(this.predicates, caveat);
+      byte[] bytes = caveat.getBytes(IDENTIFIER_CHARSET);
+      // a decoded caveat never holds a replacement char, unless the caveat's bytes weren't well formed
+      if (caveat.indexOf('\uFFFD') < 0 && caveat.equals(new String(bytes, IDENTIFIER_CHARSET))) {
+        this.predicates = Arrays.copyOf(this.predicates, this.predicates.length + 1);
+        this.predicates[this.predicates.length - 1] = bytes;
+      } else {
+        this.textPredicates = appendToArray(this.textPredicates, caveat);
+      }
     }
     return this;
   }
@@ -242,21 +494,68 @@ public class MacaroonsVerifier {
    * There's no limit on the contents of a general caveat,
    * so long as the callback understands how to determine whether it is satisfied.
    * This technique is called "general caveats".
+   * A {@link RawCaveatVerifier} is handed the caveat's bytes, other verifiers get the decoded caveat.
+   * When the verifier is a {@link VerificationHook}, it's called before and after every verification.
    *
    * @param verifier verifier
    * @return this {@link com.github.nitram509.jmacaroons.MacaroonsVerifier}
    */
   public MacaroonsVerifier satisfyGeneral(GeneralCaveatVerifier verifier) {
-    if (verifier != null) {
+    if (verifier instanceof RawCaveatVerifier) {
+      this.rawCaveatVerifiers = Arrays.copyOf(this.rawCaveatVerifiers, this.rawCaveatVerifiers.length + 1);
+      this.rawCaveatVerifiers[this.rawCaveatVerifiers.length - 1] = (RawCaveatVerifier) verifier;
+    } else if (verifier != null) {
       this.generalCaveatVerifiers = appendToArray(this.generalCaveatVerifiers, verifier);
     }
+    if (verifier instanceof VerificationHook) {
+      this.hooks = Arrays.copyOf(this.hooks, this.hooks.length + 1);
+      this.hooks[this.hooks.length - 1] = (VerificationHook) verifier;
+    }
+    return this;
+  }
+
+  /**
+   * Same as {@link #satisfyGeneral(GeneralCaveatVerifier)}, but the verifier gets the caveat's raw bytes,
+   * which are never decoded for it, and the given context of the request.
+   * So the verifier itself may be a single instance, shared by all requests.
+   *
+   * @param verifier verifier
+   * @param context  context, handed to the verifier with every caveat, may be null
+   * @param <C>      type of the context
+   * @return this {@link com.github.nitram509.jmacaroons.MacaroonsVerifier}
+   */
+  public <C> MacaroonsVerifier satisfyGeneral(ContextualCaveatVerifier<C> verifier, C context) {
+    if (verifier != null) {
+      this.contextualCaveatVerifiers = Arrays.copyOf(this.contextualCaveatVerifiers, this.contextualCaveatVerifiers.length + 1);
+      this.contextualCaveatVerifiers[this.contextualCaveatVerifiers.length - 1] = new ContextualVerifier<>(verifier, context);
+    }
     return this;
   }
 
+  /**
+   * @return the verified macaroon, de-serialized on first access, when this verifier was created for a serialized macaroon
+   */
   public Macaroon getMacaroon() {
+    if (macaroon == null && view != null) {
+      macaroon = view.toMacaroon();
+    }
     return macaroon;
   }
 
+  private static class ContextualVerifier<C> {
+    final ContextualCaveatVerifier<C> verifier;
+    final C context;
+
+    ContextualVerifier(ContextualCaveatVerifier<C> verifier, C context) {
+      this.verifier = verifier;
+      this.context = context;
+    }
+
+    boolean verifyCaveat(byte[] caveat, int offset, int length) {
+      return verifier.verifyCaveat(caveat, offset, length, context);
+    }
+  }
+
   private static class VerificationResult {
     byte[] csig = null;
     boolean fail = false;
@@ -0,0 +1,634 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import static com.github.nitram509.jmacaroons.CaveatPacket.Type;
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.IDENTIFIER_CHARSET;
+
+/**
+ * <p>
+ * Keeps lots of macaroons outside of the Java heap, so they don't add to garbage collection pauses.
+ * </p>
+ * Macaroons are stored in their V1 or V2 binary format, in segments of direct {@link ByteBuffer}s,
+ * and are looked up by their identifier.
+ * Every record carries a small table of where its location, identifier, signature and caveats are found,
+ * so {@link Entry} can hand them out as slices, without copying or parsing them again.
+ * The index is an open addressing hash table made of two primitive arrays.
+ * <p>
+ * Expired macaroons are not returned anymore. Their space, and the space of replaced or removed macaroons,
+ * is reclaimed by {@link #compact()}, which may run in the background, see {@link #scheduleCompaction(ScheduledExecutorService, long, TimeUnit)}.
+ * </p>
+ * <pre>{@code
+ * OffHeapMacaroonStore store = new OffHeapMacaroonStore(16 * 1024 * 1024);
+ * store.put(serialized, expiresAtMillis);
+ * byte[] signature = store.read(identifier, entry -> entry.getSignatureBytes());
+ * }</pre>
+ * This class is thread safe.
+ */
+public class OffHeapMacaroonStore implements Closeable {
+
+  /* record layout, all offsets are relative to the start of the record */
+  private static final int REC_LENGTH = 0;
+  private static final int REC_EXPIRES_AT = 4;
+  private static final int REC_HASH = 12;
+  private static final int REC_LIVE = 16;
+  private static final int REC_CAVEAT_COUNT = 17;
+  private static final int REC_LOCATION = 21;
+  private static final int REC_IDENTIFIER = 29;
+  private static final int REC_SIGNATURE = 37;
+  private static final int REC_CAVEATS = 45;
+  /* per caveat: type ordinal, value offset, value length */
+  private static final int CAVEAT_ENTRY_SIZE = 9;
+
+  /* index slots, which are empty or whose entry got removed */
+  private static final long EMPTY = 0;
+  private static final long DELETED = -1;
+
+  private static final Type[] TYPES = Type.values();
+
+  private final int segmentSize;
+  private final Clock clock;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final List<ByteBuffer> segments = new ArrayList<>();
+  private int[] segmentEnd = new int[8];
+  private int[] segmentLiveBytes = new int[8];
+  private final ArrayDeque<Integer> freeSegments = new ArrayDeque<>();
+  private int writeSegment = -1;
+
+  /* address = (segment << 32 | offset) + 1, so that 0 means empty */
+  private long[] addresses = new long[64];
+  private int[] hashes = new int[64];
+  private int size;
+  private int usedSlots;
+
+  private boolean closed;
+
+  /**
+   * @param segmentSize size of each direct buffer segment in bytes, limits the size of a single macaroon
+   */
+  public OffHeapMacaroonStore(int segmentSize) {
+    this(segmentSize, Clock.systemUTC());
+  }
+
+  /**
+   * @param segmentSize size of each direct buffer segment in bytes, limits the size of a single macaroon
+   * @param clock       clock to decide whether a macaroon has expired
+   */
+  public OffHeapMacaroonStore(int segmentSize, Clock clock) {
+    assert clock != null;
+    if (segmentSize < REC_CAVEATS) {
+      throw new IllegalArgumentException("Segment size " + segmentSize + " is too small.");
+    }
+    this.segmentSize = segmentSize;
+    this.clock = clock;
+  }
+
+  /**
+   * Stores a macaroon, replacing any other macaroon with the same identifier.
+   * A JSON array of macaroons is stored as individual macaroons.
+   *
+   * @param serializedMacaroon serializedMacaroon
+   * @param expiresAtMillis    epoch millis, when the macaroon expires
+   * @throws com.github.nitram509.jmacaroons.NotDeSerializableException when serialized macaroon is not valid
+   */
+  public void put(String serializedMacaroon, long expiresAtMillis) throws NotDeSerializableException {
+    byte[] packets = MacaroonsDeSerializer.decodeBinaryPackets(serializedMacaroon);
+    if (packets == null) {
+      for (Macaroon macaroon : MacaroonsBuilder.deserialize(serializedMacaroon)) {
+        put(macaroon, expiresAtMillis);
+      }
+    } else {
+      put(MacaroonView.of(packets, 0, packets.length), expiresAtMillis);
+    }
+  }
+
+  /**
+   * Stores a macaroon, replacing any other macaroon with the same identifier.
+   * Macaroons of {@link MacaroonVersion#VERSION_2} are stored in the more compact V2 binary format.
+   *
+   * @param macaroon        macaroon
+   * @param expiresAtMillis epoch millis, when the macaroon expires
+   */
+  public void put(Macaroon macaroon, long expiresAtMillis) {
+    byte[] packets = macaroon.version == MacaroonVersion.VERSION_2
+        ? MacaroonsSerializer.serializeV2BinaryPackets(macaroon)
+        : MacaroonsSerializer.serializeV1BinaryPackets(macaroon);
+    put(MacaroonView.of(packets, 0, packets.length), expiresAtMillis);
+  }
+
+  private void put(MacaroonView view, long expiresAtMillis) {
+    int caveatCount = view.getCaveatCount();
+    int headerLength = REC_CAVEATS + caveatCount * CAVEAT_ENTRY_SIZE;
+    int recordLength = headerLength + view.length;
+    if (recordLength > segmentSize) {
+      throw new IllegalArgumentException("Macaroon of " + recordLength + " bytes doesn't fit into a segment of " + segmentSize + " bytes.");
+    }
+    // offsets within the record
+    int shift = headerLength - view.offset;
+    byte[] record = new byte[recordLength];
+    ByteBuffer header = ByteBuffer.wrap(record);
+    header.putInt(REC_LENGTH, recordLength);
+    header.putLong(REC_EXPIRES_AT, expiresAtMillis);
+    int hash = hash(view.buffer, view.identifierOffset, view.identifierLength);
+    header.putInt(REC_HASH, hash);
+    header.put(REC_LIVE, (byte) 1);
+    header.putInt(REC_CAVEAT_COUNT, caveatCount);
+    header.putInt(REC_LOCATION, view.locationOffset < 0 ? -1 : view.locationOffset + shift);
+    header.putInt(REC_LOCATION + 4, view.locationLength);
+    header.putInt(REC_IDENTIFIER, view.identifierOffset + shift);
+    header.putInt(REC_IDENTIFIER + 4, view.identifierLength);
+    header.putInt(REC_SIGNATURE, view.signatureOffset + shift);
+    header.putInt(REC_SIGNATURE + 4, view.signatureLength);
+    for (int i = 0; i < caveatCount; i++) {
+      int pos = REC_CAVEATS + i * CAVEAT_ENTRY_SIZE;
+      header.put(pos, (byte) view.getCaveatType(i).ordinal());
+      header.putInt(pos + 1, view.getCaveatOffset(i) + shift);
+      header.putInt(pos + 5, view.getCaveatLength(i));
+    }
+    System.arraycopy(view.buffer, view.offset, record, headerLength, view.length);
+
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      long address = append(record);
+      int slot = findSlot(view.buffer, view.identifierOffset, view.identifierLength, hash);
+      if (slot >= 0) {
+        markDead(addresses[slot]);
+        addresses[slot] = address;
+      } else {
+        insert(hash, address);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Reads a macaroon, without copying it onto the heap.
+   * The entry is only valid while the reader is running and must not be kept.
+   *
+   * @param identifier identifier of the macaroon
+   * @param reader     reader, which extracts whatever is needed from the entry
+   * @param <T>        result type
+   * @return the reader's result, or null if there's no such macaroon or it has expired
+   */
+  public <T> T read(String identifier, Function<Entry, T> reader) {
+    byte[] key = identifier.getBytes(IDENTIFIER_CHARSET);
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      int slot = findSlot(key, 0, key.length, hash(key, 0, key.length));
+      if (slot < 0) return null;
+      Entry entry = entry(addresses[slot]);
+      if (entry.getExpiresAt() <= clock.millis()) return null;
+      return reader.apply(entry);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @param identifier identifier of the macaroon
+   * @return a copy of the macaroon, or null if there's no such macaroon or it has expired
+   */
+  public Macaroon get(String identifier) {
+    return read(identifier, new Function<Entry, Macaroon>() {
+      @Override
+      public Macaroon apply(Entry entry) {
+        return entry.toMacaroon();
+      }
+    });
+  }
+
+  /**
+   * @param identifier identifier of the macaroon
+   * @return true, if the macaroon is stored and hasn't expired
+   */
+  public boolean contains(String identifier) {
+    return read(identifier, new Function<Entry, Boolean>() {
+      @Override
+      public Boolean apply(Entry entry) {
+        return Boolean.TRUE;
+      }
+    }) != null;
+  }
+
+  /**
+   * @param identifier identifier of the macaroon
+   * @return true, if there was such a macaroon
+   */
+  public boolean remove(String identifier) {
+    byte[] key = identifier.getBytes(IDENTIFIER_CHARSET);
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      int slot = findSlot(key, 0, key.length, hash(key, 0, key.length));
+      if (slot < 0) return false;
+      markDead(addresses[slot]);
+      addresses[slot] = DELETED;
+      size--;
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @return number of stored macaroons, including the expired ones, which weren't compacted yet
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return number of bytes in use by the segments, including the space of dead records
+   */
+  public long getUsedBytes() {
+    lock.readLock().lock();
+    try {
+      long used = 0;
+      for (int s = 0; s < segments.size(); s++) {
+        used += segmentEnd[s];
+      }
+      return used;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Drops expired macaroons and moves the live records out of segments, which are at least half empty.
+   * Those segments are reused afterwards.
+   * The store is locked for one segment at a time, so reads and writes go on in between.
+   */
+  public void compact() {
+    long now = clock.millis();
+    int segmentCount;
+    lock.readLock().lock();
+    try {
+      checkOpen();
+      segmentCount = segments.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+    for (int s = 0; s < segmentCount; s++) {
+      lock.writeLock().lock();
+      try {
+        checkOpen();
+        if (segmentEnd[s] == 0) continue;
+        dropExpired(s, now);
+        if (s != writeSegment && segmentLiveBytes[s] * 2 <= segmentEnd[s]) {
+          evacuate(s);
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+    }
+    lock.writeLock().lock();
+    try {
+      checkOpen();
+      if (usedSlots > size) {
+        rehash(addresses.length);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Runs {@link #compact()} regularly.
+   *
+   * @param executor executor
+   * @param period   time between two compactions
+   * @param unit     unit of the period
+   * @return the scheduled compaction, which may be cancelled
+   */
+  public ScheduledFuture<?> scheduleCompaction(ScheduledExecutorService executor, long period, TimeUnit unit) {
+    return executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        if (!isClosed()) {
+          compact();
+        }
+      }
+    }, period, period, unit);
+  }
+
+  /**
+   * Releases all segments. The store can't be used afterwards.
+   */
+  @Override
+  public void close() {
+    lock.writeLock().lock();
+    try {
+      closed = true;
+      segments.clear();
+      freeSegments.clear();
+      addresses = new long[0];
+      hashes = new int[0];
+      size = 0;
+      usedSlots = 0;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private boolean isClosed() {
+    lock.readLock().lock();
+    try {
+      return closed;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("The store is closed.");
+    }
+  }
+
+  private long append(byte[] record) {
+    if (writeSegment < 0 || segmentEnd[writeSegment] + record.length > segmentSize) {
+      writeSegment = nextSegment();
+    }
+    int offset = segmentEnd[writeSegment];
+    ByteBuffer target = segments.get(writeSegment).duplicate();
+    target.position(offset);
+    target.put(record);
+    segmentEnd[writeSegment] += record.length;
+    segmentLiveBytes[writeSegment] += record.length;
+    return address(writeSegment, offset);
+  }
+
+  private long append(ByteBuffer segment, int offset, int recordLength) {
+    byte[] record = new byte[recordLength];
+    ByteBuffer source = segment.duplicate();
+    source.position(offset);
+    source.get(record);
+    return append(record);
+  }
+
+  private int nextSegment() {
+    if (!freeSegments.isEmpty()) {
+      return freeSegments.poll();
+    }
+    int s = segments.size();
+    segments.add(ByteBuffer.allocateDirect(segmentSize));
+    if (s == segmentEnd.length) {
+      segmentEnd = Arrays.copyOf(segmentEnd, 2 * s);
+      segmentLiveBytes = Arrays.copyOf(segmentLiveBytes, 2 * s);
+    }
+    return s;
+  }
+
+  private void dropExpired(int s, long now) {
+    ByteBuffer segment = segments.get(s);
+    for (int offset = 0; offset < segmentEnd[s]; offset += segment.getInt(offset + REC_LENGTH)) {
+      if (segment.get(offset + REC_LIVE) != 0 && segment.getLong(offset + REC_EXPIRES_AT) <= now) {
+        long address = address(s, offset);
+        addresses[findSlot(segment.getInt(offset + REC_HASH), address)] = DELETED;
+        size--;
+        markDead(address);
+      }
+    }
+  }
+
+  private void evacuate(int s) {
+    ByteBuffer segment = segments.get(s);
+    for (int offset = 0; offset < segmentEnd[s]; offset += segment.getInt(offset + REC_LENGTH)) {
+      if (segment.get(offset + REC_LIVE) != 0) {
+        int slot = findSlot(segment.getInt(offset + REC_HASH), address(s, offset));
+        addresses[slot] = append(segment, offset, segment.getInt(offset + REC_LENGTH));
+      }
+    }
+    segmentEnd[s] = 0;
+    segmentLiveBytes[s] = 0;
+    freeSegments.add(s);
+  }
+
+  private void markDead(long address) {
+    int s = segment(address);
+    int offset = offset(address);
+    ByteBuffer segment = segments.get(s);
+    segment.put(offset + REC_LIVE, (byte) 0);
+    segmentLiveBytes[s] -= segment.getInt(offset + REC_LENGTH);
+  }
+
+  private Entry entry(long address) {
+    return new Entry(segments.get(segment(address)), offset(address));
+  }
+
+  private int findSlot(byte[] key, int keyOffset, int keyLength, int hash) {
+    int mask = addresses.length - 1;
+    for (int i = hash & mask; ; i = (i + 1) & mask) {
+      long address = addresses[i];
+      if (address == EMPTY) return -1;
+      if (address != DELETED && hashes[i] == hash && entry(address).identifierEquals(key, keyOffset, keyLength)) {
+        return i;
+      }
+    }
+  }
+
+  private int findSlot(int hash, long address) {
+    int mask = addresses.length - 1;
+    for (int i = hash & mask; ; i = (i + 1) & mask) {
+      if (addresses[i] == address) return i;
+      assert addresses[i] != EMPTY : "record is missing in the index";
+    }
+  }
+
+  private void insert(int hash, long address) {
+    if (2 * (usedSlots + 1) > addresses.length) {
+      rehash(size + 1 > addresses.length / 4 ? 2 * addresses.length : addresses.length);
+    }
+    int mask = addresses.length - 1;
+    int i = hash & mask;
+    while (addresses[i] != EMPTY && addresses[i] != DELETED) {
+      i = (i + 1) & mask;
+    }
+    if (addresses[i] == EMPTY) usedSlots++;
+    addresses[i] = address;
+    hashes[i] = hash;
+    size++;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldAddresses = addresses;
+    int[] oldHashes = hashes;
+    addresses = new long[capacity];
+    hashes = new int[capacity];
+    int mask = capacity - 1;
+    for (int j = 0; j < oldAddresses.length; j++) {
+      if (oldAddresses[j] == EMPTY || oldAddresses[j] == DELETED) continue;
+      int i = oldHashes[j] & mask;
+      while (addresses[i] != EMPTY) {
+        i = (i + 1) & mask;
+      }
+      addresses[i] = oldAddresses[j];
+      hashes[i] = oldHashes[j];
+    }
+    usedSlots = size;
+  }
+
+  private static long address(int segment, int offset) {
+    return (((long) segment << 32) | offset) + 1;
+  }
+
+  private static int segment(long address) {
+    return (int) ((address - 1) >>> 32);
+  }
+
+  private static int offset(long address) {
+    return (int) (address - 1);
+  }
+
+  /* FNV-1a */
+  private static int hash(byte[] bytes, int offset, int length) {
+    int hash = 0x811c9dc5;
+    for (int i = offset; i < offset + length; i++) {
+      hash ^= bytes[i] & 0xff;
+      hash *= 0x01000193;
+    }
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * A stored macaroon. All buffers are read-only slices of the store's memory.
+   */
+  public static final class Entry {
+
+    private final ByteBuffer segment;
+    private final int record;
+
+    private Entry(ByteBuffer segment, int record) {
+      this.segment = segment;
+      this.record = record;
+    }
+
+    /**
+     * @return epoch millis, when the macaroon expires
+     */
+    public long getExpiresAt() {
+      return segment.getLong(record + REC_EXPIRES_AT);
+    }
+
+    /**
+     * @return the location, or null if the macaroon has no location
+     */
+    public ByteBuffer getLocation() {
+      return segment.getInt(record + REC_LOCATION) < 0 ? null : slice(REC_LOCATION);
+    }
+
+    public ByteBuffer getIdentifier() {
+      return slice(REC_IDENTIFIER);
+    }
+
+    public ByteBuffer getSignature() {
+      return slice(REC_SIGNATURE);
+    }
+
+    /**
+     * @return a copy of the signature bytes
+     */
+    public byte[] getSignatureBytes() {
+      ByteBuffer signature = getSignature();
+      byte[] bytes = new byte[signature.remaining()];
+      signature.get(bytes);
+      return bytes;
+    }
+
+    public int getCaveatCount() {
+      return segment.getInt(record + REC_CAVEAT_COUNT);
+    }
+
+    /**
+     * @param index index of the caveat packet, see {@link #getCaveatCount()}
+     * @return type of the caveat packet
+     */
+    public Type getCaveatType(int index) {
+      return TYPES[segment.get(record + caveatEntry(index))];
+    }
+
+    /**
+     * @param index index of the caveat packet, see {@link #getCaveatCount()}
+     * @return the caveat packet's raw value
+     */
+    public ByteBuffer getCaveat(int index) {
+      return slice(caveatEntry(index) + 1);
+    }
+
+    /**
+     * @return a copy of the macaroon on the heap
+     */
+    public Macaroon toMacaroon() {
+      int length = segment.getInt(record + REC_LENGTH);
+      byte[] copy = new byte[length];
+      ByteBuffer source = segment.duplicate();
+      source.position(record);
+      source.get(copy);
+      int packetsOffset = REC_CAVEATS + getCaveatCount() * CAVEAT_ENTRY_SIZE;
+      return MacaroonView.of(copy, packetsOffset, length - packetsOffset).toMacaroon();
+    }
+
+    private boolean identifierEquals(byte[] key, int keyOffset, int keyLength) {
+      int offset = record + segment.getInt(record + REC_IDENTIFIER);
+      if (segment.getInt(record + REC_IDENTIFIER + 4) != keyLength) return false;
+      for (int i = 0; i < keyLength; i++) {
+        if (segment.get(offset + i) != key[keyOffset + i]) return false;
+      }
+      return true;
+    }
+
+    private int caveatEntry(int index) {
+      int caveatCount = getCaveatCount();
+      if (index < 0 || index >= caveatCount) {
+        throw new IndexOutOfBoundsException("Caveat index " + index + " is out of range, there are " + caveatCount + " caveat packets.");
+      }
+      return REC_CAVEATS + index * CAVEAT_ENTRY_SIZE;
+    }
+
+    private ByteBuffer slice(int extent) {
+      int offset = record + segment.getInt(record + extent);
+      int length = segment.getInt(record + extent + 4);
+      ByteBuffer slice = segment.duplicate();
+      slice.limit(offset + length);
+      slice.position(offset);
+      return slice.slice().asReadOnlyBuffer();
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.IDENTIFIER_CHARSET;
+
+/**
+ * A general caveat verifier, which reads the caveat's raw bytes.
+ * {@link MacaroonsVerifier} hands the bytes to it as they are, without decoding them to a {@link String} first.
+ * See {@link com.github.nitram509.jmacaroons.util.CaveatBytes} for helpers to match and parse caveats as bytes.
+ */
+@FunctionalInterface
+public interface RawCaveatVerifier extends GeneralCaveatVerifier {
+
+    /**
+     * @param caveat bytes, holding the caveat in UTF-8, must not be modified
+     * @param offset start of the caveat
+     * @param length length of the caveat
+     * @return True, if this caveat is satisfies the applications requirements. False otherwise.
+     */
+    boolean verifyCaveat(byte[] caveat, int offset, int length);
+
+    /**
+     * Encodes the caveat and verifies its bytes, verifiers may do better.
+     *
+     * @param caveat caveat
+     * @return True, if this caveat is satisfies the applications requirements. False otherwise.
+     */
+    @Override
+    default boolean verifyCaveat(String caveat) {
+        byte[] bytes = caveat.getBytes(IDENTIFIER_CHARSET);
+        return verifyCaveat(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+/**
+ * A general caveat verifier, whose caveats only take effect, when the whole macaroon turns out to be valid,
+ * e.g. a nonce, which must not be used up by a forged macaroon.
+ * {@link MacaroonsVerifier#satisfyGeneral(GeneralCaveatVerifier)} calls the hook of verifiers implementing it.
+ * The caveats are checked while the macaroon is verified, and committed afterwards,
+ * but only when all caveats were satisfied and the signature matched.
+ */
+public interface VerificationHook {
+
+    /**
+     * Called before the caveats of a macaroon are verified, so caveats of an earlier verification are dropped.
+     */
+    void beforeVerification();
+
+    /**
+     * Called once all caveats were satisfied and the signature matched.
+     *
+     * @return True, if the checked caveats are committed. False, if one doesn't hold anymore, so the macaroon isn't valid.
+     */
+    boolean afterVerification();
+}
@@ -2,6 +2,9 @@
 
 package com.github.nitram509.jmacaroons.util;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.Arrays;
 
 /**
@@ -10,8 +13,10 @@ import java.util.Arrays;
  * optional padding. Alternative character tables may be supplied to the {@code encode}
  * and {@code decode} methods to implement modified base64 schemes.
  * <p/>
- * Decoding assumes correct input, the caller is responsible for ensuring that the input
- * contains no invalid characters.
+ * Decoding of {@code String}s and {@code char[]}s assumes correct input, the caller is responsible
+ * for ensuring that the input contains no invalid characters.
+ * Decoding of slices, see {@link #decode(byte[], int, int, byte[], int)}, validates the input
+ * and throws {@link IllegalArgumentException} for invalid characters, padding or length.
  * <p/>
  * Switched the alphabet to make base64 URL and filename safe.
  * See <a href="https://tools.ietf.org/html/rfc4648#page-7">RFC 4648</a> for details.
@@ -35,6 +40,34 @@ public class Base64 {
     decode['/'] = 63; // backward compatible with regular base64
   }
 
+  /* The validating decoder looks up 4 chars per iteration in tables, which are already shifted into place.
+   * Invalid chars are negative, so a single sign check of the combined bits validates all 4 of them. */
+  private static final int[] DECODE_0 = new int[256];
+  private static final int[] DECODE_1 = new int[256];
+  private static final int[] DECODE_2 = new int[256];
+  private static final int[] DECODE_3 = new int[256];
+
+  /* two chars for every 12 bits, so 3 bytes are encoded with 2 lookups */
+  private static final short[] ENCODE_PAIRS = new short[1 << 12];
+
+  static {
+    Arrays.fill(DECODE_0, -1);
+    Arrays.fill(DECODE_1, -1);
+    Arrays.fill(DECODE_2, -1);
+    Arrays.fill(DECODE_3, -1);
+    for (int c = 0; c < decode.length; c++) {
+      int v = decode[c];
+      if (v < 0 || c == pad) continue;
+      DECODE_0[c] = v << 18;
+      DECODE_1[c] = v << 12;
+      DECODE_2[c] = v << 6;
+      DECODE_3[c] = v;
+    }
+    for (int i = 0; i < ENCODE_PAIRS.length; i++) {
+      ENCODE_PAIRS[i] = (short) (alphabet[i >>> 6] << 8 | alphabet[i & 0x3f]);
+    }
+  }
+
   /**
    * Decode base64 chars to bytes.
    *
@@ -52,7 +85,228 @@ public class Base64 {
    * @return Decoded bytes.
    */
   public static byte[] decode(String str) {
-    return decode(str.toCharArray(), decode, pad);
+    return decodeLenient(str, decode, pad);
+  }
+
+  /**
+   * Decode and validate base64 encoded ASCII bytes, e.g. taken from a network buffer.
+   *
+   * @param src    Base64 encoded data, with or without padding.
+   * @param offset Start of the encoded data.
+   * @param length Number of bytes to decode.
+   * @return Decoded bytes.
+   * @throws IllegalArgumentException when the input is not valid base64
+   */
+  public static byte[] decode(byte[] src, int offset, int length) {
+    byte[] dst = new byte[decodedLength(src, offset, length)];
+    decode(src, offset, length, dst, 0);
+    return dst;
+  }
+
+  /**
+   * Decode and validate base64 chars, without copying them first.
+   *
+   * @param src    Base64 encoded data, with or without padding.
+   * @param offset Start of the encoded data.
+   * @param length Number of chars to decode.
+   * @return Decoded bytes.
+   * @throws IllegalArgumentException when the input is not valid base64
+   */
+  public static byte[] decode(CharSequence src, int offset, int length) {
+    byte[] dst = new byte[decodedLength(src, offset, length)];
+    decode(src, offset, length, dst, 0);
+    return dst;
+  }
+
+  /**
+   * @param src    Base64 encoded data, with or without padding.
+   * @param offset Start of the encoded data.
+   * @param length Number of bytes to decode.
+   * @return Number of decoded bytes.
+   * @throws IllegalArgumentException when the length or padding is not valid
+   */
+  public static int decodedLength(byte[] src, int offset, int length) {
+    int end = offset + length;
+    if (length > 0 && (length & 3) == 0 && src[end - 1] == pad) {
+      length -= src[end - 2] == pad ? 2 : 1;
+    }
+    return decodedLength(length);
+  }
+
+  /**
+   * @param src    Base64 encoded data, with or without padding.
+   * @param offset Start of the encoded data.
+   * @param length Number of chars to decode.
+   * @return Number of decoded bytes.
+   * @throws IllegalArgumentException when the length or padding is not valid
+   */
+  public static int decodedLength(CharSequence src, int offset, int length) {
+    int end = offset + length;
+    if (length > 0 && (length & 3) == 0 && src.charAt(end - 1) == pad) {
+      length -= src.charAt(end - 2) == pad ? 2 : 1;
+    }
+    return decodedLength(length);
+  }
+
+  private static int decodedLength(int unpaddedLength) {
+    int tail = unpaddedLength & 3;
+    if (tail == 1) {
+      throw new IllegalArgumentException("Invalid base64 length " + unpaddedLength + ", a single char can't be decoded.");
+    }
+    return (unpaddedLength >>> 2) * 3 + (tail == 0 ? 0 : tail - 1);
+  }
+
+  /**
+   * Tells whether the chars are exactly what {@link #encodeUrlSafe(byte[], int, int, byte[], int)} writes:
+   * URL safe alphabet, no padding and no bits set in the unused rest of the last char.
+   * Such input is the only encoding of its decoded bytes.
+   *
+   * @param src    Base64 encoded data.
+   * @param offset Start of the encoded data.
+   * @param length Number of chars to check.
+   * @return true, when re-encoding the decoded bytes results in the same chars
+   */
+  public static boolean isCanonicalUrlSafe(CharSequence src, int offset, int length) {
+    int tail = length & 3;
+    if (tail == 1) return false;
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      char c = src.charAt(i);
+      if (c >= 256 || c == '+' || c == '/' || DECODE_3[c] < 0) return false;
+    }
+    if (tail == 0) return true;
+    int last = DECODE_3[src.charAt(end - 1)];
+    return (last & (tail == 2 ? 0x0f : 0x03)) == 0;
+  }
+
+  /**
+   * Decode and validate base64 encoded ASCII bytes into the given destination, without any allocation.
+   *
+   * @param src       Base64 encoded data, with or without padding.
+   * @param srcOffset Start of the encoded data.
+   * @param srcLength Number of bytes to decode.
+   * @param dst       Destination, must have room for {@link #decodedLength(byte[], int, int)} bytes.
+   * @param dstOffset Start of the decoded bytes.
+   * @return Number of decoded bytes.
+   * @throws IllegalArgumentException when the input is not valid base64
+   */
+  public static int decode(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) {
+    int bytes = decodedLength(src, srcOffset, srcLength);
+    int si = srcOffset, di = dstOffset;
+    int blocksEnd = dstOffset + bytes / 3 * 3;
+
+    while (di < blocksEnd) {
+      int n = DECODE_0[src[si] & 0xff] | DECODE_1[src[si + 1] & 0xff] | DECODE_2[src[si + 2] & 0xff] | DECODE_3[src[si + 3] & 0xff];
+      if (n < 0) throw invalidChar(si - srcOffset);
+      dst[di++] = (byte) (n >> 16);
+      dst[di++] = (byte) (n >> 8);
+      dst[di++] = (byte) n;
+      si += 4;
+    }
+
+    switch (bytes % 3) {
+      case 1: {
+        int n = DECODE_0[src[si] & 0xff] | DECODE_1[src[si + 1] & 0xff];
+        if (n < 0) throw invalidChar(si - srcOffset);
+        dst[di] = (byte) (n >> 16);
+        break;
+      }
+      case 2: {
+        int n = DECODE_0[src[si] & 0xff] | DECODE_1[src[si + 1] & 0xff] | DECODE_2[src[si + 2] & 0xff];
+        if (n < 0) throw invalidChar(si - srcOffset);
+        dst[di] = (byte) (n >> 16);
+        dst[di + 1] = (byte) (n >> 8);
+        break;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Decode and validate base64 chars into the given destination, without any allocation.
+   *
+   * @param src       Base64 encoded data, with or without padding.
+   * @param srcOffset Start of the encoded data.
+   * @param srcLength Number of chars to decode.
+   * @param dst       Destination, must have room for {@link #decodedLength(CharSequence, int, int)} bytes.
+   * @param dstOffset Start of the decoded bytes.
+   * @return Number of decoded bytes.
+   * @throws IllegalArgumentException when the input is not valid base64
+   */
+  public static int decode(CharSequence src, int srcOffset, int srcLength, byte[] dst, int dstOffset) {
+    int bytes = decodedLength(src, srcOffset, srcLength);
+    int si = srcOffset, di = dstOffset;
+    int blocksEnd = dstOffset + bytes / 3 * 3;
+
+    while (di < blocksEnd) {
+      int n = lookup(DECODE_0, src.charAt(si)) | lookup(DECODE_1, src.charAt(si + 1)) | lookup(DECODE_2, src.charAt(si + 2)) | lookup(DECODE_3, src.charAt(si + 3));
+      if (n < 0) throw invalidChar(si - srcOffset);
+      dst[di++] = (byte) (n >> 16);
+      dst[di++] = (byte) (n >> 8);
+      dst[di++] = (byte) n;
+      si += 4;
+    }
+
+    switch (bytes % 3) {
+      case 1: {
+        int n = lookup(DECODE_0, src.charAt(si)) | lookup(DECODE_1, src.charAt(si + 1));
+        if (n < 0) throw invalidChar(si - srcOffset);
+        dst[di] = (byte) (n >> 16);
+        break;
+      }
+      case 2: {
+        int n = lookup(DECODE_0, src.charAt(si)) | lookup(DECODE_1, src.charAt(si + 1)) | lookup(DECODE_2, src.charAt(si + 2));
+        if (n < 0) throw invalidChar(si - srcOffset);
+        dst[di] = (byte) (n >> 16);
+        dst[di + 1] = (byte) (n >> 8);
+        break;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Decode and validate the remaining base64 encoded ASCII bytes of {@code src} into {@code dst}.
+   * Both positions are advanced, heap buffers are decoded straight from and into their arrays.
+   *
+   * @param src Base64 encoded data, with or without padding.
+   * @param dst Destination.
+   * @return Number of decoded bytes.
+   * @throws IllegalArgumentException when the input is not valid base64, nothing is consumed then
+   * @throws BufferOverflowException  if there's not enough room left in {@code dst}, nothing is consumed then
+   */
+  public static int decode(ByteBuffer src, ByteBuffer dst) {
+    byte[] in;
+    int inOffset;
+    int length = src.remaining();
+    if (src.hasArray()) {
+      in = src.array();
+      inOffset = src.arrayOffset() + src.position();
+    } else {
+      in = new byte[length];
+      src.duplicate().get(in);
+      inOffset = 0;
+    }
+    int bytes = decodedLength(in, inOffset, length);
+    if (dst.remaining() < bytes) throw new BufferOverflowException();
+    if (dst.hasArray()) {
+      decode(in, inOffset, length, dst.array(), dst.arrayOffset() + dst.position());
+      dst.position(dst.position() + bytes);
+    } else {
+      byte[] out = new byte[bytes];
+      decode(in, inOffset, length, out, 0);
+      dst.put(out);
+    }
+    src.position(src.position() + length);
+    return bytes;
+  }
+
+  private static int lookup(int[] table, char c) {
+    return c < 256 ? table[c] : -1;
+  }
+
+  private static IllegalArgumentException invalidChar(int quadOffset) {
+    return new IllegalArgumentException("Invalid base64 char found at or after index " + quadOffset + ".");
   }
 
   /**
@@ -86,11 +340,16 @@ public class Base64 {
    * @return Decoded bytes.
    */
   public static byte[] decode(char[] src, int[] table, char pad) {
-    int len = src.length;
+    return decodeLenient(CharBuffer.wrap(src), table, pad);
+  }
+
+  /* unlike decode(CharSequence, int, int), this doesn't validate the chars */
+  private static byte[] decodeLenient(CharSequence src, int[] table, char pad) {
+    int len = src.length();
 
     if (len == 0) return new byte[0];
 
-    int padCount = (src[len - 1] == pad ? (src[len - 2] == pad ? 2 : 1) : 0);
+    int padCount = (src.charAt(len - 1) == pad ? (src.charAt(len - 2) == pad ? 2 : 1) : 0);
     int bytes = (len * 6 >> 3) - padCount;
     int blocks = (bytes / 3) * 3;
 
@@ -98,23 +357,17 @@ public class Base64 {
     int si = 0, di = 0;
 
     while (di < blocks) {
-      int n = table[src[si++]] << 18 | table[src[si++]] << 12 | table[src[si++]] << 6 | table[src[si++]];
+      int n = table[src.charAt(si++)] << 18 | table[src.charAt(si++)] << 12 | table[src.charAt(si++)] << 6 | table[src.charAt(si++)];
       dst[di++] = (byte) (n >> 16);
       dst[di++] = (byte) (n >> 8);
       dst[di++] = (byte) n;
     }
 
     if (di < bytes) {
+      // the last, incomplete quad
       int n = 0;
-      switch (len - si) {
-        case 4:
-          n |= table[src[si + 3]];
-        case 3:
-          n |= table[src[si + 2]] << 6;
-        case 2:
-          n |= table[src[si + 1]] << 12;
-        case 1:
-          n |= table[src[si]] << 18;
+      for (int shift = 18; si < len; shift -= 6) {
+        n |= table[src.charAt(si++)] << shift;
       }
       for (int r = 16; di < bytes; r -= 8) {
         dst[di++] = (byte) (n >> r);
@@ -171,6 +424,88 @@ public class Base64 {
     return dst;
   }
 
+  /**
+   * @param length number of bytes to encode
+   * @return number of chars, the bytes are encoded to, without padding
+   */
+  public static int encodedLengthUrlSafe(int length) {
+    int tail = length % 3;
+    return (length / 3) * 4 + (tail == 0 ? 0 : tail + 1);
+  }
+
+  /**
+   * Encode bytes to base64 ASCII bytes without padding, e.g. straight into a network buffer.
+   *
+   * @param src       Bytes to encode.
+   * @param srcOffset Start of the bytes to encode.
+   * @param srcLength Number of bytes to encode.
+   * @param dst       Destination, must have room for {@link #encodedLengthUrlSafe(int)} bytes.
+   * @param dstOffset Start of the encoded bytes.
+   * @return Number of encoded bytes.
+   */
+  public static int encodeUrlSafe(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) {
+    char[] table = alphabet;
+    int blocks = srcOffset + (srcLength / 3) * 3;
+    int tail = srcLength % 3;
+    int si = srcOffset, di = dstOffset;
+
+    while (si < blocks) {
+      int n = (src[si++] & 0xff) << 16 | (src[si++] & 0xff) << 8 | (src[si++] & 0xff);
+      short hi = ENCODE_PAIRS[n >>> 12];
+      short lo = ENCODE_PAIRS[n & 0xfff];
+      dst[di++] = (byte) (hi >> 8);
+      dst[di++] = (byte) hi;
+      dst[di++] = (byte) (lo >> 8);
+      dst[di++] = (byte) lo;
+    }
+
+    if (tail > 0) {
+      int n = (src[si] & 0xff) << 10;
+      if (tail == 2) n |= (src[++si] & 0xff) << 2;
+
+      dst[di++] = (byte) table[(n >>> 12) & 0x3f];
+      dst[di++] = (byte) table[(n >>> 6) & 0x3f];
+      if (tail == 2) dst[di++] = (byte) table[n & 0x3f];
+    }
+
+    return di - dstOffset;
+  }
+
+  /**
+   * Encode the remaining bytes of {@code src} to base64 ASCII bytes without padding into {@code dst}.
+   * Both positions are advanced, heap buffers are encoded straight from and into their arrays.
+   *
+   * @param src Bytes to encode.
+   * @param dst Destination.
+   * @return Number of encoded bytes.
+   * @throws BufferOverflowException if there's not enough room left in {@code dst}, nothing is consumed then
+   */
+  public static int encodeUrlSafe(ByteBuffer src, ByteBuffer dst) {
+    int length = src.remaining();
+    int encodedLength = encodedLengthUrlSafe(length);
+    if (dst.remaining() < encodedLength) throw new BufferOverflowException();
+    byte[] in;
+    int inOffset;
+    if (src.hasArray()) {
+      in = src.array();
+      inOffset = src.arrayOffset() + src.position();
+    } else {
+      in = new byte[length];
+      src.duplicate().get(in);
+      inOffset = 0;
+    }
+    if (dst.hasArray()) {
+      encodeUrlSafe(in, inOffset, length, dst.array(), dst.arrayOffset() + dst.position());
+      dst.position(dst.position() + encodedLength);
+    } else {
+      byte[] out = new byte[encodedLength];
+      encodeUrlSafe(in, inOffset, length, out, 0);
+      dst.put(out);
+    }
+    src.position(src.position() + length);
+    return encodedLength;
+  }
+
   /**
    * Encode to String without padding
    * @param bytes bytes
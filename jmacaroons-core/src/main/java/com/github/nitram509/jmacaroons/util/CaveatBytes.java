@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.util;
+
+/**
+ * Helpers to match and parse caveats, which are given as UTF-8 bytes, without decoding them.
+ */
+public class CaveatBytes {
+
+  /**
+   * @param caveat bytes, holding the caveat
+   * @param offset start of the caveat
+   * @param length length of the caveat
+   * @param prefix bytes of the prefix
+   * @return true, when the caveat starts with the prefix
+   */
+  public static boolean startsWith(byte[] caveat, int offset, int length, byte[] prefix) {
+    return length >= prefix.length && regionMatches(caveat, offset, prefix, 0, prefix.length);
+  }
+
+  /**
+   * @param caveat bytes, holding the caveat
+   * @param offset start of the caveat
+   * @param length length of the caveat
+   * @param other  bytes to compare with
+   * @return true, when the caveat has the same bytes
+   */
+  public static boolean equals(byte[] caveat, int offset, int length, byte[] other) {
+    return length == other.length && regionMatches(caveat, offset, other, 0, length);
+  }
+
+  /**
+   * @return true, when both slices hold the same bytes
+   */
+  public static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+    for (int i = 0; i < length; i++) {
+      if (a[aOffset + i] != b[bOffset + i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param caveat bytes, holding the caveat
+   * @param from   index to start the search at
+   * @param to     index to end the search before
+   * @param b      the byte, e.g. an ASCII char
+   * @return the index of the first such byte, or -1
+   */
+  public static int indexOf(byte[] caveat, int from, int to, int b) {
+    for (int i = from; i < to; i++) {
+      if (caveat[i] == (byte) b) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * @param caveat bytes, holding the caveat
+   * @param from   index of the first byte
+   * @param to     index after the last byte
+   * @return the index of the first byte, which is no whitespace like {@link String#trim()} sees it, or <code>to</code>
+   */
+  public static int skipWhitespace(byte[] caveat, int from, int to) {
+    while (from < to && (caveat[from] & 0xff) <= ' ') from++;
+    return from;
+  }
+
+  /**
+   * Same as {@link Long#parseLong(String)}, for the given ASCII digits.
+   *
+   * @param caveat bytes, holding the number
+   * @param from   index of the first byte, the sign or a digit
+   * @param to     index after the last digit
+   * @return the number
+   * @throws NumberFormatException when the bytes aren't a number or it doesn't fit into a long
+   */
+  public static long parseLong(byte[] caveat, int from, int to) throws NumberFormatException {
+    int i = from;
+    boolean negative = false;
+    if (i < to && (caveat[i] == '-' || caveat[i] == '+')) {
+      negative = caveat[i] == '-';
+      i++;
+    }
+    if (i >= to) {
+      throw new NumberFormatException("Not a number, there are no digits.");
+    }
+    // sums up negatively, since Long.MIN_VALUE has no positive counterpart
+    long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+    long result = 0;
+    for (; i < to; i++) {
+      int digit = caveat[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("Not a number, found byte " + (caveat[i] & 0xff) + " at index " + i + ".");
+      }
+      if (result < (limit + digit) / 10) {
+        throw new NumberFormatException("The number doesn't fit into a long.");
+      }
+      result = result * 10 - digit;
+    }
+    return negative ? result : -result;
+  }
+}
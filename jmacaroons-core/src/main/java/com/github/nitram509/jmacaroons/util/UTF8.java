@@ -59,4 +59,21 @@ public class UTF8 {
       }
       return true;
     }
+
+    /**
+     * Determines whether or not a slice of the given byte array contains only 7-bit ASCII characters.
+     * Such bytes decode to the same {@link String} in every charset this library uses.
+     *
+     * @param input  - {@link byte[]} input bytes
+     * @param offset - start of the slice
+     * @param length - length of the slice
+     * @return - {@code true} only ASCII characters. {@code false} at least one byte is outside of the ASCII range
+     */
+    public static boolean isASCII(byte[] input, int offset, int length) {
+      int bits = 0;
+      for (int i = offset, end = offset + length; i < end; i++) {
+        bits |= input[i];
+      }
+      return (bits & 0x80) == 0;
+    }
 }
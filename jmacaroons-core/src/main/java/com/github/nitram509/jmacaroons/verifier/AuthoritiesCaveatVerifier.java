@@ -16,25 +16,64 @@
 
 package com.github.nitram509.jmacaroons.verifier;
 
-import com.github.nitram509.jmacaroons.GeneralCaveatVerifier;
+import com.github.nitram509.jmacaroons.RawCaveatVerifier;
+import com.github.nitram509.jmacaroons.util.CaveatBytes;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.IDENTIFIER_CHARSET;
 
 /**
  * A verifier that is able to verify for given authorities.
  * These authorities are comma separated list of string, which are case sensitive.
+ * When created with an {@link AuthorityDictionary}, the requested authorities, which are in the dictionary,
+ * are checked with a single bit operation, against the caveat's bits remembered by the dictionary.
+ * All other authorities are looked up in the caveat's text, without creating any objects.
  */
-public class AuthoritiesCaveatVerifier implements GeneralCaveatVerifier {
+public class AuthoritiesCaveatVerifier implements RawCaveatVerifier {
 
   public static final String CAVEAT_PREFIX = "authorities =";
 
-  private String[] requestedAuthorities;
+  private static final byte[] CAVEAT_PREFIX_BYTES = CAVEAT_PREFIX.getBytes(IDENTIFIER_CHARSET);
+  private static final String[] NO_AUTHORITIES = new String[0];
+
+  private final AuthorityDictionary dictionary;
+  private final long requestedBits;
+  /* the requested authorities, which aren't in the dictionary */
+  private final String[] requestedAuthorities;
+  private final byte[][] requestedAuthoritiesBytes;
 
   /**
    * @param requestedAuthorities requestedAuthorities
    */
   public AuthoritiesCaveatVerifier(String... requestedAuthorities) {
-    this.requestedAuthorities = requestedAuthorities != null ? requestedAuthorities : new String[0];
+    this(null, requestedAuthorities);
+  }
+
+  /**
+   * @param dictionary           the authorities known by the application, may be null
+   * @param requestedAuthorities requestedAuthorities
+   */
+  public AuthoritiesCaveatVerifier(AuthorityDictionary dictionary, String... requestedAuthorities) {
+    if (requestedAuthorities == null) requestedAuthorities = NO_AUTHORITIES;
+    long bits = 0;
+    List<String> unknown = new ArrayList<>(requestedAuthorities.length);
+    for (String authority : requestedAuthorities) {
+      int index = dictionary != null ? dictionary.indexOf(authority) : -1;
+      if (index >= 0) {
+        bits |= 1L << index;
+      } else {
+        unknown.add(authority);
+      }
+    }
+    this.dictionary = bits != 0 ? dictionary : null;
+    this.requestedBits = bits;
+    this.requestedAuthorities = unknown.toArray(NO_AUTHORITIES);
+    this.requestedAuthoritiesBytes = new byte[this.requestedAuthorities.length][];
+    for (int i = 0; i < this.requestedAuthorities.length; i++) {
+      this.requestedAuthoritiesBytes[i] = this.requestedAuthorities[i].getBytes(IDENTIFIER_CHARSET);
+    }
   }
 
   /**
@@ -46,25 +85,103 @@ public class AuthoritiesCaveatVerifier implements GeneralCaveatVerifier {
     return new AuthoritiesCaveatVerifier(requestedAuthorities);
   }
 
+  /**
+   * A comfort method for better readability - simply returns 'new AuthoritiesCaveatVerifier(dictionary, ...)'
+   * @param dictionary           the authorities known by the application
+   * @param requestedAuthorities requestedAuthorities
+   * @return a new instance of {@link com.github.nitram509.jmacaroons.verifier.AuthoritiesCaveatVerifier}
+   */
+  public static AuthoritiesCaveatVerifier hasAuthority(AuthorityDictionary dictionary, String... requestedAuthorities) {
+    return new AuthoritiesCaveatVerifier(dictionary, requestedAuthorities);
+  }
+
   @Override
   public boolean verifyCaveat(String caveat) {
-    boolean containsGivenAuthorities = false;
-    if (caveat.startsWith(CAVEAT_PREFIX)) {
-      HashSet<String> cavaetAuthorities = asTrimmedSet(caveat.substring(CAVEAT_PREFIX.length()).split("[,]"));
-      containsGivenAuthorities = requestedAuthorities.length > 0;
-      for (String authority : requestedAuthorities) {
-        containsGivenAuthorities = containsGivenAuthorities && cavaetAuthorities.contains(authority);
+    if (!caveat.startsWith(CAVEAT_PREFIX)) return false;
+    if (dictionary != null) {
+      Long caveatBits = dictionary.bitsOf(caveat);
+      if (caveatBits == null || (caveatBits & requestedBits) != requestedBits) return false;
+    } else if (requestedAuthorities.length == 0) {
+      return false;
+    }
+    for (String authority : requestedAuthorities) {
+      if (!listsAuthority(caveat, authority)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Same as {@link #verifyCaveat(String)}, but reads the caveat from UTF-8 bytes.
+   *
+   * @param caveat bytes, holding the caveat
+   * @param offset start of the caveat
+   * @param length length of the caveat
+   * @return true, when the caveat lists all requested authorities
+   */
+  @Override
+  public boolean verifyCaveat(byte[] caveat, int offset, int length) {
+    if (!CaveatBytes.startsWith(caveat, offset, length, CAVEAT_PREFIX_BYTES)) return false;
+    if (dictionary != null) {
+      Long caveatBits = dictionary.bitsOf(caveat, offset, length);
+      if (caveatBits == null || (caveatBits & requestedBits) != requestedBits) return false;
+    } else if (requestedAuthorities.length == 0) {
+      return false;
+    }
+    for (int i = 0; i < requestedAuthorities.length; i++) {
+      if (requestedAuthoritiesBytes[i].length == 0) {
+        // rare enough, to not care about the String
+        if (!listsAuthority(new String(caveat, offset, length, IDENTIFIER_CHARSET), "")) return false;
+      } else if (!listsAuthority(caveat, offset, offset + length, requestedAuthoritiesBytes[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether the comma separated list after the prefix holds the authority, after trimming the list's elements.
+   * Empty elements at the end of the list don't count, as done by {@link String#split(String)}.
+   */
+  private static boolean listsAuthority(String caveat, String authority) {
+    int end = caveat.length();
+    int start = CAVEAT_PREFIX.length();
+    if (authority.isEmpty() && start == end) return true;
+    boolean skippedEmpty = false;
+    while (start <= end) {
+      int comma = caveat.indexOf(',', start);
+      if (comma < 0) comma = end;
+      int from = start;
+      int to = comma;
+      while (from < to && caveat.charAt(from) <= ' ') from++;
+      while (to > from && caveat.charAt(to - 1) <= ' ') to--;
+      if (authority.isEmpty()) {
+        if (comma > start && (from == to || skippedEmpty)) return true;
+        skippedEmpty |= comma == start;
+      } else if (to - from == authority.length() && caveat.regionMatches(from, authority, 0, to - from)) {
+        return true;
       }
+      start = comma + 1;
     }
-    return containsGivenAuthorities;
+    return false;
   }
 
-  private HashSet<String> asTrimmedSet(String[] cavaetAuthorities) {
-    HashSet<String> result = new HashSet<>( cavaetAuthorities.length );
-    for (String cavaetAuthority : cavaetAuthorities) {
-      result.add(cavaetAuthority.trim());
+  /**
+   * Same as {@link #listsAuthority(String, String)}, for a non empty authority and a caveat in UTF-8 bytes.
+   */
+  private static boolean listsAuthority(byte[] caveat, int offset, int end, byte[] authority) {
+    int start = offset + CAVEAT_PREFIX_BYTES.length;
+    while (start <= end) {
+      int comma = CaveatBytes.indexOf(caveat, start, end, ',');
+      if (comma < 0) comma = end;
+      int from = CaveatBytes.skipWhitespace(caveat, start, comma);
+      int to = comma;
+      while (to > from && (caveat[to - 1] & 0xff) <= ' ') to--;
+      if (to - from == authority.length && CaveatBytes.regionMatches(caveat, from, authority, 0, to - from)) {
+        return true;
+      }
+      start = comma + 1;
     }
-    return result;
+    return false;
   }
 
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import static com.github.nitram509.jmacaroons.verifier.AuthoritiesCaveatVerifier.CAVEAT_PREFIX;
+
+/**
+ * <p>
+ * The authorities, an application knows, each one numbered by a bit of a long.
+ * </p>
+ * An {@link AuthoritiesCaveatVerifier} created with a dictionary checks the known authorities of a caveat
+ * with a single bit operation. The bits of a caveat are parsed once and remembered by the dictionary,
+ * authorities not in the dictionary are ignored, when doing so.
+ * <pre>{@code
+ * static final AuthorityDictionary AUTHORITIES = new AuthorityDictionary("ROLE_USER", "ROLE_ADMIN", "DEV_TOOLS_AVAILABLE");
+ * // ... for every request
+ * verifier.satisfyGeneral(hasAuthority(AUTHORITIES, "DEV_TOOLS_AVAILABLE"));
+ * }</pre>
+ * This class is thread safe, a single instance should be shared.
+ */
+public final class AuthorityDictionary {
+
+  public static final int MAX_SIZE = Long.SIZE;
+
+  private static final int CACHE_CAPACITY = 1024;
+  private static final int CACHE_MAX_CAVEAT_LENGTH = 512;
+
+  private final String[] authorities;
+  private final Map<String, Integer> indexes;
+  /* null for caveats, which aren't authorities */
+  private final ParsedCaveatCache<Long> caveatBits;
+
+  /**
+   * @param authorities case sensitive authorities, at most {@link #MAX_SIZE}
+   * @throws IllegalArgumentException when there are too many authorities, duplicates,
+   *                                  or authorities, which can't be listed in a caveat, since they are empty,
+   *                                  contain a comma or start or end with whitespace
+   */
+  public AuthorityDictionary(String... authorities) throws IllegalArgumentException {
+    if (authorities.length > MAX_SIZE) {
+      throw new IllegalArgumentException("A dictionary holds at most " + MAX_SIZE + " authorities, but got " + authorities.length);
+    }
+    this.authorities = authorities.clone();
+    this.indexes = new HashMap<>(authorities.length * 2);
+    for (int i = 0; i < authorities.length; i++) {
+      String authority = authorities[i];
+      if (authority == null || authority.isEmpty() || authority.indexOf(',') >= 0 || !authority.trim().equals(authority)) {
+        throw new IllegalArgumentException("Invalid authority '" + authority + "'.");
+      }
+      if (indexes.put(authority, i) != null) {
+        throw new IllegalArgumentException("Duplicate authority '" + authority + "'.");
+      }
+    }
+    this.caveatBits = new ParsedCaveatCache<>(CACHE_CAPACITY, CACHE_MAX_CAVEAT_LENGTH, new Function<String, Long>() {
+      @Override
+      public Long apply(String caveat) {
+        return parse(caveat);
+      }
+    });
+  }
+
+  /**
+   * @return number of authorities
+   */
+  public int size() {
+    return authorities.length;
+  }
+
+  /**
+   * @param authority authority
+   * @return the bit number of the authority, or -1, when it's unknown
+   */
+  public int indexOf(String authority) {
+    Integer index = indexes.get(authority);
+    return index != null ? index : -1;
+  }
+
+  /**
+   * @param index bit number
+   * @return the authority
+   */
+  public String authority(int index) {
+    return authorities[index];
+  }
+
+  /**
+   * @return the bits of the caveat's known authorities, or null, when it's no authorities caveat
+   */
+  Long bitsOf(String caveat) {
+    return caveatBits.get(caveat);
+  }
+
+  /**
+   * @return the bits of the caveat's known authorities, or null, when it's no authorities caveat
+   */
+  Long bitsOf(byte[] caveat, int offset, int length) {
+    return caveatBits.get(caveat, offset, length);
+  }
+
+  private Long parse(String caveat) {
+    if (!caveat.startsWith(CAVEAT_PREFIX)) return null;
+    long bits = 0;
+    for (String authority : caveat.substring(CAVEAT_PREFIX.length()).split("[,]")) {
+      Integer index = indexes.get(authority.trim());
+      if (index != null) bits |= 1L << index;
+    }
+    return bits;
+  }
+}
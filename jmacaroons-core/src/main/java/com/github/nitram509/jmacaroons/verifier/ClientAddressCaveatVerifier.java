@@ -0,0 +1,318 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import com.github.nitram509.jmacaroons.RawCaveatVerifier;
+import com.github.nitram509.jmacaroons.util.CaveatBytes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * A verifier, which restricts a macaroon to clients from some networks, i.e. <code>"ip&nbsp;in&nbsp;10.0.0.0/8,&nbsp;2001:db8::/32"</code>.
+ * </p>
+ * The networks are IPv4 or IPv6 addresses in CIDR notation, an address without prefix length is a single host.
+ * IPv4 addresses are handled as IPv4-mapped IPv6 addresses, i.e. <code>::ffff:10.0.0.1</code> is in <code>10.0.0.0/8</code>.
+ * The networks of a caveat are parsed once into a binary trie, which is shared by all instances,
+ * so checking an address walks at most one node per bit of the address.
+ * The client's address is parsed once, when creating the verifier, without creating an {@link java.net.InetAddress}.
+ * <pre>{@code
+ * new MacaroonsVerifier(macaroon)
+ *     .satisfyGeneral(new ClientAddressCaveatVerifier(request.getRemoteAddr()))
+ *     .assertIsValid(secret);
+ * }</pre>
+ */
+public class ClientAddressCaveatVerifier implements RawCaveatVerifier {
+
+  public static final String CAVEAT_PREFIX = "ip in ";
+
+  private static final byte[] CAVEAT_PREFIX_BYTES = CAVEAT_PREFIX.getBytes(StandardCharsets.US_ASCII);
+  private static final int CACHE_CAPACITY = 1024;
+  private static final int CACHE_MAX_CAVEAT_LENGTH = 1024;
+  /* the upper 96 bits of an IPv4-mapped IPv6 address */
+  private static final long IPV4_MAPPED_HIGH = 0L;
+  private static final long IPV4_MAPPED_LOW = 0xffffL << 32;
+
+  /* null for caveats, which aren't valid network lists */
+  private static final ParsedCaveatCache<Networks> PARSED_NETWORKS = new ParsedCaveatCache<>(CACHE_CAPACITY, CACHE_MAX_CAVEAT_LENGTH,
+      new Function<String, Networks>() {
+        @Override
+        public Networks apply(String caveat) {
+          return caveat.startsWith(CAVEAT_PREFIX) ? Networks.parse(caveat, CAVEAT_PREFIX.length()) : null;
+        }
+      });
+
+  /* the client's address as 128 bits */
+  private final long high;
+  private final long low;
+
+  /**
+   * @param clientAddress IPv4 or IPv6 address of the client, an IPv6 zone like <code>%eth0</code> is ignored
+   * @throws IllegalArgumentException when the address isn't valid
+   */
+  public ClientAddressCaveatVerifier(String clientAddress) throws IllegalArgumentException {
+    int end = clientAddress.indexOf('%');
+    long[] address = parseAddress(clientAddress, 0, end >= 0 ? end : clientAddress.length());
+    if (address == null) {
+      throw new IllegalArgumentException("Invalid IP address '" + clientAddress + "'.");
+    }
+    this.high = address[0];
+    this.low = address[1];
+  }
+
+  /**
+   * @param clientAddress the 4 bytes of an IPv4 or 16 bytes of an IPv6 address, in network byte order,
+   *                      like {@link java.net.InetAddress#getAddress()} returns them
+   * @throws IllegalArgumentException when there are neither 4 nor 16 bytes
+   */
+  public ClientAddressCaveatVerifier(byte[] clientAddress) throws IllegalArgumentException {
+    if (clientAddress.length == 4) {
+      this.high = IPV4_MAPPED_HIGH;
+      this.low = IPV4_MAPPED_LOW | (toLong(clientAddress, 0, 4) & 0xffffffffL);
+    } else if (clientAddress.length == 16) {
+      this.high = toLong(clientAddress, 0, 8);
+      this.low = toLong(clientAddress, 8, 8);
+    } else {
+      throw new IllegalArgumentException("An IP address has 4 or 16 bytes, but got " + clientAddress.length);
+    }
+  }
+
+  @Override
+  public boolean verifyCaveat(String caveat) {
+    if (!caveat.startsWith(CAVEAT_PREFIX)) return false;
+    Networks networks = PARSED_NETWORKS.get(caveat);
+    return networks != null && networks.contains(high, low);
+  }
+
+  @Override
+  public boolean verifyCaveat(byte[] caveat, int offset, int length) {
+    if (!CaveatBytes.startsWith(caveat, offset, length, CAVEAT_PREFIX_BYTES)) return false;
+    Networks networks = PARSED_NETWORKS.get(caveat, offset, length);
+    return networks != null && networks.contains(high, low);
+  }
+
+  private static long toLong(byte[] bytes, int offset, int length) {
+    long value = 0;
+    for (int i = offset; i < offset + length; i++) {
+      value = (value << 8) | (bytes[i] & 0xff);
+    }
+    return value;
+  }
+
+  /**
+   * @return the upper and lower 64 bits of the address, or null, when it's no IPv4 or IPv6 address
+   */
+  static long[] parseAddress(CharSequence s, int from, int to) {
+    int colon = indexOf(s, from, to, ':');
+    if (colon < 0) {
+      long ipv4 = parseIPv4(s, from, to);
+      return ipv4 >= 0 ? new long[]{IPV4_MAPPED_HIGH, IPV4_MAPPED_LOW | ipv4} : null;
+    }
+    return parseIPv6(s, from, to);
+  }
+
+  /**
+   * @return the 32 bits of a dotted quad, or -1
+   */
+  private static long parseIPv4(CharSequence s, int from, int to) {
+    long address = 0;
+    int pos = from;
+    for (int part = 0; part < 4; part++) {
+      if (part > 0) {
+        if (pos >= to || s.charAt(pos) != '.') return -1;
+        pos++;
+      }
+      int start = pos;
+      int value = 0;
+      while (pos < to && pos - start < 3 && isDigit(s.charAt(pos))) {
+        value = value * 10 + s.charAt(pos++) - '0';
+      }
+      if (pos == start || value > 255) return -1;
+      address = (address << 8) | value;
+    }
+    return pos == to ? address : -1;
+  }
+
+  /**
+   * Reads up to 8 groups of hex digits, where a single <code>::</code> stands for the missing ones,
+   * and the last two groups may be written as a dotted quad.
+   */
+  private static long[] parseIPv6(CharSequence s, int from, int to) {
+    int[] groups = new int[8];
+    int count = 0;
+    int compressedAt = -1;
+    int pos = from;
+    if (pos + 1 < to && s.charAt(pos) == ':' && s.charAt(pos + 1) == ':') {
+      compressedAt = 0;
+      pos += 2;
+    }
+    while (pos < to) {
+      if (count == 8) return null;
+      int start = pos;
+      int value = 0;
+      while (pos < to && pos - start < 4 && hexDigit(s.charAt(pos)) >= 0) {
+        value = (value << 4) | hexDigit(s.charAt(pos++));
+      }
+      if (pos < to && s.charAt(pos) == '.') {
+        long ipv4 = count <= 6 ? parseIPv4(s, start, to) : -1;
+        if (ipv4 < 0) return null;
+        groups[count++] = (int) (ipv4 >>> 16);
+        groups[count++] = (int) (ipv4 & 0xffff);
+        break;
+      }
+      if (pos == start) return null;
+      groups[count++] = value;
+      if (pos == to) break;
+      if (s.charAt(pos) != ':') return null;
+      pos++;
+      if (pos < to && s.charAt(pos) == ':') {
+        if (compressedAt >= 0) return null;
+        compressedAt = count;
+        pos++;
+      } else if (pos == to) {
+        return null;
+      }
+    }
+    if (compressedAt >= 0) {
+      if (count == 8) return null;
+      int missing = 8 - count;
+      System.arraycopy(groups, compressedAt, groups, compressedAt + missing, count - compressedAt);
+      Arrays.fill(groups, compressedAt, compressedAt + missing, 0);
+    } else if (count != 8) {
+      return null;
+    }
+    long high = 0;
+    long low = 0;
+    for (int i = 0; i < 4; i++) {
+      high = (high << 16) | groups[i];
+      low = (low << 16) | groups[i + 4];
+    }
+    return new long[]{high, low};
+  }
+
+  private static int indexOf(CharSequence s, int from, int to, char c) {
+    for (int i = from; i < to; i++) {
+      if (s.charAt(i) == c) return i;
+    }
+    return -1;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static int hexDigit(char c) {
+    if (c >= '0' && c <= '9') return c - '0';
+    if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+    if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+    return -1;
+  }
+
+  /**
+   * A binary trie of network prefixes, each node has a child per bit value.
+   * A path ending in {@link #COVERED} is a network, which covers all addresses below it.
+   */
+  static final class Networks {
+
+    private static final int NONE = 0;
+    private static final int COVERED = -1;
+
+    /* children of node n at 2n and 2n+1, the root is node 0, so no node has it as a child */
+    private int[] children = new int[32];
+    private int nodeCount = 1;
+    private boolean coversAll;
+
+    /**
+     * @return the networks, or null, when one of the comma separated networks isn't valid
+     */
+    static Networks parse(String s, int from) {
+      Networks networks = new Networks();
+      int end = s.length();
+      while (from <= end) {
+        int comma = indexOf(s, from, end, ',');
+        if (comma < 0) comma = end;
+        int start = from;
+        int stop = comma;
+        while (start < stop && s.charAt(start) <= ' ') start++;
+        while (stop > start && s.charAt(stop - 1) <= ' ') stop--;
+        int slash = indexOf(s, start, stop, '/');
+        long[] address = parseAddress(s, start, slash >= 0 ? slash : stop);
+        if (address == null) return null;
+        int bits = 128;
+        if (slash >= 0) {
+          boolean ipv4 = indexOf(s, start, slash, ':') < 0;
+          int maxBits = ipv4 ? 32 : 128;
+          if (stop - slash < 2 || stop - slash > 4) return null;
+          bits = 0;
+          for (int i = slash + 1; i < stop; i++) {
+            if (!isDigit(s.charAt(i))) return null;
+            bits = bits * 10 + s.charAt(i) - '0';
+          }
+          if (bits > maxBits) return null;
+          if (ipv4) bits += 96;
+        }
+        networks.add(address[0], address[1], bits);
+        from = comma + 1;
+      }
+      networks.children = Arrays.copyOf(networks.children, 2 * networks.nodeCount);
+      return networks;
+    }
+
+    private void add(long high, long low, int bits) {
+      if (bits == 0) {
+        coversAll = true;
+        return;
+      }
+      int node = 0;
+      for (int i = 0; i < bits - 1; i++) {
+        int child = children[2 * node + bit(high, low, i)];
+        if (child == COVERED) return;
+        if (child == NONE) {
+          child = newNode();
+          children[2 * node + bit(high, low, i)] = child;
+        }
+        node = child;
+      }
+      children[2 * node + bit(high, low, bits - 1)] = COVERED;
+    }
+
+    private int newNode() {
+      if (2 * nodeCount + 2 > children.length) {
+        children = Arrays.copyOf(children, children.length * 2);
+      }
+      return nodeCount++;
+    }
+
+    boolean contains(long high, long low) {
+      if (coversAll) return true;
+      int node = 0;
+      for (int i = 0; i < 128; i++) {
+        int child = children[2 * node + bit(high, low, i)];
+        if (child == COVERED) return true;
+        if (child == NONE) return false;
+        node = child;
+      }
+      return false;
+    }
+
+    private static int bit(long high, long low, int i) {
+      return (int) (i < 64 ? high >>> (63 - i) : low >>> (127 - i)) & 1;
+    }
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import com.github.nitram509.jmacaroons.ContextualCaveatVerifier;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * <p>
+ * A verifier of simple conditions on the attributes of a request, which are given as a map.
+ * </p>
+ *
+ * <table>
+ * <caption><strong>Supported conditions</strong></caption>
+ * <tr>
+ * <th>Condition</th>
+ * <th>Example</th>
+ * <th>Satisfied, when the attribute</th>
+ * </tr>
+ * <tr>
+ * <td><code>key = value</code>, <code>key != value</code></td>
+ * <td>account = 3735928559</td>
+ * <td>equals the value, or not</td>
+ * </tr>
+ * <tr>
+ * <td><code>key &lt; number</code>, <code>&lt;=</code>, <code>&gt;</code>, <code>&gt;=</code></td>
+ * <td>bytes &lt; 1048576</td>
+ * <td>is an integer and compares so</td>
+ * </tr>
+ * <tr>
+ * <td><code>key in value,value...</code></td>
+ * <td>op in read, write</td>
+ * <td>equals one of the comma separated values</td>
+ * </tr>
+ * <tr>
+ * <td><code>key matches glob</code></td>
+ * <td>bucket matches acme-*</td>
+ * <td>matches the glob, where <code>*</code> stands for any chars and <code>?</code> for a single one</td>
+ * </tr>
+ * </table>
+ * <p>
+ * Keys start with a letter or underscore, followed by letters, digits, <code>_</code>, <code>.</code> or <code>-</code>.
+ * Values are trimmed. Attributes may be Strings or integral Numbers, other objects are compared by their {@link Object#toString()}.
+ * A caveat, which is no such condition, or names an attribute missing in the map, isn't satisfied.
+ * </p>
+ * Every caveat is compiled once, the conditions are remembered by a {@link ParsedCaveatCache}.
+ * Checking a condition doesn't allocate, as long as the attributes are Strings, Longs or Integers.
+ * This class is thread safe, a single instance should be shared by all requests.
+ * <pre>{@code
+ * static final ExpressionCaveatVerifier CONDITIONS = new ExpressionCaveatVerifier();
+ * // ... for every request
+ * new MacaroonsVerifier(macaroon)
+ *     .satisfyGeneral(CONDITIONS, requestAttributes)
+ *     .assertIsValid(secret);
+ * }</pre>
+ */
+public class ExpressionCaveatVerifier implements ContextualCaveatVerifier<Map<String, ?>> {
+
+  private static final int CACHE_CAPACITY = 1024;
+  private static final int CACHE_MAX_CAVEAT_LENGTH = 512;
+  /* marks a value, which is no integer, so Long.MIN_VALUE isn't one either */
+  private static final long NO_INTEGER = Long.MIN_VALUE;
+
+  /* null for caveats, which aren't conditions */
+  private final ParsedCaveatCache<Condition> conditions = new ParsedCaveatCache<>(CACHE_CAPACITY, CACHE_MAX_CAVEAT_LENGTH,
+      new Function<String, Condition>() {
+        @Override
+        public Condition apply(String caveat) {
+          return compile(caveat);
+        }
+      });
+
+  @Override
+  public boolean verifyCaveat(byte[] caveat, int offset, int length, Map<String, ?> attributes) {
+    return test(conditions.get(caveat, offset, length), attributes);
+  }
+
+  /**
+   * @param caveat     caveat
+   * @param attributes the attributes of the request
+   * @return true, when the caveat is a condition, which the attributes satisfy
+   */
+  public boolean verifyCaveat(String caveat, Map<String, ?> attributes) {
+    return test(conditions.get(caveat), attributes);
+  }
+
+  private static boolean test(Condition condition, Map<String, ?> attributes) {
+    if (condition == null || attributes == null) return false;
+    Object value = attributes.get(condition.key);
+    return value != null && condition.test(value);
+  }
+
+  /**
+   * @return the compiled caveat, or null, when it's no condition
+   */
+  static Condition compile(String caveat) {
+    int end = caveat.length();
+    int pos = 0;
+    if (pos == end || !isKeyStart(caveat.charAt(pos))) return null;
+    while (pos < end && isKeyPart(caveat.charAt(pos))) pos++;
+    String key = caveat.substring(0, pos);
+    pos = skipWhitespace(caveat, pos);
+    int opStart = pos;
+    while (pos < end && "=!<>".indexOf(caveat.charAt(pos)) >= 0) pos++;
+    String op = caveat.substring(opStart, pos);
+    if (op.isEmpty()) {
+      while (pos < end && Character.isLetter(caveat.charAt(pos))) pos++;
+      op = caveat.substring(opStart, pos);
+      // a word needs whitespace after it, since the value could start with a letter
+      if (pos == end || caveat.charAt(pos) > ' ') return null;
+    }
+    String value = caveat.substring(pos).trim();
+    switch (op) {
+      case "=":
+        return new Equals(key, value, false);
+      case "!=":
+        return new Equals(key, value, true);
+      case "<":
+      case "<=":
+      case ">":
+      case ">=":
+        long number = integer(value, 0, value.length());
+        return number != NO_INTEGER ? new Compare(key, op, number) : null;
+      case "in":
+        return new In(key, value.split(","));
+      case "matches":
+        return new Matches(key, value);
+      default:
+        return null;
+    }
+  }
+
+  private static boolean isKeyStart(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+  }
+
+  private static boolean isKeyPart(char c) {
+    return isKeyStart(c) || (c >= '0' && c <= '9') || c == '.' || c == '-';
+  }
+
+  private static int skipWhitespace(CharSequence s, int pos) {
+    while (pos < s.length() && s.charAt(pos) <= ' ') pos++;
+    return pos;
+  }
+
+  /**
+   * Like {@link Long#parseLong(String)}, but doesn't throw.
+   *
+   * @return the integer, or {@link #NO_INTEGER}, when it's none
+   */
+  private static long integer(CharSequence s, int from, int to) {
+    int i = from;
+    boolean negative = i < to && s.charAt(i) == '-';
+    if (negative || (i < to && s.charAt(i) == '+')) i++;
+    if (i == to || to - i > 19) return NO_INTEGER;
+    long value = 0;
+    for (; i < to; i++) {
+      int digit = s.charAt(i) - '0';
+      if (digit < 0 || digit > 9) return NO_INTEGER;
+      value = value * 10 + digit;
+      if (value < 0) return NO_INTEGER;
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * @return the attribute's integer, or {@link #NO_INTEGER}
+   */
+  private static long integerOf(Object value) {
+    if (isIntegral(value)) return ((Number) value).longValue();
+    String text = value instanceof String ? (String) value : value.toString();
+    return integer(text, 0, text.length());
+  }
+
+  private static boolean isIntegral(Object value) {
+    return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+  }
+
+  /**
+   * A compiled caveat, which tests the attribute of its key.
+   */
+  abstract static class Condition {
+    final String key;
+
+    Condition(String key) {
+      this.key = key;
+    }
+
+    abstract boolean test(Object value);
+  }
+
+  private static final class Equals extends Condition {
+    private final String text;
+    private final long number;
+    private final boolean negated;
+
+    Equals(String key, String text, boolean negated) {
+      super(key);
+      this.text = text;
+      this.number = integer(text, 0, text.length());
+      this.negated = negated;
+    }
+
+    @Override
+    boolean test(Object value) {
+      boolean equal;
+      if (isIntegral(value)) {
+        equal = number != NO_INTEGER && number == ((Number) value).longValue();
+      } else {
+        equal = text.equals(value instanceof String ? value : value.toString());
+      }
+      return equal != negated;
+    }
+  }
+
+  private static final class Compare extends Condition {
+    private final int sign;
+    private final boolean orEqual;
+    private final long number;
+
+    Compare(String key, String op, long number) {
+      super(key);
+      this.sign = op.charAt(0) == '<' ? -1 : 1;
+      this.orEqual = op.length() == 2;
+      this.number = number;
+    }
+
+    @Override
+    boolean test(Object value) {
+      long attribute = integerOf(value);
+      if (attribute == NO_INTEGER) return false;
+      int comparison = Long.compare(attribute, number);
+      return comparison == sign || (orEqual && comparison == 0);
+    }
+  }
+
+  private static final class In extends Condition {
+    private final Set<String> texts;
+    /* sorted integers of the values */
+    private final long[] numbers;
+
+    In(String key, String[] values) {
+      super(key);
+      this.texts = new HashSet<>(values.length * 2);
+      long[] integers = new long[values.length];
+      int count = 0;
+      for (String value : values) {
+        String trimmed = value.trim();
+        texts.add(trimmed);
+        long number = integer(trimmed, 0, trimmed.length());
+        if (number != NO_INTEGER) integers[count++] = number;
+      }
+      this.numbers = Arrays.copyOf(integers, count);
+      Arrays.sort(this.numbers);
+    }
+
+    @Override
+    boolean test(Object value) {
+      if (isIntegral(value)) {
+        return Arrays.binarySearch(numbers, ((Number) value).longValue()) >= 0;
+      }
+      return texts.contains(value instanceof String ? value : value.toString());
+    }
+  }
+
+  private static final class Matches extends Condition {
+    private final String glob;
+
+    Matches(String key, String glob) {
+      super(key);
+      this.glob = glob;
+    }
+
+    @Override
+    boolean test(Object value) {
+      return matches(glob, value instanceof String ? (String) value : value.toString());
+    }
+
+    /**
+     * Matches with backtracking to the last <code>*</code> only, which takes linear time for most globs.
+     */
+    static boolean matches(String glob, String s) {
+      int g = 0;
+      int i = 0;
+      int star = -1;
+      int starMatch = 0;
+      while (i < s.length()) {
+        if (g < glob.length() && (glob.charAt(g) == '?' || glob.charAt(g) == s.charAt(i))) {
+          g++;
+          i++;
+        } else if (g < glob.length() && glob.charAt(g) == '*') {
+          star = g++;
+          starMatch = i;
+        } else if (star >= 0) {
+          g = star + 1;
+          i = ++starMatch;
+        } else {
+          return false;
+        }
+      }
+      while (g < glob.length() && glob.charAt(g) == '*') g++;
+      return g == glob.length();
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.IDENTIFIER_CHARSET;
+
+/**
+ * <p>
+ * Remembers the parsed form of caveats, for general caveat verifiers, whose parsing is more expensive than looking it up.
+ * </p>
+ * The cache is keyed by the caveat's UTF-8 bytes, so it can be asked with a String or a slice of bytes.
+ * It's a fixed size table, every caveat has a single slot, which is taken over by the last caveat parsed for it.
+ * Caveats longer than the given limit are parsed every time, so the cache never holds more than
+ * capacity times that limit bytes of caveats.
+ * Lookups don't lock and, when the caveat is ASCII, don't allocate.
+ * <pre>{@code
+ * ParsedCaveatCache<Set<String>> cache = new ParsedCaveatCache<>(1024, 256, new Function<String, Set<String>>() {...});
+ * Set<String> parsed = cache.get(caveat);
+ * }</pre>
+ * This class is thread safe. The parser must be thread safe, too, and always return the same result for the same caveat.
+ *
+ * @param <T> the parsed form of a caveat, which should be immutable
+ */
+public final class ParsedCaveatCache<T> {
+
+  private final AtomicReferenceArray<Entry<T>> entries;
+  private final int mask;
+  private final int maxCaveatLength;
+  private final Function<String, T> parser;
+
+  /**
+   * @param capacity        number of caveats to remember, rounded up to a power of two
+   * @param maxCaveatLength caveats with more UTF-8 bytes are not remembered
+   * @param parser          creates the parsed form of a caveat, may return null
+   */
+  public ParsedCaveatCache(int capacity, int maxCaveatLength, Function<String, T> parser) {
+    if (capacity <= 0 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("capacity must be between 1 and 2^30, but was " + capacity);
+    }
+    assert parser != null;
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    this.entries = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.maxCaveatLength = maxCaveatLength;
+    this.parser = parser;
+  }
+
+  /**
+   * @param caveat caveat
+   * @return the parsed caveat
+   */
+  public T get(String caveat) {
+    int length = caveat.length();
+    if (length > maxCaveatLength) {
+      return parser.apply(caveat);
+    }
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      char c = caveat.charAt(i);
+      if (c >= 0x80) {
+        // the UTF-8 bytes differ from the chars
+        byte[] bytes = caveat.getBytes(IDENTIFIER_CHARSET);
+        return get(bytes, 0, bytes.length, caveat);
+      }
+      hash = 31 * hash + c;
+    }
+    int index = spread(hash) & mask;
+    Entry<T> entry = entries.get(index);
+    if (entry != null && entry.hash == hash && entry.matches(caveat)) {
+      return entry.parsed;
+    }
+    T parsed = parser.apply(caveat);
+    entries.set(index, new Entry<>(hash, caveat.getBytes(IDENTIFIER_CHARSET), parsed));
+    return parsed;
+  }
+
+  /**
+   * @param caveat bytes, holding the caveat in UTF-8
+   * @param offset start of the caveat
+   * @param length length of the caveat
+   * @return the parsed caveat
+   */
+  public T get(byte[] caveat, int offset, int length) {
+    return get(caveat, offset, length, null);
+  }
+
+  private T get(byte[] caveat, int offset, int length, String text) {
+    if (length > maxCaveatLength) {
+      return parser.apply(text != null ? text : new String(caveat, offset, length, IDENTIFIER_CHARSET));
+    }
+    int hash = 0;
+    for (int i = offset, end = offset + length; i < end; i++) {
+      hash = 31 * hash + caveat[i];
+    }
+    int index = spread(hash) & mask;
+    Entry<T> entry = entries.get(index);
+    if (entry != null && entry.hash == hash && entry.matches(caveat, offset, length)) {
+      return entry.parsed;
+    }
+    T parsed = parser.apply(text != null ? text : new String(caveat, offset, length, IDENTIFIER_CHARSET));
+    byte[] key = new byte[length];
+    System.arraycopy(caveat, offset, key, 0, length);
+    entries.set(index, new Entry<>(hash, key, parsed));
+    return parsed;
+  }
+
+  /* mixes the higher bits into the lower ones, which select the slot */
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static final class Entry<T> {
+    final int hash;
+    final byte[] caveat;
+    final T parsed;
+
+    Entry(int hash, byte[] caveat, T parsed) {
+      this.hash = hash;
+      this.caveat = caveat;
+      this.parsed = parsed;
+    }
+
+    /* the String is ASCII */
+    boolean matches(String s) {
+      if (caveat.length != s.length()) return false;
+      for (int i = 0; i < caveat.length; i++) {
+        if (caveat[i] != s.charAt(i)) return false;
+      }
+      return true;
+    }
+
+    boolean matches(byte[] bytes, int offset, int length) {
+      if (caveat.length != length) return false;
+      for (int i = 0; i < length; i++) {
+        if (caveat[i] != bytes[offset + i]) return false;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import com.github.nitram509.jmacaroons.RawCaveatVerifier;
+import com.github.nitram509.jmacaroons.util.CaveatBytes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.IDENTIFIER_CHARSET;
+
+/**
+ * <p>
+ * A verifier, which restricts a macaroon to resources, whose paths match a glob, i.e. <code>"path&nbsp;=&nbsp;/buckets/acme/*&#47;reports/**"</code>.
+ * </p>
+ * <table>
+ * <caption><strong>Glob syntax</strong></caption>
+ * <tr>
+ * <th>Pattern</th>
+ * <th>Matches</th>
+ * </tr>
+ * <tr>
+ * <td><code>*</code></td>
+ * <td>any chars within a path segment, but no <code>/</code></td>
+ * </tr>
+ * <tr>
+ * <td><code>**</code></td>
+ * <td>any chars, including <code>/</code></td>
+ * </tr>
+ * <tr>
+ * <td><code>?</code></td>
+ * <td>a single char, but no <code>/</code></td>
+ * </tr>
+ * </table>
+ * <p>
+ * All other chars match themselves. A caveat may list several globs separated by commas,
+ * the path has to match one of them. So globs can't contain commas, and they are trimmed.
+ * </p>
+ * The globs of a caveat are compiled once into a deterministic automaton, which is shared by all instances.
+ * Matching a path is a single pass over its UTF-8 bytes, with one table lookup per byte.
+ * Caveats longer than {@value #MAX_CAVEAT_LENGTH} bytes, and globs, whose automaton would exceed {@value #MAX_STATES} states
+ * or take too long to build, are never satisfied.
+ * <p>
+ * The globs are matched against the path as it is, so the path must be canonical and decoded,
+ * else <code>/buckets/acme/x/reports/../../other</code> would match <code>/buckets/acme/*&#47;reports/**</code>.
+ * Paths holding <code>.</code> or <code>..</code> segments, or a <code>%</code>, are rejected.
+ * </p>
+ * <pre>{@code
+ * String path = URI.create(request.getRequestURI()).normalize().getPath();
+ * new MacaroonsVerifier(macaroon)
+ *     .satisfyGeneral(new PathCaveatVerifier(path))
+ *     .assertIsValid(secret);
+ * }</pre>
+ */
+public class PathCaveatVerifier implements RawCaveatVerifier {
+
+  public static final String CAVEAT_PREFIX = "path = ";
+  public static final int MAX_STATES = 4096;
+  public static final int MAX_CAVEAT_LENGTH = 1024;
+
+  private static final byte[] CAVEAT_PREFIX_BYTES = CAVEAT_PREFIX.getBytes(StandardCharsets.US_ASCII);
+  private static final int CACHE_CAPACITY = 1024;
+
+  /* null for caveats, which aren't valid globs, all caveats short enough to be compiled are cached */
+  private static final ParsedCaveatCache<Automaton> PARSED_GLOBS = new ParsedCaveatCache<>(CACHE_CAPACITY, MAX_CAVEAT_LENGTH,
+      new Function<String, Automaton>() {
+        @Override
+        public Automaton apply(String caveat) {
+          return caveat.startsWith(CAVEAT_PREFIX) ? Automaton.compile(caveat.substring(CAVEAT_PREFIX.length()).split(",")) : null;
+        }
+      });
+
+  private final byte[] path;
+
+  /**
+   * @param path path of the requested resource, canonical and decoded
+   * @throws IllegalArgumentException when the path holds <code>.</code> or <code>..</code> segments, or a <code>%</code>
+   */
+  public PathCaveatVerifier(String path) throws IllegalArgumentException {
+    this.path = path.getBytes(IDENTIFIER_CHARSET);
+    checkCanonical(this.path);
+  }
+
+  private static void checkCanonical(byte[] path) {
+    int segmentStart = 0;
+    for (int i = 0; i <= path.length; i++) {
+      if (i < path.length && path[i] == '%') {
+        throw new IllegalArgumentException("Path must be decoded, but holds a '%' at index " + i + ".");
+      }
+      if (i == path.length || path[i] == '/') {
+        int length = i - segmentStart;
+        if ((length == 1 || length == 2) && path[segmentStart] == '.' && path[i - 1] == '.') {
+          throw new IllegalArgumentException("Path must be canonical, but holds a '.' or '..' segment at index " + segmentStart + ".");
+        }
+        segmentStart = i + 1;
+      }
+    }
+  }
+
+  @Override
+  public boolean verifyCaveat(String caveat) {
+    if (!caveat.startsWith(CAVEAT_PREFIX) || caveat.length() > MAX_CAVEAT_LENGTH) return false;
+    Automaton automaton = PARSED_GLOBS.get(caveat);
+    return automaton != null && automaton.matches(path, 0, path.length);
+  }
+
+  @Override
+  public boolean verifyCaveat(byte[] caveat, int offset, int length) {
+    if (length > MAX_CAVEAT_LENGTH || !CaveatBytes.startsWith(caveat, offset, length, CAVEAT_PREFIX_BYTES)) return false;
+    Automaton automaton = PARSED_GLOBS.get(caveat, offset, length);
+    return automaton != null && automaton.matches(path, 0, path.length);
+  }
+
+  /**
+   * A DFA over classes of bytes, which the globs don't tell apart.
+   */
+  static final class Automaton {
+
+    private static final int DEAD = -1;
+    /* bound of the steps to build the DFA, i.e. the NFA states and set words of every DFA state, times the byte classes */
+    private static final long MAX_WORK = 1L << 18;
+
+    /* tokens of a glob, literal bytes are 0..255 */
+    private static final int LEADING_BYTE = 256;
+    private static final int CONTINUATION_BYTES = 257;
+    private static final int ANY_IN_SEGMENT = 258;
+    private static final int ANY = 259;
+
+    private final short[] classOf;
+    private final int classCount;
+    /* the next state of state s and class c is at s * classCount + c */
+    private final int[] transitions;
+    private final boolean[] accepting;
+
+    private Automaton(short[] classOf, int classCount, int[] transitions, boolean[] accepting) {
+      this.classOf = classOf;
+      this.classCount = classCount;
+      this.transitions = transitions;
+      this.accepting = accepting;
+    }
+
+    boolean matches(byte[] bytes, int offset, int length) {
+      int state = 0;
+      for (int i = offset, end = offset + length; i < end; i++) {
+        state = transitions[state * classCount + classOf[bytes[i] & 0xff]];
+        if (state == DEAD) return false;
+      }
+      return accepting[state];
+    }
+
+    /**
+     * Builds the NFA, whose state i of a glob means its first i tokens matched, and turns it into a DFA.
+     *
+     * @return the automaton, or null, when the globs are too long, or it has too many states or takes too long to build
+     */
+    static Automaton compile(String[] globs) {
+      List<int[]> patterns = new ArrayList<>(globs.length);
+      int length = 0;
+      for (String glob : globs) {
+        byte[] bytes = glob.trim().getBytes(IDENTIFIER_CHARSET);
+        length += bytes.length;
+        // non ASCII caveats may pass the check of their chars
+        if (length > MAX_CAVEAT_LENGTH) return null;
+        patterns.add(tokens(bytes));
+      }
+      // NFA states of all globs, numbered one after another, the last one of each glob accepts
+      int stateCount = 0;
+      for (int[] tokens : patterns) stateCount += tokens.length + 1;
+      int[] token = new int[stateCount];
+      boolean[] nfaAccepting = new boolean[stateCount];
+      BitSet start = new BitSet(stateCount);
+      int next = 0;
+      for (int[] tokens : patterns) {
+        start.set(next);
+        System.arraycopy(tokens, 0, token, next, tokens.length);
+        next += tokens.length;
+        token[next] = DEAD;
+        nfaAccepting[next++] = true;
+      }
+
+      // bytes, which no glob names, behave the same, unless one is a UTF-8 continuation byte and the other isn't
+      short[] classOf = new short[256];
+      Arrays.fill(classOf, (short) -1);
+      int[] representative = new int[256];
+      int classCount = 0;
+      classOf['/'] = (short) classCount;
+      representative[classCount++] = '/';
+      for (int t : token) {
+        if (t >= 0 && t < 256 && classOf[t] < 0) {
+          classOf[t] = (short) classCount;
+          representative[classCount++] = t;
+        }
+      }
+      int otherClass = -1;
+      int continuationClass = -1;
+      for (int b = 0; b < 256; b++) {
+        if (classOf[b] >= 0) continue;
+        if (isContinuation(b)) {
+          if (continuationClass < 0) {
+            continuationClass = classCount;
+            representative[classCount++] = b;
+          }
+          classOf[b] = (short) continuationClass;
+        } else {
+          if (otherClass < 0) {
+            otherClass = classCount;
+            representative[classCount++] = b;
+          }
+          classOf[b] = (short) otherClass;
+        }
+      }
+
+      Map<BitSet, Integer> states = new HashMap<>();
+      List<BitSet> queue = new ArrayList<>();
+      BitSet first = closure(start, token);
+      states.put(first, 0);
+      queue.add(first);
+      int[] transitions = new int[16 * classCount];
+      long work = 0;
+      for (int s = 0; s < queue.size(); s++) {
+        BitSet current = queue.get(s);
+        work += (long) classCount * (current.cardinality() + stateCount / 64 + 1);
+        if (work > MAX_WORK) return null;
+        for (int c = 0; c < classCount; c++) {
+          BitSet target = new BitSet(stateCount);
+          int b = representative[c];
+          for (int i = current.nextSetBit(0); i >= 0; i = current.nextSetBit(i + 1)) {
+            int t = token[i];
+            if (t == ANY || (t == ANY_IN_SEGMENT && b != '/') || (t == CONTINUATION_BYTES && isContinuation(b))) {
+              target.set(i);
+            } else if (t == b || (t == LEADING_BYTE && b != '/' && !isContinuation(b))) {
+              target.set(i + 1);
+            }
+          }
+          int targetState = DEAD;
+          if (!target.isEmpty()) {
+            target = closure(target, token);
+            Integer known = states.get(target);
+            if (known == null) {
+              if (queue.size() == MAX_STATES) return null;
+              known = queue.size();
+              states.put(target, known);
+              queue.add(target);
+            }
+            targetState = known;
+          }
+          if ((s + 1) * classCount > transitions.length) {
+            transitions = Arrays.copyOf(transitions, transitions.length * 2);
+          }
+          transitions[s * classCount + c] = targetState;
+        }
+      }
+      boolean[] accepting = new boolean[queue.size()];
+      for (int s = 0; s < accepting.length; s++) {
+        BitSet current = queue.get(s);
+        for (int i = current.nextSetBit(0); i >= 0 && !accepting[s]; i = current.nextSetBit(i + 1)) {
+          accepting[s] = nfaAccepting[i];
+        }
+      }
+      return new Automaton(classOf, classCount, Arrays.copyOf(transitions, queue.size() * classCount), accepting);
+    }
+
+    /* adds the states reached by letting a star, or the continuation bytes of a char, match nothing */
+    private static BitSet closure(BitSet states, int[] token) {
+      for (int i = states.nextSetBit(0); i >= 0; i = states.nextSetBit(i + 1)) {
+        if (token[i] == ANY || token[i] == ANY_IN_SEGMENT || token[i] == CONTINUATION_BYTES) states.set(i + 1);
+      }
+      return states;
+    }
+
+    private static boolean isContinuation(int b) {
+      return (b & 0xc0) == 0x80;
+    }
+
+    private static int[] tokens(byte[] glob) {
+      int[] tokens = new int[2 * glob.length];
+      int count = 0;
+      for (int i = 0; i < glob.length; i++) {
+        if (glob[i] == '*') {
+          boolean any = i + 1 < glob.length && glob[i + 1] == '*';
+          if (any) i++;
+          int star = any ? ANY : ANY_IN_SEGMENT;
+          // consecutive stars match the same as the wider one
+          if (count > 0 && (tokens[count - 1] == ANY || tokens[count - 1] == ANY_IN_SEGMENT)) {
+            tokens[count - 1] = Math.max(tokens[count - 1], star);
+          } else {
+            tokens[count++] = star;
+          }
+        } else if (glob[i] == '?') {
+          // a single char of a UTF-8 path, i.e. a byte starting a char and the continuation bytes after it
+          tokens[count++] = LEADING_BYTE;
+          tokens[count++] = CONTINUATION_BYTES;
+        } else {
+          tokens[count++] = glob[i] & 0xff;
+        }
+      }
+      return Arrays.copyOf(tokens, count);
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+/**
+ * Remembers the nonces of single use macaroons, for the {@link SingleUseCaveatVerifier}.
+ * A nonce is checked by {@link #isUsed(byte[], int, int)} while a macaroon is verified,
+ * and marked used only after the macaroon's signature matched, so forged macaroons neither use up nor fill the store.
+ * Implementations must be thread safe, and may share the used nonces between nodes.
+ */
+public interface ReplayStore {
+
+  /**
+   * @param nonce  bytes, holding the nonce
+   * @param offset start of the nonce
+   * @param length length of the nonce
+   * @return true, when the nonce was used before, or can't be used at all
+   */
+  boolean isUsed(byte[] nonce, int offset, int length);
+
+  /**
+   * Marks the nonce as used, atomically with checking, whether it was used before.
+   *
+   * @param nonce  bytes, holding the nonce
+   * @param offset start of the nonce
+   * @param length length of the nonce
+   * @return true, when the nonce wasn't used before, false, when it's a replay
+   */
+  boolean markUsed(byte[] nonce, int offset, int length);
+}
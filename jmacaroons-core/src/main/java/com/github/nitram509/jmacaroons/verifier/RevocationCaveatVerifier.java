@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import com.github.nitram509.jmacaroons.RawCaveatVerifier;
+import com.github.nitram509.jmacaroons.util.CaveatBytes;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>
+ * A verifier, which rejects revoked macaroons, i.e. <code>"revocation-id&nbsp;=&nbsp;4f1c2a"</code> is satisfied, unless <code>4f1c2a</code> is revoked.
+ * </p>
+ * The revoked ids are looked up in a {@link RevocationSnapshot}, which may be replaced at any time,
+ * i.e. every minute by {@link #reload(Path)}. Every check looks at the current snapshot,
+ * so the checks of a request, which runs meanwhile, may see the old and the new one.
+ * {@link #forSnapshot()} binds a verifier to the current snapshot, so all checks of a request see the same one.
+ * A snapshot may also hold revoked macaroon identifiers, {@link #isRevoked(String)} checks them.
+ * This class is thread safe, a single instance should be shared by all requests.
+ * <pre>{@code
+ * static final RevocationCaveatVerifier REVOCATIONS = new RevocationCaveatVerifier(RevocationSnapshot.open(file));
+ * // ... every minute
+ * REVOCATIONS.reload(file);
+ * // ... for every request
+ * RevocationCaveatVerifier revocations = REVOCATIONS.forSnapshot();
+ * if (revocations.isRevoked(macaroon.identifier)) throw new MacaroonValidationException("Revoked", macaroon);
+ * new MacaroonsVerifier(macaroon)
+ *     .satisfyGeneral(revocations)
+ *     .assertIsValid(secret);
+ * }</pre>
+ */
+public class RevocationCaveatVerifier implements RawCaveatVerifier {
+
+  public static final String CAVEAT_PREFIX = "revocation-id = ";
+
+  private static final byte[] CAVEAT_PREFIX_BYTES = CAVEAT_PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+  private final AtomicReference<RevocationSnapshot> snapshot;
+
+  /**
+   * @param snapshot the revoked ids
+   */
+  public RevocationCaveatVerifier(RevocationSnapshot snapshot) {
+    if (snapshot == null) throw new IllegalArgumentException("Snapshot must not be null.");
+    this.snapshot = new AtomicReference<>(snapshot);
+  }
+
+  /**
+   * @return the current snapshot
+   */
+  public RevocationSnapshot snapshot() {
+    return snapshot.get();
+  }
+
+  /**
+   * @return a verifier of the current snapshot, which doesn't see later updates of this verifier
+   */
+  public RevocationCaveatVerifier forSnapshot() {
+    return new RevocationCaveatVerifier(snapshot.get());
+  }
+
+  /**
+   * @param newSnapshot replaces the current snapshot
+   * @return the replaced snapshot
+   */
+  public RevocationSnapshot update(RevocationSnapshot newSnapshot) {
+    if (newSnapshot == null) throw new IllegalArgumentException("Snapshot must not be null.");
+    return snapshot.getAndSet(newSnapshot);
+  }
+
+  /**
+   * Maps the snapshot file and replaces the current snapshot with it.
+   * When the file can't be read, the current snapshot stays in place.
+   *
+   * @param file snapshot file, as written by {@link RevocationSnapshot#write(Path, java.util.Collection)}
+   * @throws IOException              when reading the file fails
+   * @throws IllegalArgumentException when the file is no valid snapshot
+   */
+  public void reload(Path file) throws IOException, IllegalArgumentException {
+    update(RevocationSnapshot.open(file));
+  }
+
+  /**
+   * @param identifier macaroon identifier
+   * @return true, when the identifier is revoked
+   */
+  public boolean isRevoked(String identifier) {
+    return snapshot.get().isRevoked(identifier);
+  }
+
+  @Override
+  public boolean verifyCaveat(String caveat) {
+    return caveat.startsWith(CAVEAT_PREFIX) && !snapshot.get().isRevoked(caveat.substring(CAVEAT_PREFIX.length()));
+  }
+
+  @Override
+  public boolean verifyCaveat(byte[] caveat, int offset, int length) {
+    if (!CaveatBytes.startsWith(caveat, offset, length, CAVEAT_PREFIX_BYTES)) return false;
+    int prefixLength = CAVEAT_PREFIX_BYTES.length;
+    return !snapshot.get().isRevoked(caveat, offset + prefixLength, length - prefixLength);
+  }
+}
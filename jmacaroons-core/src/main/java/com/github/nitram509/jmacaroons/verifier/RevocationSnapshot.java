@@ -0,0 +1,234 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.IDENTIFIER_CHARSET;
+
+/**
+ * <p>
+ * An immutable set of revoked macaroon identifiers or revocation ids, read from a memory mapped file.
+ * </p>
+ * The file holds a Bloom filter, which rules out most ids with a single 64 bit read,
+ * and the sorted 64 bit fingerprints of all revoked ids, which confirm a revocation with a binary search.
+ * Since the file is mapped, the set lives outside of the Java heap, and all JVMs on a host share its pages.
+ * <pre>
+ * snapshot    = MAGIC VERSION hash-count bloom-words count bloom-word* fingerprint*
+ * </pre>
+ * All numbers are big endian, hash-count, bloom-words and count are ints, the Bloom filter's words and the fingerprints are longs.
+ * A snapshot is written to a temporary file, which is then moved over the old one, so readers never see a partial file.
+ * <pre>{@code
+ * RevocationSnapshot.write(Paths.get("/var/lib/app/revoked"), revokedIds);
+ * RevocationSnapshot snapshot = RevocationSnapshot.open(Paths.get("/var/lib/app/revoked"));
+ * }</pre>
+ * This class is thread safe.
+ */
+public final class RevocationSnapshot {
+
+  static final int MAGIC = 0x4a4d5256; // "JMRV"
+  static final int VERSION = 1;
+
+  private static final int HEADER_LENGTH = 20;
+  private static final int BITS_PER_ID = 10;
+  private static final int HASH_COUNT = 6;
+
+  /**
+   * A snapshot without any revoked ids.
+   */
+  public static final RevocationSnapshot EMPTY = new RevocationSnapshot(ByteBuffer.wrap(build(new long[0])));
+
+  private final ByteBuffer buffer;
+  private final int hashCount;
+  private final int bloomMask;
+  private final int fingerprintsOffset;
+  private final int count;
+
+  private RevocationSnapshot(ByteBuffer buffer) {
+    if (buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new IllegalArgumentException("Not a revocation snapshot, or an unsupported version.");
+    }
+    this.buffer = buffer;
+    this.hashCount = buffer.getInt(8);
+    int bloomWords = buffer.getInt(12);
+    this.count = buffer.getInt(16);
+    if (hashCount < 1 || hashCount > 64 || bloomWords <= 0 || Integer.bitCount(bloomWords) != 1 || count < 0
+        || (long) HEADER_LENGTH + 8L * bloomWords + 8L * count != buffer.capacity()) {
+      throw new IllegalArgumentException("Invalid revocation snapshot, header and size don't match.");
+    }
+    this.bloomMask = bloomWords - 1;
+    this.fingerprintsOffset = HEADER_LENGTH + 8 * bloomWords;
+  }
+
+  /**
+   * Maps the snapshot file into memory, the file may be replaced afterwards.
+   *
+   * @param file snapshot file, as written by {@link #write(Path, Collection)}
+   * @return the snapshot
+   * @throws IOException              when reading the file fails
+   * @throws IllegalArgumentException when the file is no valid snapshot
+   */
+  public static RevocationSnapshot open(Path file) throws IOException, IllegalArgumentException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Revocation snapshot is too big, " + channel.size() + " bytes.");
+      }
+      return new RevocationSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Writes a snapshot into a temporary file next to the given one, and moves it over the given file atomically.
+   *
+   * @param file       snapshot file
+   * @param revokedIds revoked identifiers or revocation ids
+   * @throws IOException when writing the file fails
+   */
+  public static void write(Path file, Collection<String> revokedIds) throws IOException {
+    long[] fingerprints = new long[revokedIds.size()];
+    int i = 0;
+    for (String id : revokedIds) {
+      byte[] bytes = id.getBytes(IDENTIFIER_CHARSET);
+      fingerprints[i++] = fingerprint(bytes, 0, bytes.length);
+    }
+    ByteBuffer snapshot = ByteBuffer.wrap(build(fingerprints));
+    Path parent = file.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        while (snapshot.hasRemaining()) {
+          channel.write(snapshot);
+        }
+        channel.force(true);
+      }
+      Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * @return the snapshot's bytes, the fingerprints get sorted and deduplicated
+   */
+  static byte[] build(long[] fingerprints) {
+    Arrays.sort(fingerprints);
+    int count = 0;
+    for (int i = 0; i < fingerprints.length; i++) {
+      if (i == 0 || fingerprints[i] != fingerprints[i - 1]) fingerprints[count++] = fingerprints[i];
+    }
+    long bits = Math.max(64, (long) count * BITS_PER_ID);
+    int bloomWords = Integer.highestOneBit((int) Math.min(1 << 30, (bits + 63) / 64));
+    if ((long) bloomWords * 64 < bits && bloomWords < 1 << 30) bloomWords <<= 1;
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + 8 * bloomWords + 8 * count);
+    buffer.putInt(MAGIC).putInt(VERSION).putInt(HASH_COUNT).putInt(bloomWords).putInt(count);
+    int mask = bloomWords - 1;
+    for (int i = 0; i < count; i++) {
+      int word = HEADER_LENGTH + 8 * wordIndex(fingerprints[i], mask);
+      buffer.putLong(word, buffer.getLong(word) | bloomBits(fingerprints[i], HASH_COUNT));
+    }
+    buffer.position(HEADER_LENGTH + 8 * bloomWords);
+    for (int i = 0; i < count; i++) {
+      buffer.putLong(fingerprints[i]);
+    }
+    return buffer.array();
+  }
+
+  /**
+   * @return number of revoked ids
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @param id revoked identifier or revocation id
+   * @return true, when the id is revoked
+   */
+  public boolean isRevoked(String id) {
+    byte[] bytes = id.getBytes(IDENTIFIER_CHARSET);
+    return isRevoked(bytes, 0, bytes.length);
+  }
+
+  /**
+   * @param id     bytes, holding the id in UTF-8
+   * @param offset start of the id
+   * @param length length of the id
+   * @return true, when the id is revoked
+   */
+  public boolean isRevoked(byte[] id, int offset, int length) {
+    long fingerprint = fingerprint(id, offset, length);
+    long bits = bloomBits(fingerprint, hashCount);
+    if ((buffer.getLong(HEADER_LENGTH + 8 * wordIndex(fingerprint, bloomMask)) & bits) != bits) {
+      return false;
+    }
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      long value = buffer.getLong(fingerprintsOffset + 8 * middle);
+      if (value < fingerprint) {
+        low = middle + 1;
+      } else if (value > fingerprint) {
+        high = middle - 1;
+      } else {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /* the Bloom filter is blocked, all bits of an id are in a single word */
+  private static int wordIndex(long fingerprint, int mask) {
+    return (int) (fingerprint >>> 32) & mask;
+  }
+
+  private static long bloomBits(long fingerprint, int hashCount) {
+    long bits = 0;
+    int h = (int) fingerprint;
+    int step = (h >>> 26) | 1;
+    for (int i = 0; i < hashCount; i++) {
+      bits |= 1L << (h & 63);
+      h = Integer.rotateRight(h, 6) + step;
+    }
+    return bits;
+  }
+
+  /**
+   * A 64 bit hash of the id, FNV-1a with the finalizer of MurmurHash3, so every bit depends on all bytes.
+   * Collisions would only make a few ids look revoked, they can't hide a revoked one.
+   */
+  static long fingerprint(byte[] id, int offset, int length) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = offset, end = offset + length; i < end; i++) {
+      h = (h ^ (id[i] & 0xff)) * 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import com.github.nitram509.jmacaroons.RawCaveatVerifier;
+import com.github.nitram509.jmacaroons.VerificationHook;
+import com.github.nitram509.jmacaroons.util.CaveatBytes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.github.nitram509.jmacaroons.MacaroonsConstants.IDENTIFIER_CHARSET;
+
+/**
+ * <p>
+ * A verifier, which lets a macaroon be used once only, i.e. <code>"nonce&nbsp;=&nbsp;7c9e6679"</code>
+ * is satisfied the first time, and never again.
+ * </p>
+ * The used nonces are remembered by a {@link ReplayStore}, by default a {@link TimeWindowedReplayStore}.
+ * Since a store forgets nonces after a while, single use macaroons should expire before, i.e. by a <code>"time&nbsp;&lt;&nbsp;..."</code> caveat.
+ * While a macaroon is verified, its nonces are only checked. They are used up by {@link #afterVerification()},
+ * once the macaroon's signature matched, so forged macaroons don't use up nonces.
+ * When two requests verify the same nonce at once, only the first one to commit it is valid.
+ * This class is not thread safe, it holds the nonces of a verification, so a new instance is created for every request,
+ * while the store is shared by all requests.
+ * <pre>{@code
+ * static final ReplayStore NONCES = new TimeWindowedReplayStore(10, TimeUnit.MINUTES);
+ * // ... for every request
+ * new MacaroonsVerifier(macaroon)
+ *     .satisfyGeneral(new TimestampCaveatVerifier())
+ *     .satisfyGeneral(new SingleUseCaveatVerifier(NONCES))
+ *     .assertIsValid(secret);
+ * }</pre>
+ */
+public class SingleUseCaveatVerifier implements RawCaveatVerifier, VerificationHook {
+
+  public static final String CAVEAT_PREFIX = "nonce = ";
+
+  private static final byte[] CAVEAT_PREFIX_BYTES = CAVEAT_PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+  private final ReplayStore store;
+  /* nonces, which were checked, but aren't used up yet */
+  private final List<byte[]> checked = new ArrayList<>(1);
+
+  /**
+   * @param store remembers the used nonces, shared by all requests
+   */
+  public SingleUseCaveatVerifier(ReplayStore store) {
+    if (store == null) throw new IllegalArgumentException("Replay store must not be null.");
+    this.store = store;
+  }
+
+  @Override
+  public boolean verifyCaveat(String caveat) {
+    if (!caveat.startsWith(CAVEAT_PREFIX)) return false;
+    byte[] bytes = caveat.getBytes(IDENTIFIER_CHARSET);
+    return verifyCaveat(bytes, 0, bytes.length);
+  }
+
+  @Override
+  public boolean verifyCaveat(byte[] caveat, int offset, int length) {
+    if (!CaveatBytes.startsWith(caveat, offset, length, CAVEAT_PREFIX_BYTES)) return false;
+    int prefixLength = CAVEAT_PREFIX_BYTES.length;
+    if (length <= prefixLength || store.isUsed(caveat, offset + prefixLength, length - prefixLength)) return false;
+    byte[] nonce = Arrays.copyOfRange(caveat, offset + prefixLength, offset + length);
+    for (byte[] known : checked) {
+      if (Arrays.equals(known, nonce)) return true;
+    }
+    checked.add(nonce);
+    return true;
+  }
+
+  @Override
+  public void beforeVerification() {
+    checked.clear();
+  }
+
+  /**
+   * Uses up the checked nonces.
+   *
+   * @return false, when a nonce was used meanwhile
+   */
+  @Override
+  public boolean afterVerification() {
+    try {
+      for (byte[] nonce : checked) {
+        if (!store.markUsed(nonce, 0, nonce.length)) return false;
+      }
+      return true;
+    } finally {
+      checked.clear();
+    }
+  }
+}
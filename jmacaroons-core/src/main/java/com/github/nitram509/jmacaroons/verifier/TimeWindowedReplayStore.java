@@ -0,0 +1,386 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * The default {@link ReplayStore}, which remembers used nonces in memory for a window of time.
+ * </p>
+ * Time is cut into buckets, {@value #BUCKETS} buckets cover the window plus the current one.
+ * A nonce is put into the bucket of the current time, and is forgotten with the whole bucket,
+ * as soon as the bucket falls out of the window, so there are no timers per nonce.
+ * A nonce is remembered for at least the window, and at most a seventh of the window longer.
+ * <p>
+ * The nonces are spread over shards, each one with its own lock, and are kept as 64 bit fingerprints
+ * in open addressing tables, so concurrent requests rarely wait for each other.
+ * The fingerprints are keyed by a random seed per store, so nonces, whose fingerprints collide, can't be chosen in advance.
+ * </p>
+ * Optionally, the nonces are appended to a journal, one file per bucket, which is read again, when the store is created.
+ * So used nonces survive a restart. Files of forgotten buckets are deleted.
+ * The journal isn't forced to disk before {@link #close()}, so it survives the JVM crashing, but not the host.
+ * <pre>{@code
+ * TimeWindowedReplayStore store = new TimeWindowedReplayStore(10, TimeUnit.MINUTES, Paths.get("/var/lib/app/nonces"));
+ * SingleUseCaveatVerifier verifier = new SingleUseCaveatVerifier(store);
+ * }</pre>
+ * This class is thread safe.
+ */
+public class TimeWindowedReplayStore implements ReplayStore, Closeable {
+
+  public static final int BUCKETS = 8;
+  /* longer nonces are never satisfied, the journal stores the length in two bytes */
+  public static final int MAX_NONCE_LENGTH = 1024;
+
+  private static final int SHARDS = 64;
+  /* marks empty slots, no fingerprint is zero */
+  private static final long EMPTY = 0;
+
+  private final long bucketMillis;
+  private final Clock clock;
+  private final long seed;
+  private final Shard[] shards;
+  /* null, without a journal */
+  private final Journal journal;
+
+  /**
+   * @param window how long nonces are remembered, at least
+   * @param unit   unit of the window
+   */
+  public TimeWindowedReplayStore(long window, TimeUnit unit) {
+    this(window, unit, Clock.systemUTC());
+  }
+
+  /**
+   * @param window how long nonces are remembered, at least
+   * @param unit   unit of the window
+   * @param clock  clock to decide, which nonces are forgotten
+   */
+  public TimeWindowedReplayStore(long window, TimeUnit unit, Clock clock) {
+    this(bucketMillisOf(unit.toMillis(window)), clock, null);
+  }
+
+  /**
+   * @param window           how long nonces are remembered, at least
+   * @param unit             unit of the window
+   * @param journalDirectory directory of the journal, it's created if missing, and read if not
+   * @throws IOException when reading the journal fails
+   */
+  public TimeWindowedReplayStore(long window, TimeUnit unit, Path journalDirectory) throws IOException {
+    this(window, unit, journalDirectory, Clock.systemUTC());
+  }
+
+  /**
+   * @param window           how long nonces are remembered, at least
+   * @param unit             unit of the window
+   * @param journalDirectory directory of the journal, it's created if missing, and read if not
+   * @param clock            clock to decide, which nonces are forgotten
+   * @throws IOException when reading the journal fails
+   */
+  public TimeWindowedReplayStore(long window, TimeUnit unit, Path journalDirectory, Clock clock) throws IOException {
+    this(bucketMillisOf(unit.toMillis(window)), clock, new Journal(journalDirectory));
+    try {
+      journal.load(this, epochOf(clock.millis()));
+    } catch (IOException | RuntimeException e) {
+      // the files read so far are open already
+      journal.close();
+      throw e;
+    }
+  }
+
+  private TimeWindowedReplayStore(long bucketMillis, Clock clock, Journal journal) {
+    assert clock != null;
+    this.bucketMillis = bucketMillis;
+    this.clock = clock;
+    this.seed = new SecureRandom().nextLong();
+    this.shards = new Shard[SHARDS];
+    for (int i = 0; i < SHARDS; i++) {
+      shards[i] = new Shard();
+    }
+    this.journal = journal;
+  }
+
+  private static long bucketMillisOf(long windowMillis) {
+    if (windowMillis < 1) {
+      throw new IllegalArgumentException("Window must be at least a millisecond, but got " + windowMillis);
+    }
+    return (windowMillis + BUCKETS - 2) / (BUCKETS - 1);
+  }
+
+  @Override
+  public boolean isUsed(byte[] nonce, int offset, int length) {
+    if (length > MAX_NONCE_LENGTH) return true;
+    long fingerprint = fingerprint(nonce, offset, length);
+    return shardOf(fingerprint).isUsed(fingerprint, epochOf(clock.millis()));
+  }
+
+  /**
+   * @throws UncheckedIOException when appending to the journal fails, the nonce counts as used nevertheless
+   */
+  @Override
+  public boolean markUsed(byte[] nonce, int offset, int length) throws UncheckedIOException {
+    if (length > MAX_NONCE_LENGTH) return false;
+    long epoch = epochOf(clock.millis());
+    if (!remember(nonce, offset, length, epoch, epoch)) return false;
+    if (journal != null) journal.append(this, epoch, nonce, offset, length);
+    return true;
+  }
+
+  /**
+   * @return number of remembered nonces
+   */
+  public int size() {
+    long now = epochOf(clock.millis());
+    int size = 0;
+    for (Shard shard : shards) {
+      size += shard.size(now);
+    }
+    return size;
+  }
+
+  /**
+   * Forces the journal to disk and closes it, nonces can't be marked used afterwards.
+   */
+  @Override
+  public void close() throws IOException {
+    if (journal != null) journal.close();
+  }
+
+  private long epochOf(long millis) {
+    return Math.floorDiv(millis, bucketMillis);
+  }
+
+  private boolean remember(byte[] nonce, int offset, int length, long epoch, long now) {
+    long fingerprint = fingerprint(nonce, offset, length);
+    return shardOf(fingerprint).markUsed(fingerprint, epoch, now);
+  }
+
+  private Shard shardOf(long fingerprint) {
+    return shards[(int) (fingerprint >>> 58) & (SHARDS - 1)];
+  }
+
+  /* like RevocationSnapshot's fingerprint, but starting with the seed */
+  private long fingerprint(byte[] nonce, int offset, int length) {
+    long h = seed;
+    for (int i = offset, end = offset + length; i < end; i++) {
+      h = (h ^ (nonce[i] & 0xff)) * 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h != EMPTY ? h : 1;
+  }
+
+  /**
+   * The buckets of some of the nonces, bucket b holds the nonces of an epoch e, where e modulo {@link #BUCKETS} is b.
+   */
+  private static final class Shard {
+
+    private final long[] epochs = new long[BUCKETS];
+    private final long[][] tables = new long[BUCKETS][];
+    private final int[] sizes = new int[BUCKETS];
+
+    Shard() {
+      Arrays.fill(epochs, Long.MIN_VALUE);
+    }
+
+    synchronized boolean isUsed(long fingerprint, long now) {
+      for (int b = 0; b < BUCKETS; b++) {
+        if (epochs[b] > now - BUCKETS && contains(tables[b], fingerprint)) return true;
+      }
+      return false;
+    }
+
+    synchronized boolean markUsed(long fingerprint, long epoch, long now) {
+      if (isUsed(fingerprint, now)) return false;
+      int b = (int) Math.floorMod(epoch, (long) BUCKETS);
+      if (epochs[b] != epoch) {
+        // the bucket's old nonces are forgotten as a whole
+        epochs[b] = epoch;
+        tables[b] = null;
+        sizes[b] = 0;
+      }
+      if (tables[b] == null) {
+        tables[b] = new long[16];
+      } else if (2 * (sizes[b] + 1) > tables[b].length) {
+        tables[b] = grow(tables[b]);
+      }
+      insert(tables[b], fingerprint);
+      sizes[b]++;
+      return true;
+    }
+
+    synchronized int size(long now) {
+      int size = 0;
+      for (int b = 0; b < BUCKETS; b++) {
+        if (epochs[b] > now - BUCKETS) size += sizes[b];
+      }
+      return size;
+    }
+
+    private static boolean contains(long[] table, long fingerprint) {
+      if (table == null) return false;
+      int mask = table.length - 1;
+      for (int i = (int) fingerprint & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+        if (table[i] == fingerprint) return true;
+      }
+      return false;
+    }
+
+    private static void insert(long[] table, long fingerprint) {
+      int mask = table.length - 1;
+      int i = (int) fingerprint & mask;
+      while (table[i] != EMPTY) i = (i + 1) & mask;
+      table[i] = fingerprint;
+    }
+
+    private static long[] grow(long[] table) {
+      long[] grown = new long[table.length * 2];
+      for (long fingerprint : table) {
+        if (fingerprint != EMPTY) insert(grown, fingerprint);
+      }
+      return grown;
+    }
+  }
+
+  /**
+   * Files named by the first millisecond of their bucket, holding records of a two byte length and the nonce.
+   */
+  private static final class Journal implements Closeable {
+
+    private static final String SUFFIX = ".nonces";
+
+    private final Path directory;
+    /* channels of the buckets' files by epoch, guarded by this */
+    private final TreeMap<Long, FileChannel> channels = new TreeMap<>();
+    private volatile Segment current = new Segment(Long.MIN_VALUE, null);
+
+    Journal(Path directory) throws IOException {
+      this.directory = Files.createDirectories(directory);
+    }
+
+    void load(TimeWindowedReplayStore store, long now) throws IOException {
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+        for (Path file : files) {
+          String name = file.getFileName().toString();
+          long startMillis;
+          try {
+            startMillis = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+          } catch (NumberFormatException e) {
+            continue;
+          }
+          long epoch = store.epochOf(startMillis);
+          if (epoch <= now - BUCKETS) {
+            Files.delete(file);
+            continue;
+          }
+          ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(file));
+          while (records.remaining() >= 2 && records.remaining() >= 2 + (records.getShort(records.position()) & 0xffff)) {
+            int length = records.getShort() & 0xffff;
+            store.remember(records.array(), records.position(), length, epoch, now);
+            records.position(records.position() + length);
+          }
+          FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+          if (records.hasRemaining()) {
+            // the last record was cut off, so later records must not be appended to it
+            channel.truncate(records.position());
+          }
+          // the file is deleted, like the files written since, when its bucket is forgotten
+          register(epoch, channel);
+        }
+      }
+    }
+
+    private synchronized void register(long epoch, FileChannel channel) throws IOException {
+      FileChannel previous = channels.put(epoch, channel);
+      if (previous != null) previous.close();
+    }
+
+    void append(TimeWindowedReplayStore store, long epoch, byte[] nonce, int offset, int length) throws UncheckedIOException {
+      ByteBuffer record = ByteBuffer.allocate(2 + length);
+      record.putShort((short) length).put(nonce, offset, length).flip();
+      try {
+        Segment segment = current;
+        FileChannel channel = segment.epoch == epoch ? segment.channel : channel(store, epoch);
+        if (channel == null) return;
+        // a single write, since appending concurrently to a channel doesn't interleave writes
+        channel.write(record);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /**
+     * @return the channel of the bucket, or null, when the bucket is forgotten already
+     */
+    private synchronized FileChannel channel(TimeWindowedReplayStore store, long epoch) throws IOException {
+      if (current.channel != null && epoch <= current.epoch - BUCKETS) return null;
+      FileChannel channel = channels.get(epoch);
+      if (channel == null) {
+        Path file = directory.resolve((epoch * store.bucketMillis) + SUFFIX);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        channels.put(epoch, channel);
+      }
+      if (epoch > current.epoch) {
+        current = new Segment(epoch, channel);
+        Iterator<Map.Entry<Long, FileChannel>> expired = channels.headMap(epoch - BUCKETS, true).entrySet().iterator();
+        while (expired.hasNext()) {
+          Map.Entry<Long, FileChannel> entry = expired.next();
+          entry.getValue().close();
+          Files.deleteIfExists(directory.resolve((entry.getKey() * store.bucketMillis) + SUFFIX));
+          expired.remove();
+        }
+      }
+      return channel;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      for (FileChannel channel : channels.values()) {
+        channel.force(false);
+        channel.close();
+      }
+    }
+  }
+
+  private static final class Segment {
+    final long epoch;
+    final FileChannel channel;
+
+    Segment(long epoch, FileChannel channel) {
+      this.epoch = epoch;
+      this.channel = channel;
+    }
+  }
+}
@@ -16,12 +16,15 @@
 
 package com.github.nitram509.jmacaroons.verifier;
 
-import com.github.nitram509.jmacaroons.GeneralCaveatVerifier;
+import com.github.nitram509.jmacaroons.RawCaveatVerifier;
+import com.github.nitram509.jmacaroons.util.CaveatBytes;
 
-import java.text.ParsePosition;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
 
 /**
  * <p>
@@ -37,8 +40,12 @@ import java.util.Date;
  * <th>Example</th>
  * </tr>
  * <tr>
+ * <td><code>yyyy-MM-dd'T'HH:mm:ss.SSSZ</code></td>
+ * <td>2014-09-23T17:42:35.123+0200 (precise up to 1 millisecond, the fraction is optional)</td>
+ * </tr>
+ * <tr>
  * <td><code>yyyy-MM-dd'T'HH:mm:ssZ</code></td>
- * <td>2014-09-23T17:42:35+200 (only precise up to 1 second, the RFC 822 4-digit time zone format is used)</td>
+ * <td>2014-09-23T17:42:35+0200 (only precise up to 1 second, the time zone is <code>+HHMM</code>, <code>+HH:MM</code> or <code>Z</code>)</td>
  * </tr>
  * <tr>
  * <td><code>yyyy-MM-dd'T'HH:mm:ss</code></td>
@@ -57,6 +64,13 @@ import java.util.Date;
  * <td>2014-09-23 (only precise up to 1 day)</td>
  * </tr>
  * </table>
+ * <p>
+ * Timestamps without time zone are in the time zone of the clock.
+ * Like {@link java.text.SimpleDateFormat}, the parser is lenient: fields may have any number of digits and overflow
+ * into the next bigger field, e.g. <code>2014-12-32</code> is the first of January 2015, and anything after
+ * the longest matching format is ignored. Dates are in the proleptic Gregorian calendar.
+ * </p>
+ * This class is thread safe and doesn't allocate, when verifying caveats of a clock in a fixed offset time zone, e.g. UTC.
  * <br>
  * <strong>Applying a time based caveat</strong>
  * <pre>{@code
@@ -68,28 +82,243 @@ import java.util.Date;
  *    .assertIsValid("secret");
  * }</pre>
  */
-public class TimestampCaveatVerifier implements GeneralCaveatVerifier {
+public class TimestampCaveatVerifier implements RawCaveatVerifier {
 
   public static final String CAVEAT_PREFIX = "time < ";
   public static final int CAVEAT_PREFIX_LEN = CAVEAT_PREFIX.length();
 
-  private SimpleDateFormat ISO_DateFormat_DAY = new SimpleDateFormat("yyyy-MM-dd");
-  private SimpleDateFormat ISO_DateFormat_HOUR = new SimpleDateFormat("yyyy-MM-dd'T'HH");
-  private SimpleDateFormat ISO_DateFormat_MINUTE = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm");
-  private SimpleDateFormat ISO_DateFormat_SECOND = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
-  private SimpleDateFormat ISO_DateFormat_TIMEZONE = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+  private static final byte[] CAVEAT_PREFIX_BYTES = CAVEAT_PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+  /**
+   * Returned by {@link #expiresAt(String)}, when the caveat is no valid timestamp caveat.
+   */
+  public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+  private static final long MILLIS_PER_SECOND = 1000;
+  private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+  /* keeps the epoch millis of the biggest year far from overflowing */
+  private static final int MAX_YEAR_DIGITS = 8;
+  private static final int MAX_FIELD_DIGITS = 9;
+  /* a missing number */
+  private static final long NONE = Long.MIN_VALUE;
+
+  private final Clock clock;
+  private final ZoneRules zoneRules;
+  private final boolean fixedOffset;
+  private final int fixedOffsetSeconds;
+
+  /**
+   * Compares against the system clock, timestamps without time zone are in the default time zone.
+   */
+  public TimestampCaveatVerifier() {
+    this(Clock.systemDefaultZone());
+  }
+
+  /**
+   * @param clock current time, timestamps without time zone are in the clock's time zone.
+   *              A coarse clock, like {@link Clock#tick(Clock, java.time.Duration)}, is cheaper to ask.
+   */
+  public TimestampCaveatVerifier(Clock clock) {
+    assert clock != null;
+    this.clock = clock;
+    this.zoneRules = clock.getZone().getRules();
+    this.fixedOffset = zoneRules.isFixedOffset();
+    this.fixedOffsetSeconds = fixedOffset ? zoneRules.getOffset(clock.instant()).getTotalSeconds() : 0;
+  }
 
   @Override
   public boolean verifyCaveat(String caveat) {
-    if (caveat.startsWith(CAVEAT_PREFIX)) {
-      Date parsedDate = ISO_DateFormat_TIMEZONE.parse(caveat, new ParsePosition(CAVEAT_PREFIX_LEN));
-      if (parsedDate == null) parsedDate = ISO_DateFormat_SECOND.parse(caveat, new ParsePosition(CAVEAT_PREFIX_LEN));
-      if (parsedDate == null) parsedDate = ISO_DateFormat_MINUTE.parse(caveat, new ParsePosition(CAVEAT_PREFIX_LEN));
-      if (parsedDate == null) parsedDate = ISO_DateFormat_HOUR.parse(caveat, new ParsePosition(CAVEAT_PREFIX_LEN));
-      if (parsedDate == null) parsedDate = ISO_DateFormat_DAY.parse(caveat, new ParsePosition(CAVEAT_PREFIX_LEN));
-      Date now = Calendar.getInstance().getTime();
-      return parsedDate != null && now.before(parsedDate);
+    long expiresAt = expiresAt(caveat);
+    return expiresAt != NO_TIMESTAMP && clock.millis() < expiresAt;
+  }
+
+  /**
+   * Same as {@link #verifyCaveat(String)}, but reads the caveat from UTF-8 or ASCII bytes, without creating a String.
+   *
+   * @param caveat bytes, holding the caveat
+   * @param offset start of the caveat
+   * @param length length of the caveat
+   * @return true, when the caveat is a timestamp caveat, which is not yet expired
+   */
+  @Override
+  public boolean verifyCaveat(byte[] caveat, int offset, int length) {
+    long expiresAt = expiresAt(caveat, offset, length);
+    return expiresAt != NO_TIMESTAMP && clock.millis() < expiresAt;
+  }
+
+  /**
+   * @param caveat caveat
+   * @return the epoch milliseconds, from which on the caveat isn't satisfied anymore, or {@link #NO_TIMESTAMP}
+   */
+  public long expiresAt(String caveat) {
+    if (caveat == null || !caveat.startsWith(CAVEAT_PREFIX)) return NO_TIMESTAMP;
+    return new Parser(null, caveat, CAVEAT_PREFIX_LEN, caveat.length()).parse();
+  }
+
+  /**
+   * @param caveat bytes, holding the caveat
+   * @param offset start of the caveat
+   * @param length length of the caveat
+   * @return the epoch milliseconds, from which on the caveat isn't satisfied anymore, or {@link #NO_TIMESTAMP}
+   */
+  public long expiresAt(byte[] caveat, int offset, int length) {
+    if (!CaveatBytes.startsWith(caveat, offset, length, CAVEAT_PREFIX_BYTES)) return NO_TIMESTAMP;
+    return new Parser(caveat, null, offset + CAVEAT_PREFIX_LEN, offset + length).parse();
+  }
+
+  private int offsetSeconds(long localEpochSeconds) {
+    if (fixedOffset) return fixedOffsetSeconds;
+    LocalDateTime local = LocalDateTime.ofEpochSecond(localEpochSeconds, 0, ZoneOffset.UTC);
+    ZoneOffsetTransition transition = zoneRules.getTransition(local);
+    // like java.util.Calendar, a local time, which occurs twice, is taken from after the transition
+    if (transition != null && transition.isOverlap()) return transition.getOffsetAfter().getTotalSeconds();
+    return zoneRules.getOffset(local).getTotalSeconds();
+  }
+
+  /**
+   * Days since 1970-01-01 of the first day of the given month, in the proleptic Gregorian calendar.
+   * Months out of 1..12 roll over into the previous or following years.
+   */
+  static long epochDay(long year, long month) {
+    year += Math.floorDiv(month - 1, 12);
+    month = Math.floorMod(month - 1, 12) + 1;
+    // shifts the year to start in March, so the leap day is the last day of a year
+    if (month <= 2) year--;
+    long era = Math.floorDiv(year, 400);
+    long yearOfEra = year - era * 400;
+    long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  /**
+   * Reads one timestamp from either bytes or a String.
+   */
+  private final class Parser {
+
+    private final byte[] bytes;
+    private final String string;
+    private final int end;
+    private int pos;
+
+    Parser(byte[] bytes, String string, int pos, int end) {
+      this.bytes = bytes;
+      this.string = string;
+      this.pos = pos;
+      this.end = end;
+    }
+
+    long parse() {
+      long year = number(MAX_YEAR_DIGITS);
+      if (year == NONE || !literal('-')) return NO_TIMESTAMP;
+      long month = number(MAX_FIELD_DIGITS);
+      if (month == NONE || !literal('-')) return NO_TIMESTAMP;
+      long day = number(MAX_FIELD_DIGITS);
+      if (day == NONE) return NO_TIMESTAMP;
+      long seconds = (epochDay(year, month) + day - 1) * SECONDS_PER_DAY;
+
+      // the optional parts, the timestamp ends, where the next one doesn't match
+      if (!literal('T')) return local(seconds, 0);
+      long hour = number(MAX_FIELD_DIGITS);
+      if (hour == NONE) return local(seconds, 0);
+      seconds += hour * 3600;
+      if (!literal(':')) return local(seconds, 0);
+      long minute = number(MAX_FIELD_DIGITS);
+      if (minute == NONE) return local(seconds, 0);
+      seconds += minute * 60;
+      if (!literal(':')) return local(seconds, 0);
+      long second = number(MAX_FIELD_DIGITS);
+      if (second == NONE) return local(seconds, 0);
+      seconds += second;
+      long millis = 0;
+      if (peek() == '.' && isDigit(peek(1))) {
+        pos++;
+        millis = fraction();
+      }
+      int zoneOffset = zone();
+      if (zoneOffset == Integer.MIN_VALUE) return local(seconds, millis);
+      return (seconds - zoneOffset) * MILLIS_PER_SECOND + millis;
+    }
+
+    private long local(long seconds, long millis) {
+      return (seconds - offsetSeconds(seconds)) * MILLIS_PER_SECOND + millis;
+    }
+
+    /**
+     * Like {@link java.text.SimpleDateFormat}, whitespace in front of a number is skipped and negative numbers are allowed.
+     *
+     * @return the number, or {@link #NONE} when there's none or it has too many digits
+     */
+    private long number(int maxDigits) {
+      while (peek() == ' ' || peek() == '\t') pos++;
+      boolean negative = peek() == '-' && isDigit(peek(1));
+      if (negative) pos++;
+      int start = pos;
+      long value = 0;
+      for (int c; isDigit(c = peek()); pos++) {
+        if (pos - start == maxDigits) return NONE;
+        value = value * 10 + (c - '0');
+      }
+      if (pos == start) return NONE;
+      return negative ? -value : value;
+    }
+
+    /* milliseconds of a second's fraction, digits beyond the third are ignored */
+    private long fraction() {
+      long millis = 0;
+      int digits = 0;
+      for (int c; isDigit(c = peek()); pos++, digits++) {
+        if (digits < 3) millis = millis * 10 + (c - '0');
+      }
+      for (; digits < 3; digits++) millis *= 10;
+      return millis;
+    }
+
+    /**
+     * @return the offset in seconds of <code>Z</code>, <code>+HHMM</code> or <code>+HH:MM</code>, maybe after some whitespace,
+     * or {@link Integer#MIN_VALUE}, when there's no valid time zone
+     */
+    private int zone() {
+      int i = pos;
+      while (i < end && (at(i) == ' ' || at(i) == '\t')) i++;
+      if (i >= end) return Integer.MIN_VALUE;
+      int c = at(i);
+      if (c == 'Z') return 0;
+      if (c != '+' && c != '-') return Integer.MIN_VALUE;
+      int sign = c == '+' ? 1 : -1;
+      int hours = twoDigits(i + 1);
+      if (hours < 0) return Integer.MIN_VALUE;
+      int minutesAt = i + 3 < end && at(i + 3) == ':' ? i + 4 : i + 3;
+      int minutes = twoDigits(minutesAt);
+      if (minutes < 0 || hours > 23 || minutes > 59) return Integer.MIN_VALUE;
+      return sign * (hours * 3600 + minutes * 60);
     }
-    return false;
+
+    private int twoDigits(int i) {
+      if (i + 2 > end || !isDigit(at(i)) || !isDigit(at(i + 1))) return -1;
+      return (at(i) - '0') * 10 + at(i + 1) - '0';
+    }
+
+    private boolean literal(char c) {
+      if (peek() != c) return false;
+      pos++;
+      return true;
+    }
+
+    private int peek() {
+      return pos < end ? at(pos) : -1;
+    }
+
+    private int peek(int ahead) {
+      return pos + ahead < end ? at(pos + ahead) : -1;
+    }
+
+    private int at(int i) {
+      return bytes != null ? bytes[i] & 0xff : string.charAt(i);
+    }
+  }
+
+  private static boolean isDigit(int c) {
+    return c >= '0' && c <= '9';
   }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static com.github.nitram509.jmacaroons.CaveatPacket.Type;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class CompactMacaroonTest {
+
+  private String identifier;
+  private String secret;
+  private String location;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    location = "http://mybank/";
+    secret = "this is our super secret key; only we should know it";
+    identifier = "we used our secret key";
+  }
+
+  @Test
+  public void compact_macaroon_provides_the_same_values() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+
+    CompactMacaroon compact = CompactMacaroon.from(m);
+
+    assertThat(compact.getLocation()).isEqualTo(location);
+    assertThat(compact.getIdentifier()).isEqualTo(identifier);
+    assertThat(compact.getSignature()).isEqualTo(m.signature);
+    assertThat(compact.getSignatureBytes()).isEqualTo(m.signatureBytes);
+    assertThat(compact.getVersion()).isEqualTo(m.version);
+    assertThat(compact.getCaveatCount()).isEqualTo(1);
+    assertThat(compact.getCaveatType(0)).isEqualTo(Type.cid);
+    assertThat(compact.getCaveatValueAsText(0)).isEqualTo("account = 3735928559");
+    assertThat(compact.serialize()).isEqualTo(m.serialize());
+  }
+
+  @Test
+  public void compact_macaroon_with_3rd_party_caveat_can_be_converted_back() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .add_third_party_caveat("http://auth.mybank/", "4; guaranteed random by a fair toss of the dice", "this was how we remind auth of key/pred")
+        .getMacaroon();
+
+    CompactMacaroon compact = CompactMacaroon.from(m);
+
+    assertThat(compact.getCaveatCount()).isEqualTo(4);
+    assertThat(compact.getCaveatType(2)).isEqualTo(Type.vid);
+    assertThat(compact.getCaveatValueAsText(2)).isEqualTo(m.caveatPackets[2].getValueAsText());
+    assertThat(compact.toMacaroon()).isEqualTo(m);
+  }
+
+  @Test
+  public void compact_macaroon_without_location_can_be_converted_back() {
+    Macaroon m = new Macaroon(null, identifier, new byte[32], MacaroonVersion.VERSION_2);
+
+    CompactMacaroon compact = CompactMacaroon.from(m);
+
+    assertThat(compact.getLocation()).isNull();
+    assertThat(compact.getCaveatCount()).isEqualTo(0);
+    assertThat(compact.toMacaroon()).isEqualTo(m);
+  }
+
+  @Test
+  public void compact_macaroon_with_large_caveats_can_be_converted_back() {
+    StringBuilder caveat = new StringBuilder();
+    while (caveat.length() < 70000) {
+      caveat.append("0123456789");
+    }
+    CaveatPacket[] caveats = {
+        new CaveatPacket(Type.cid, caveat.toString()),
+        new CaveatPacket(Type.cid, "account = 3735928559")
+    };
+    Macaroon m = new Macaroon(location, identifier, new byte[32], caveats, MacaroonVersion.VERSION_1);
+
+    CompactMacaroon compact = CompactMacaroon.from(m);
+
+    assertThat(compact.getCaveatValueAsText(1)).isEqualTo("account = 3735928559");
+    assertThat(compact.toMacaroon()).isEqualTo(m);
+  }
+
+  @Test
+  public void compact_macaroon_is_serializable() throws Exception {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+    CompactMacaroon compact = CompactMacaroon.from(m);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(compact);
+    out.close();
+    Object copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+    assertThat(copy).isEqualTo(compact);
+  }
+
+  @Test(expectedExceptions = InvalidObjectException.class)
+  public void compact_macaroon_with_corrupt_offsets_is_not_deserialized() throws Exception {
+    String caveat = "account = 3735928559";
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat(caveat)
+        .getMacaroon();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(CompactMacaroon.from(m));
+    out.close();
+    // the values come last in the stream, right after the end offset of the last caveat
+    byte[] stream = bytes.toByteArray();
+    int valuesLength = location.length() + identifier.length() + m.signatureBytes.length + caveat.length();
+    stream[stream.length - valuesLength - 2] = (byte) 0xff;
+    stream[stream.length - valuesLength - 1] = (byte) 0xff;
+
+    new ObjectInputStream(new ByteArrayInputStream(stream)).readObject();
+  }
+
+  @Test
+  public void version_and_caveat_types_are_stored_as_fixed_codes() throws Exception {
+    CaveatPacket[] caveats = {
+        new CaveatPacket(Type.cid, "c"),
+        new CaveatPacket(Type.vid, new byte[]{'v'}),
+        new CaveatPacket(Type.cl, "l")};
+    Macaroon m = new Macaroon("l", "i", new byte[]{'s'}, caveats, MacaroonVersion.VERSION_2);
+
+    byte[] stream = serialize(CompactMacaroon.from(m));
+
+    byte[] data = {
+        0x0a, 0, 6,                         // flags: version 2, has location; 6 fields
+        2, 4, 1,                            // caveat types: cid, vid, cl
+        0, 1, 0, 2, 0, 3, 0, 4, 0, 5, 0, 6, // end offsets
+        'l', 'i', 's', 'c', 'v', 'l'};
+    assertThat(indexOf(stream, data)).isEqualTo(stream.length - data.length);
+  }
+
+  @Test(expectedExceptions = InvalidObjectException.class)
+  public void compact_macaroon_with_unknown_caveat_type_is_not_deserialized() throws Exception {
+    Macaroon m = new Macaroon("l", "i", new byte[]{'s'}, new CaveatPacket[]{new CaveatPacket(Type.cid, "c")}, MacaroonVersion.VERSION_2);
+    byte[] stream = serialize(CompactMacaroon.from(m));
+    // the caveat type comes right before the end offsets of the 4 fields and the 4 values
+    int typePosition = stream.length - 4 - 4 * 2 - 1;
+    stream[typePosition] = 3;
+
+    new ObjectInputStream(new ByteArrayInputStream(stream)).readObject();
+  }
+
+  @Test(expectedExceptions = IndexOutOfBoundsException.class)
+  public void compact_macaroon_rejects_caveat_index_out_of_range() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier).getMacaroon();
+
+    CompactMacaroon.from(m).getCaveatType(0);
+  }
+
+  private static byte[] serialize(CompactMacaroon compact) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(compact);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static int indexOf(byte[] stream, byte[] part) {
+    for (int i = 0; i + part.length <= stream.length; i++) {
+      boolean found = true;
+      for (int j = 0; j < part.length && found; j++) {
+        found = stream[i + j] == part[j];
+      }
+      if (found) return i;
+    }
+    return -1;
+  }
+}
@@ -56,6 +56,22 @@ public class MacaroonTest {
     // NullPointerException
   }
 
+  @Test
+  public void serialized_forms_are_computed_once() {
+    Macaroon macaroon = new MacaroonsBuilder("http://example.org/", "secret", "identifier", MacaroonVersion.VERSION_2)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+
+    for (MacaroonVersion.SerializationVersion version : MacaroonVersion.SerializationVersion.values()) {
+      if (version == MacaroonVersion.SerializationVersion.V1_JSON) continue;
+      String serialized = macaroon.serialize(version);
+
+      assertThat(macaroon.serialize(version)).isSameAs(serialized);
+      assertThat(serialized).isEqualTo(MacaroonsSerializer.serialize(macaroon, version));
+    }
+    assertThat(macaroon.serialize()).isSameAs(macaroon.serialize(MacaroonVersion.SerializationVersion.V1_BINARY));
+  }
+
   @DataProvider(name = "potentially_equal_macaroons")
   public static Object[][] testMacaroonEquality() {
 
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import com.github.nitram509.jmacaroons.util.Base64;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.github.nitram509.jmacaroons.CaveatPacket.Type;
+import static com.github.nitram509.jmacaroons.MacaroonVersion.SerializationVersion.V2_JSON;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class MacaroonViewTest {
+
+  private String identifier;
+  private String secret;
+  private String location;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    location = "http://mybank/";
+    secret = "this is our super secret key; only we should know it";
+    identifier = "we used our secret key";
+  }
+
+  @Test
+  public void view_provides_the_same_values_as_deserialized_macaroon() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+
+    MacaroonView view = MacaroonView.of(m.serialize());
+
+    assertThat(view.getLocation()).isEqualTo(location);
+    assertThat(view.getIdentifier()).isEqualTo(identifier);
+    assertThat(view.getSignature()).isEqualTo(m.signature);
+    assertThat(view.getSignatureBytes()).isEqualTo(m.signatureBytes);
+    assertThat(view.getCaveatCount()).isEqualTo(1);
+    assertThat(view.getCaveatType(0)).isEqualTo(Type.cid);
+    assertThat(view.getCaveatPacket(0)).isEqualTo(m.caveatPackets[0]);
+    assertThat(view.toMacaroon()).isEqualTo(m);
+  }
+
+  @Test
+  public void view_slices_values_without_copying() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+
+    MacaroonView view = MacaroonView.of(m.serialize());
+    ByteBuffer caveat = view.getCaveatBytes(0);
+
+    assertThat(caveat.isReadOnly()).isTrue();
+    assertThat(caveat.remaining()).isEqualTo("account = 3735928559".length());
+    assertThat(view.getIdentifierBytes().remaining()).isEqualTo(identifier.length());
+  }
+
+  @Test
+  public void view_of_3rd_party_caveat_keeps_packet_order() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier)
+        .add_third_party_caveat("http://auth.mybank/", "4; guaranteed random by a fair toss of the dice", "this was how we remind auth of key/pred")
+        .getMacaroon();
+
+    MacaroonView view = MacaroonView.of(m.serialize());
+
+    assertThat(view.getCaveatCount()).isEqualTo(3);
+    assertThat(view.getCaveatType(0)).isEqualTo(Type.cid);
+    assertThat(view.getCaveatType(1)).isEqualTo(Type.vid);
+    assertThat(view.getCaveatType(2)).isEqualTo(Type.cl);
+    assertThat(view.getCaveatPacket(1).getRawValue()).isEqualTo(m.caveatPackets[1].getRawValue());
+    assertThat(view.toMacaroon()).isEqualTo(m);
+  }
+
+  @Test
+  public void view_of_packets_within_a_larger_buffer() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+    byte[] packets = Base64.decode(m.serialize());
+    byte[] buffer = new byte[packets.length + 10];
+    System.arraycopy(packets, 0, buffer, 7, packets.length);
+
+    MacaroonView view = MacaroonView.of(buffer, 7, packets.length);
+
+    assertThat(view.toMacaroon()).isEqualTo(m);
+    assertThat(new MacaroonsVerifier(view).satisfyExact("account = 3735928559").isValid(secret)).isTrue();
+  }
+
+  @Test
+  public void view_of_v2_binary_macaroon() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier, MacaroonVersion.VERSION_2)
+        .add_first_party_caveat("account = 3735928559")
+        .add_third_party_caveat("http://auth.mybank/", "4; guaranteed random by a fair toss of the dice", "this was how we remind auth of key/pred")
+        .getMacaroon();
+
+    MacaroonView view = MacaroonView.of(m.serialize(MacaroonVersion.SerializationVersion.V2_BINARY));
+
+    assertThat(view.getVersion()).isEqualTo(MacaroonVersion.VERSION_2);
+    assertThat(view.getIdentifier()).isEqualTo(identifier);
+    assertThat(view.getCaveatCount()).isEqualTo(4);
+    assertThat(view.getCaveatType(3)).isEqualTo(Type.cl);
+    assertThat(view.toMacaroon()).isEqualTo(m);
+  }
+
+  @Test(expectedExceptions = IndexOutOfBoundsException.class)
+  public void view_rejects_caveat_index_out_of_range() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier).getMacaroon();
+
+    MacaroonView.of(m.serialize()).getCaveatType(0);
+  }
+
+  @Test(expectedExceptions = NotDeSerializableException.class)
+  public void view_of_json_macaroon_throws_NotDeSerializableException() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier).getMacaroon();
+
+    MacaroonView.of(m.serialize(V2_JSON));
+  }
+
+  @Test
+  public void view_can_be_verified() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+
+    MacaroonView view = MacaroonView.of(m.serialize());
+
+    assertThat(new MacaroonsVerifier(view).satisfyExact("account = 3735928559").isValid(secret)).isTrue();
+    assertThat(new MacaroonsVerifier(view).satisfyExact("account = 0").isValid(secret)).isFalse();
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class MacaroonsBundleTest {
+
+  private String secret;
+  private Macaroon root;
+  private List<Macaroon> discharges;
+
+  @BeforeMethod
+  public void setUp() {
+    secret = "this is our super secret key; only we should know it";
+    MacaroonsBuilder builder = new MacaroonsBuilder("http://mybank/", secret, "we used our secret key", MacaroonVersion.VERSION_2)
+        .add_first_party_caveat("account = 3735928559");
+    for (int i = 0; i < 4; i++) {
+      builder.add_third_party_caveat("http://auth.mybank/", "caveat key " + i, "caveat identifier " + i);
+    }
+    root = builder.getMacaroon();
+    discharges = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      Macaroon discharge = new MacaroonsBuilder("http://auth.mybank/", "caveat key " + i, "caveat identifier " + i, MacaroonVersion.VERSION_2)
+          .add_first_party_caveat("time < 2042-01-01T00:00")
+          .getMacaroon();
+      discharges.add(new MacaroonsBuilder(root).prepare_for_request(discharge).getMacaroon());
+    }
+  }
+
+  @Test
+  public void root_and_discharges_are_deserialized_in_order() {
+    byte[] bundle = MacaroonsBundle.serialize(root, discharges);
+
+    List<Macaroon> macaroons = MacaroonsBundle.deserialize(bundle, 0, bundle.length);
+
+    assertThat(macaroons).hasSize(5);
+    assertThat(macaroons.get(0)).isEqualTo(root);
+    assertThat(macaroons.subList(1, 5)).isEqualTo(discharges);
+    assertThat(MacaroonsBundle.deserialize(MacaroonsBundle.serializeToString(root, discharges))).isEqualTo(macaroons);
+  }
+
+  @Test
+  public void repeated_values_are_written_once() {
+    byte[] bundle = MacaroonsBundle.serialize(root, discharges);
+
+    int separately = 0;
+    for (Macaroon discharge : discharges) {
+      separately += MacaroonsSerializer.serializeV2BinaryPackets(discharge).length;
+    }
+    separately += MacaroonsSerializer.serializeV2BinaryPackets(root).length;
+    // location and identifier of each discharge are found in the root already
+    assertThat(bundle.length).isLessThan(separately - 4 * ("http://auth.mybank/".length() + "caveat identifier 0".length()) + 4 * 4);
+  }
+
+  @Test
+  public void the_verifier_has_all_discharges_bound() {
+    String bundle = MacaroonsBundle.serializeToString(root, discharges);
+
+    assertThat(MacaroonsBundle.verifier(bundle)
+        .satisfyExact("account = 3735928559")
+        .satisfyExact("time < 2042-01-01T00:00")
+        .isValid(secret)).isTrue();
+    assertThat(MacaroonsBundle.verifier(MacaroonsBundle.serializeToString(root, discharges.subList(0, 3)))
+        .satisfyExact("account = 3735928559")
+        .satisfyExact("time < 2042-01-01T00:00")
+        .isValid(secret)).isFalse();
+  }
+
+  @Test
+  public void a_macaroon_without_location_and_caveats_is_bundled() {
+    Macaroon m = new Macaroon(null, "identifier", new byte[32], MacaroonVersion.VERSION_1);
+    byte[] bundle = MacaroonsBundle.serialize(m, new ArrayList<Macaroon>());
+
+    assertThat(MacaroonsBundle.deserialize(bundle, 0, bundle.length)).isEqualTo(Arrays.asList(m));
+  }
+
+  @Test
+  public void versions_and_caveat_types_are_written_as_fixed_codes() {
+    CaveatPacket[] caveats = {
+        new CaveatPacket(CaveatPacket.Type.cid, "c"),
+        new CaveatPacket(CaveatPacket.Type.vid, new byte[]{'v'}),
+        new CaveatPacket(CaveatPacket.Type.cl, "l"),
+    };
+    Macaroon m = new Macaroon("l", "i", new byte[1], caveats, MacaroonVersion.VERSION_2);
+
+    byte[] bundle = MacaroonsBundle.serialize(m, new ArrayList<Macaroon>());
+
+    assertThat(bundle).isEqualTo(new byte[]{1, 1, 2, 4, 'l', 4, 'i', 3, 2, 4, 'c', 4, 4, 'v', 1, 1, 1, 0});
+    assertThat(MacaroonsBundle.deserialize(bundle, 0, bundle.length)).isEqualTo(Arrays.asList(m));
+  }
+
+  @DataProvider(name = "malformed_bundles")
+  public static Object[][] malformedBundles() {
+    return new Object[][]{
+        {new byte[0]},
+        {new byte[]{2, 1}},
+        {new byte[]{1, 0}},
+        {new byte[]{1, 1, 1, 0, 4, 'i', 0}},
+        {new byte[]{1, 1, 1, 0, 3, 0, 0}},
+        {new byte[]{1, 1, 0, 0, 4, 'i', 0, 0}},
+        {new byte[]{1, 1, 9, 0, 4, 'i', 0, 0}},
+        {new byte[]{1, 1, 1, 0, 4, 'i', 1, 6, 4, 'c', 0}},
+        {new byte[]{1, 1, 1, 0, 4, 'i', 0, 2, 0}},
+        {new byte[]{1, 1, 1, 0, 4, 'i', 0, 0, 1}},
+        {new byte[]{1, 1, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0}},
+    };
+  }
+
+  @Test(dataProvider = "malformed_bundles", expectedExceptions = NotDeSerializableException.class)
+  public void malformed_bundles_throw_NotDeSerializableException(byte[] bundle) {
+    MacaroonsBundle.deserialize(bundle, 0, bundle.length);
+  }
+
+  @Test(expectedExceptions = NotDeSerializableException.class)
+  public void malformed_base64_throws_NotDeSerializableException() {
+    MacaroonsBundle.verifier("AQE*");
+  }
+}
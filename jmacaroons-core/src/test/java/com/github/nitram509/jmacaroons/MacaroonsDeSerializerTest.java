@@ -16,9 +16,12 @@
 
 package com.github.nitram509.jmacaroons;
 
+import com.github.nitram509.jmacaroons.util.Base64;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -94,6 +97,34 @@ public class MacaroonsDeSerializerTest {
     // expected NotDeSerializableException
   }
 
+  @Test(expectedExceptions = NotDeSerializableException.class, expectedExceptionsMessageRegExp = ".*Invalid packet size.*")
+  public void packet_size_with_non_ascii_byte_throws_NotDeSerializableException() {
+    byte[] packets = "00\u00e9location http://mybank/accounts/3735928559/statements\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    MacaroonsDeSerializer.deserialize(Base64.encodeUrlSafeToString(packets));
+  }
+
+  @Test(expectedExceptions = NotDeSerializableException.class, expectedExceptionsMessageRegExp = ".*Invalid packet size.*")
+  public void packet_size_with_non_hex_char_throws_NotDeSerializableException() {
+    byte[] packets = "001glocation http://mybank/accounts/3735928559/statements\n".getBytes(StandardCharsets.US_ASCII);
+
+    MacaroonsDeSerializer.deserialize(Base64.encodeUrlSafeToString(packets));
+  }
+
+  @Test(expectedExceptions = NotDeSerializableException.class, expectedExceptionsMessageRegExp = ".*Invalid packet size.*")
+  public void view_of_packet_size_with_non_ascii_byte_throws_NotDeSerializableException() {
+    byte[] packets = "\u00ff01clocation http://mybank/\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    MacaroonView.of(packets, 0, packets.length);
+  }
+
+  @Test(expectedExceptions = NotDeSerializableException.class, expectedExceptionsMessageRegExp = ".*Invalid base64 char.*")
+  public void malformed_base64_throws_NotDeSerializableException() {
+    String serialized = new MacaroonsBuilder(location, secret, identifier).getMacaroon().serialize();
+
+    MacaroonsDeSerializer.deserialize(serialized.substring(0, 20) + "." + serialized.substring(21));
+  }
+
   @Test
   public void stateful_packet_reader_parses_header_length() throws Exception {
     MacaroonsDeSerializer.StatefulPacketReader packetReader = new MacaroonsDeSerializer.StatefulPacketReader(new byte[]{'a', 'b', 'c', 'd'});
@@ -101,6 +132,36 @@ public class MacaroonsDeSerializerTest {
   }
 
 
+  @Test
+  public void stateful_packet_reader_scans_packets_in_place() {
+    byte[] packets = "0014location mybank\n0010cid account\n".getBytes(MacaroonsConstants.RAW_BYTE_CHARSET);
+    MacaroonsDeSerializer.StatefulPacketReader packetReader = new MacaroonsDeSerializer.StatefulPacketReader(packets);
+
+    assertThat(packetReader.nextPacket()).isTrue();
+    assertThat(packetReader.packetType).isEqualTo(CaveatPacket.Type.location);
+    assertThat(new String(packets, packetReader.valueOffset, packetReader.valueLength, MacaroonsConstants.RAW_BYTE_CHARSET)).isEqualTo("mybank");
+
+    assertThat(packetReader.nextPacket()).isTrue();
+    assertThat(packetReader.packetType).isEqualTo(CaveatPacket.Type.cid);
+    assertThat(new String(packets, packetReader.valueOffset, packetReader.valueLength, MacaroonsConstants.RAW_BYTE_CHARSET)).isEqualTo("account");
+
+    assertThat(packetReader.nextPacket()).isFalse();
+  }
+
+  @Test
+  public void empty_and_unknown_packets_are_skipped() {
+    m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+    String packets = new String(Base64.decode(m.serialize()), MacaroonsConstants.RAW_BYTE_CHARSET);
+    int afterLocation = packets.indexOf('\n') + 1;
+    String withEmptyPackets = "0004" + packets.substring(0, afterLocation) + "0004000cfoo bar\n" + packets.substring(afterLocation);
+
+    Macaroon deserialized = MacaroonsDeSerializer.deserialize(Base64.encodeUrlSafeToString(withEmptyPackets.getBytes(MacaroonsConstants.RAW_BYTE_CHARSET))).get(0);
+
+    assertThat(deserialized).isEqualTo(m);
+  }
+
   @Test
   public void Macaroon_v2_can_be_deserialized() {
     final Macaroon m = new MacaroonsBuilder("http://test.loc", "test-key", "test-id").getMacaroon();
@@ -114,6 +175,43 @@ public class MacaroonsDeSerializerTest {
     assertThat(m2).isEqualTo(MacaroonsDeSerializer.deserialize(MacaroonsSerializer.serialize(m2, MacaroonVersion.SerializationVersion.V2_JSON)).get(0));
   }
 
+  @Test
+  public void Macaroon_v2_binary_can_be_deserialized() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier, MacaroonVersion.VERSION_2)
+            .add_first_party_caveat("account = 3735928559")
+            .add_third_party_caveat("http://auth.mybank/", "SECRET for 3rd party caveat", identifier)
+            .getMacaroon();
+
+    final Macaroon m2 = MacaroonsDeSerializer.deserialize(m.serialize(MacaroonVersion.SerializationVersion.V2_BINARY)).get(0);
+    assertThat(m2).isEqualTo(m);
+    assertThat(m2.version).isEqualTo(MacaroonVersion.VERSION_2);
+  }
+
+  @Test
+  public void v2_packet_reader_returns_caveat_packets_in_v1_order() {
+    byte[] packets = {2, 2, 2, 'i', 'd', 0, 1, 1, 'l', 2, 1, 'c', 4, 1, 'v', 0, 0, 6, 1, 's'};
+    MacaroonsDeSerializer.PacketScanner packetReader = MacaroonsDeSerializer.packetScanner(packets, 0, packets.length);
+
+    StringBuilder found = new StringBuilder();
+    while (packetReader.nextPacket()) {
+      found.append(packetReader.packetType).append('=').append(packetReader.valueAsText()).append(' ');
+    }
+
+    assertThat(found.toString()).isEqualTo("identifier=id cid=c vid=v cl=l signature=s ");
+  }
+
+  @Test(expectedExceptions = NotDeSerializableException.class)
+  public void truncated_v2_binary_throws_NotDeSerializableException() {
+    byte[] packets = {2, 2, 2, 'i', 'd', 0, 0, 6, 32, 's'};
+    MacaroonsDeSerializer.deserialize(Base64.encodeUrlSafeToString(packets));
+  }
+
+  @Test(expectedExceptions = NotDeSerializableException.class)
+  public void v2_binary_with_trailing_bytes_throws_NotDeSerializableException() {
+    byte[] packets = {2, 2, 2, 'i', 'd', 0, 0, 6, 1, 's', 0};
+    MacaroonsDeSerializer.deserialize(Base64.encodeUrlSafeToString(packets));
+  }
+
   @Test
   public void Macaroon_v2_json_with_third_party_can_be_deserialized() {
     Macaroon m = new MacaroonsBuilder(location, secret, identifier, MacaroonVersion.VERSION_2)
@@ -144,4 +242,61 @@ public class MacaroonsDeSerializerTest {
     final List<Macaroon> deserializedArray = MacaroonsDeSerializer.deserialize(MacaroonsSerializer.serialize(mArray, MacaroonVersion.SerializationVersion.V2_JSON));
     assertThat(mArray).isEqualTo(deserializedArray);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void Macaroon_can_be_deserialized_from_a_part_of_bytes_chars_and_buffers() {
+    m = new MacaroonsBuilder(location, secret, identifier, MacaroonVersion.VERSION_2)
+        .add_first_party_caveat("account = 3735928559")
+        .add_third_party_caveat("http://auth.mybank/", "caveat key", "caveat identifier")
+        .getMacaroon();
+
+    for (MacaroonVersion.SerializationVersion version : MacaroonVersion.SerializationVersion.values()) {
+      if (version == MacaroonVersion.SerializationVersion.V1_JSON) continue;
+      String serialized = "Macaroon " + m.serialize(version) + "\r\n";
+      int offset = "Macaroon ".length();
+      int length = serialized.length() - offset - 2;
+      byte[] bytes = serialized.getBytes(StandardCharsets.UTF_8);
+      ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+      direct.put(bytes).position(offset).limit(offset + length);
+
+      assertThat(MacaroonsDeSerializer.deserialize(bytes, offset, length).get(0)).isEqualTo(m);
+      assertThat(MacaroonsDeSerializer.deserialize(ByteBuffer.wrap(bytes, offset, length)).get(0)).isEqualTo(m);
+      assertThat(MacaroonsDeSerializer.deserialize(direct).get(0)).isEqualTo(m);
+      assertThat(direct.position()).isEqualTo(offset);
+      assertThat(MacaroonsDeSerializer.deserialize(new StringBuilder(serialized), offset, length).get(0)).isEqualTo(m);
+    }
+  }
+
+  @Test(expectedExceptions = NotDeSerializableException.class)
+  public void empty_bytes_cannot_be_deserialized() {
+    MacaroonsDeSerializer.deserialize(new byte[4], 2, 0);
+  }
+
+  @Test
+  public void the_deserialized_string_is_reused_when_serializing_again() {
+    m = new MacaroonsBuilder(location, secret, identifier, MacaroonVersion.VERSION_2)
+        .add_first_party_caveat("account = 3735928559")
+        .add_third_party_caveat("http://auth.mybank/", "caveat key", "caveat identifier")
+        .getMacaroon();
+
+    for (MacaroonVersion.SerializationVersion version : new MacaroonVersion.SerializationVersion[]{MacaroonVersion.SerializationVersion.V1_BINARY, MacaroonVersion.SerializationVersion.V2_BINARY}) {
+      String serialized = MacaroonsSerializer.serialize(m, version);
+
+      assertThat(MacaroonsDeSerializer.deserialize(serialized).get(0).serialize(version)).isSameAs(serialized);
+    }
+  }
+
+  @Test
+  public void non_canonical_input_is_serialized_in_canonical_form() {
+    m = new MacaroonsBuilder(location, secret, identifier).getMacaroon();
+    String serialized = MacaroonsSerializer.serialize(m);
+    byte[] packets = Base64.decode(serialized);
+    String padded = java.util.Base64.getEncoder().encodeToString(packets);
+    String upperCaseHex = Base64.encodeUrlSafeToString(new String(packets, StandardCharsets.ISO_8859_1).replaceFirst("^001c", "001C").getBytes(StandardCharsets.ISO_8859_1));
+
+    assertThat(padded).isNotEqualTo(serialized);
+    assertThat(MacaroonsDeSerializer.deserialize(padded).get(0).serialize()).isEqualTo(serialized);
+    assertThat(upperCaseHex).isNotEqualTo(serialized);
+    assertThat(MacaroonsDeSerializer.deserialize(upperCaseHex).get(0).serialize()).isEqualTo(serialized);
+  }
+}
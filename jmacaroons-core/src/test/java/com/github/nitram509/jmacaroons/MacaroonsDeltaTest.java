@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class MacaroonsDeltaTest {
+
+  private String secret;
+  private Macaroon base;
+  private Macaroon attenuated;
+  private MacaroonsBaseCache bases;
+
+  @BeforeMethod
+  public void setUp() {
+    secret = "this is our super secret key; only we should know it";
+    MacaroonsBuilder builder = new MacaroonsBuilder("http://mybank/", secret, "we used our secret key");
+    for (int i = 0; i < 20; i++) {
+      builder.add_first_party_caveat("scope = resource " + i);
+    }
+    base = builder.getMacaroon();
+    attenuated = new MacaroonsBuilder(base)
+        .add_first_party_caveat("account = 3735928559")
+        .add_first_party_caveat("action = read")
+        .getMacaroon();
+    bases = new MacaroonsBaseCache(10);
+    bases.register(base, secret);
+  }
+
+  private MacaroonsVerifier satisfyAll(MacaroonsVerifier verifier) {
+    for (int i = 0; i < 20; i++) {
+      verifier.satisfyExact("scope = resource " + i);
+    }
+    return verifier.satisfyExact("account = 3735928559").satisfyExact("action = read");
+  }
+
+  @Test
+  public void delta_is_rebuilt_to_the_attenuated_macaroon() {
+    String delta = MacaroonsDelta.serializeToString(base, attenuated);
+
+    assertThat(delta.length()).isLessThan(attenuated.serialize().length() / 4);
+    assertThat(bases.deserialize(delta)).isEqualTo(attenuated);
+  }
+
+  @Test
+  public void delta_is_verified() {
+    String delta = MacaroonsDelta.serializeToString(base, attenuated);
+
+    assertThat(satisfyAll(bases.verifier(delta)).isValid(secret)).isTrue();
+    assertThat(satisfyAll(bases.verifier(delta)).isValid("wrong secret")).isFalse();
+    assertThat(satisfyAll(bases.verifier(delta)).getMacaroon()).isEqualTo(attenuated);
+  }
+
+  @Test
+  public void caveats_of_the_base_and_of_the_delta_must_be_satisfied() {
+    String delta = MacaroonsDelta.serializeToString(base, attenuated);
+
+    MacaroonsVerifier withoutBaseCaveat = bases.verifier(delta).satisfyExact("account = 3735928559").satisfyExact("action = read");
+    for (int i = 1; i < 20; i++) {
+      withoutBaseCaveat.satisfyExact("scope = resource " + i);
+    }
+    assertThat(withoutBaseCaveat.isValid(secret)).isFalse();
+
+    MacaroonsVerifier withoutDeltaCaveat = bases.verifier(delta).satisfyExact("account = 3735928559");
+    for (int i = 0; i < 20; i++) {
+      withoutDeltaCaveat.satisfyExact("scope = resource " + i);
+    }
+    assertThat(withoutDeltaCaveat.isValid(secret)).isFalse();
+  }
+
+  @Test
+  public void tampered_delta_is_not_valid() {
+    byte[] delta = MacaroonsDelta.serialize(base, attenuated);
+    delta[delta.length - 40] ^= 1;
+
+    assertThat(satisfyAll(bases.verifier(delta, 0, delta.length)).isValid(secret)).isFalse();
+  }
+
+  @Test
+  public void base_with_third_party_caveat_is_verified_as_usual() {
+    String caveatKey = "4; guaranteed random by a fair toss of the dice";
+    Macaroon thirdPartyBase = new MacaroonsBuilder("http://mybank/", secret, "we used our other secret key")
+        .add_third_party_caveat("http://auth.mybank/", caveatKey, "this was how we remind auth of key/pred")
+        .getMacaroon();
+    Macaroon discharge = new MacaroonsBuilder("http://auth.mybank/", caveatKey, "this was how we remind auth of key/pred").getMacaroon();
+    Macaroon thirdPartyAttenuated = new MacaroonsBuilder(thirdPartyBase).add_first_party_caveat("action = read").getMacaroon();
+    Macaroon bound = new MacaroonsBuilder(thirdPartyAttenuated).prepare_for_request(discharge).getMacaroon();
+    bases.register(thirdPartyBase, secret);
+
+    MacaroonsVerifier verifier = bases.verifier(MacaroonsDelta.serializeToString(thirdPartyBase, thirdPartyAttenuated))
+        .satisfyExact("action = read")
+        .satisfy3rdParty(bound);
+
+    assertThat(verifier.isValid(secret)).isTrue();
+  }
+
+  @Test(expectedExceptions = NotDeSerializableException.class, expectedExceptionsMessageRegExp = ".*base macaroon is unknown.*")
+  public void least_recently_used_bases_are_dropped() {
+    MacaroonsBaseCache small = new MacaroonsBaseCache(1);
+    small.register(base, secret);
+    small.register(attenuated, secret);
+
+    assertThat(small.size()).isEqualTo(1);
+    small.deserialize(MacaroonsDelta.serializeToString(base, attenuated));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void delta_of_an_unrelated_macaroon_is_rejected() {
+    MacaroonsDelta.serialize(attenuated, base);
+  }
+
+  @Test
+  public void caveat_types_are_written_as_fixed_codes() {
+    CaveatPacket[] caveats = {
+        new CaveatPacket(CaveatPacket.Type.cid, "c"),
+        new CaveatPacket(CaveatPacket.Type.vid, new byte[]{'v'}),
+        new CaveatPacket(CaveatPacket.Type.cl, "l"),
+    };
+    Macaroon base = new Macaroon("l", "i", new byte[1], MacaroonVersion.VERSION_2);
+    Macaroon attenuated = new Macaroon("l", "i", new byte[]{'s'}, caveats, MacaroonVersion.VERSION_2);
+
+    byte[] delta = MacaroonsDelta.serialize(base, attenuated);
+
+    // count, then type, length and value of every caveat, then the signature's length and bytes
+    byte[] caveatsAndSignature = {3, 2, 1, 'c', 4, 1, 'v', 1, 1, 'l', 1, 's'};
+    byte[] expected = new byte[1 + MacaroonsDelta.FINGERPRINT_BYTES + caveatsAndSignature.length];
+    expected[0] = MacaroonsDelta.DELTA_VERSION;
+    System.arraycopy(MacaroonsDelta.fingerprint(base), 0, expected, 1, MacaroonsDelta.FINGERPRINT_BYTES);
+    System.arraycopy(caveatsAndSignature, 0, expected, 1 + MacaroonsDelta.FINGERPRINT_BYTES, caveatsAndSignature.length);
+    assertThat(delta).isEqualTo(expected);
+    assertThat(MacaroonsDelta.deserialize(base, delta, 0, delta.length)).isEqualTo(attenuated);
+  }
+
+  @Test(expectedExceptions = NotDeSerializableException.class, expectedExceptionsMessageRegExp = ".*Invalid caveat type 3.*")
+  public void unknown_caveat_type_throws_NotDeSerializableException() {
+    byte[] delta = MacaroonsDelta.serialize(base, attenuated);
+    // the type of the first added caveat follows the header and the count
+    delta[1 + MacaroonsDelta.FINGERPRINT_BYTES + 1] = 3;
+
+    bases.deserialize(delta, 0, delta.length);
+  }
+
+  @Test(expectedExceptions = NotDeSerializableException.class)
+  public void truncated_delta_throws_NotDeSerializableException() {
+    byte[] delta = MacaroonsDelta.serialize(base, attenuated);
+
+    bases.deserialize(delta, 0, delta.length - 1);
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.github.nitram509.jmacaroons.MacaroonVersion.SerializationVersion.V1_BINARY;
+import static com.github.nitram509.jmacaroons.MacaroonVersion.SerializationVersion.V2_BINARY;
+import static com.github.nitram509.jmacaroons.MacaroonVersion.SerializationVersion.V2_JSON;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class MacaroonsReaderTest {
+
+  private String secret;
+  private String location;
+
+  @BeforeMethod
+  public void setUp() {
+    location = "http://mybank/";
+    secret = "this is our super secret key; only we should know it";
+  }
+
+  @Test
+  public void JSON_array_is_read_one_macaroon_at_a_time() throws IOException {
+    List<Macaroon> macaroons = macaroons(3, MacaroonVersion.VERSION_2);
+    String json = MacaroonsSerializer.serialize(macaroons, V2_JSON);
+
+    assertThat(readAll(" \n" + json)).isEqualTo(macaroons);
+  }
+
+  @Test
+  public void sequence_of_JSON_values_is_read() throws IOException {
+    List<Macaroon> macaroons = macaroons(3, MacaroonVersion.VERSION_2);
+    String json = macaroons.get(0).serialize(V2_JSON) + "\n"
+        + MacaroonsSerializer.serialize(macaroons.subList(1, 3), V2_JSON) + "\n";
+
+    assertThat(readAll(json)).isEqualTo(macaroons);
+  }
+
+  @Test
+  public void newline_delimited_macaroons_of_any_format_are_read() throws IOException {
+    List<Macaroon> macaroons = macaroons(3, MacaroonVersion.VERSION_2);
+    String lines = macaroons.get(0).serialize(V2_BINARY) + "\r\n"
+        + "\n"
+        + macaroons.get(1).serialize(V2_JSON) + "\n"
+        + macaroons.get(2).serialize(V1_BINARY);
+
+    assertThat(readAll(lines)).isEqualTo(macaroons);
+  }
+
+  @Test
+  public void leading_whitespace_longer_than_the_buffer_is_skipped() throws IOException {
+    List<Macaroon> macaroons = macaroons(2, MacaroonVersion.VERSION_2);
+    StringBuilder whitespace = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      whitespace.append(i % 2 == 0 ? ' ' : '\n');
+    }
+
+    assertThat(readAll(whitespace + MacaroonsSerializer.serialize(macaroons, V2_JSON))).isEqualTo(macaroons);
+    assertThat(readAll(whitespace + macaroons.get(0).serialize() + "\n" + macaroons.get(1).serialize())).isEqualTo(macaroons);
+  }
+
+  @Test(expectedExceptions = NotDeSerializableException.class)
+  public void malformed_macaroon_throws_NotDeSerializableException_when_reached() throws IOException {
+    readAll(macaroons(1, MacaroonVersion.VERSION_1).get(0).serialize() + "\nnot a macaroon\n");
+  }
+
+  @Test
+  public void mapped_file_is_split_at_line_boundaries_and_read_in_parallel() throws IOException {
+    List<Macaroon> macaroons = macaroons(3000, MacaroonVersion.VERSION_1);
+    StringBuilder lines = new StringBuilder();
+    for (Macaroon macaroon : macaroons) {
+      lines.append(macaroon.serialize()).append('\n');
+    }
+    Path file = Files.createTempFile("macaroons", ".txt");
+    try {
+      Files.write(file, lines.toString().getBytes(StandardCharsets.US_ASCII));
+      assertThat(Files.size(file)).isGreaterThan(2 * MacaroonsReader.MappedLinesSpliterator.MIN_SPLIT_SIZE);
+
+      try (Stream<Macaroon> stream = MacaroonsReader.lines(file)) {
+        assertThat(stream.collect(Collectors.toList())).isEqualTo(macaroons);
+      }
+      try (Stream<Macaroon> stream = MacaroonsReader.lines(file)) {
+        assertThat(stream.parallel().collect(Collectors.toList())).isEqualTo(macaroons);
+      }
+      try (Stream<Macaroon> stream = MacaroonsReader.lines(file)) {
+        Spliterator<Macaroon> spliterator = stream.spliterator();
+        assertThat(spliterator.hasCharacteristics(Spliterator.IMMUTABLE)).isFalse();
+        Spliterator<Macaroon> prefix = spliterator.trySplit();
+        assertThat(prefix).isNotNull();
+        List<Macaroon> read = new ArrayList<>();
+        while (prefix.tryAdvance(read::add)) ;
+        while (spliterator.tryAdvance(read::add)) ;
+        assertThat(read).isEqualTo(macaroons);
+      }
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  private List<Macaroon> readAll(String serialized) throws IOException {
+    try (MacaroonsReader reader = MacaroonsReader.open(new ByteArrayInputStream(serialized.getBytes(StandardCharsets.UTF_8)))) {
+      List<Macaroon> read = new ArrayList<>();
+      while (reader.hasNext()) {
+        read.add(reader.next());
+      }
+      return read;
+    }
+  }
+
+  private List<Macaroon> macaroons(int count, MacaroonVersion version) {
+    Macaroon[] macaroons = new Macaroon[count];
+    for (int i = 0; i < count; i++) {
+      macaroons[i] = new MacaroonsBuilder(location, secret, "identifier " + i, version)
+          .add_first_party_caveat("account = " + i)
+          .getMacaroon();
+    }
+    return Arrays.asList(macaroons);
+  }
+}
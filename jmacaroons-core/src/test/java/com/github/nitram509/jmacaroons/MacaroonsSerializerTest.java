@@ -16,11 +16,16 @@
 
 package com.github.nitram509.jmacaroons;
 
+import com.github.nitram509.jmacaroons.util.Base64;
 import com.github.nitram509.jmacaroons.util.UTF8;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -55,9 +60,54 @@ public class MacaroonsSerializerTest {
     MacaroonsSerializer.serialize(m, MacaroonVersion.SerializationVersion.V1_JSON);
   }
 
+  @Test
+  public void Macaroon_v2_binary_can_be_serialized() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier, MacaroonVersion.VERSION_2).getMacaroon();
+
+    assertThat(MacaroonsSerializer.serialize(m, MacaroonVersion.SerializationVersion.V2_BINARY)).isEqualTo("AgEOaHR0cDovL215YmFuay8CFndlIHVzZWQgb3VyIHNlY3JldCBrZXkAAAYg49ngKQhSbEwAOa4VEUEV2X_daL8ro3mzQqrw9hfQVS8");
+    assertThat(m.serialize(MacaroonVersion.SerializationVersion.V2_BINARY)).isEqualTo("AgEOaHR0cDovL215YmFuay8CFndlIHVzZWQgb3VyIHNlY3JldCBrZXkAAAYg49ngKQhSbEwAOa4VEUEV2X_daL8ro3mzQqrw9hfQVS8");
+  }
+
+  @Test
+  public void Macaroon_v2_binary_without_location_can_be_serialized_as_v1() {
+    Macaroon withLocation = new MacaroonsBuilder(location, secret, identifier, MacaroonVersion.VERSION_2)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+    Macaroon m = new Macaroon(null, identifier, withLocation.signatureBytes, withLocation.caveatPackets, MacaroonVersion.VERSION_2);
+    Macaroon v2 = MacaroonsDeSerializer.deserialize(m.serialize(MacaroonVersion.SerializationVersion.V2_BINARY)).get(0);
+    assertThat(v2.location).isNull();
+
+    String v1 = v2.serialize();
+    ByteBuffer buffer = ByteBuffer.allocate(v1.length());
+    MacaroonsSerializer.serialize(v2, MacaroonVersion.SerializationVersion.V1_BINARY, buffer);
+    Macaroon copy = MacaroonsDeSerializer.deserialize(v1).get(0);
+
+    assertThat(new String(buffer.array(), StandardCharsets.US_ASCII)).isEqualTo(v1);
+    assertThat(copy.location).isEmpty();
+    assertThat(copy.identifier).isEqualTo(identifier);
+    assertThat(copy.signature).isEqualTo(m.signature);
+    assertThat(copy.caveatPackets).isEqualTo(m.caveatPackets);
+  }
+
+  @Test
+  public void Macaroon_v2_binary_with_3rd_party_caveat_is_smaller_than_v1() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier, MacaroonVersion.VERSION_2)
+        .add_first_party_caveat("account = 3735928559")
+        .add_third_party_caveat("http://auth.mybank/", "SECRET for 3rd party caveat", identifier)
+        .getMacaroon();
+
+    byte[] packets = MacaroonsSerializer.serializeV2BinaryPackets(m);
+
+    assertThat((int) packets[0]).isEqualTo(2);
+    assertThat(packets.length).isLessThan(Base64.decode(m.serialize()).length);
+    assertThat(MacaroonsDeSerializer.deserialize(m.serialize(MacaroonVersion.SerializationVersion.V2_BINARY)).get(0)).isEqualTo(m);
+  }
+
   @Test(expectedExceptions = IllegalArgumentException.class)
-  public void V2_binary_cannot_be_serialized() {
-    Macaroon m = new MacaroonsBuilder(location, secret, identifier).getMacaroon();
+  public void Macaroon_v2_binary_without_caveat_identifier_cannot_be_serialized() {
+    CaveatPacket[] caveats = {new CaveatPacket(CaveatPacket.Type.cl, location)};
+    Macaroon m = new Macaroon(location, identifier, new byte[32], caveats, MacaroonVersion.VERSION_2);
+
     MacaroonsSerializer.serialize(m, MacaroonVersion.SerializationVersion.V2_BINARY);
   }
 
@@ -161,4 +211,43 @@ public class MacaroonsSerializerTest {
     final Macaroon m2 = MacaroonsDeSerializer.deserialize(m.serialize(MacaroonVersion.SerializationVersion.V2_JSON)).get(0);
     assertThat(m).isEqualTo(m2);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void Macaroon_can_be_serialized_into_streams_and_buffers() throws IOException {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier, MacaroonVersion.VERSION_2)
+        .add_first_party_caveat("account = 3735928559")
+        .add_third_party_caveat("http://auth.mybank/", "caveat key", "caveat identifier")
+        .getMacaroon();
+
+    for (MacaroonVersion.SerializationVersion version : MacaroonVersion.SerializationVersion.values()) {
+      if (version == MacaroonVersion.SerializationVersion.V1_JSON) continue;
+      byte[] expected = m.serialize(version).getBytes(StandardCharsets.UTF_8);
+
+      ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      m.serialize(version, stream);
+      assertThat(stream.toByteArray()).isEqualTo(expected);
+
+      for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.allocate(expected.length + 3), ByteBuffer.allocateDirect(expected.length + 3)}) {
+        buffer.put((byte) '#');
+        assertThat(m.serialize(version, buffer)).isEqualTo(expected.length);
+        assertThat(buffer.position()).isEqualTo(1 + expected.length);
+        byte[] written = new byte[expected.length];
+        ((ByteBuffer) buffer.flip().position(1)).get(written);
+        assertThat(written).isEqualTo(expected);
+      }
+    }
+  }
+
+  @Test
+  public void Macaroon_is_not_serialized_into_a_buffer_which_is_too_small() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier).getMacaroon();
+    ByteBuffer buffer = ByteBuffer.allocate(m.serialize().length() - 1);
+
+    try {
+      m.serialize(MacaroonVersion.SerializationVersion.V1_BINARY, buffer);
+      throw new AssertionError("BufferOverflowException expected");
+    } catch (BufferOverflowException e) {
+      assertThat(buffer.position()).isEqualTo(0);
+    }
+  }
+}
@@ -16,11 +16,15 @@
 
 package com.github.nitram509.jmacaroons;
 
+import com.github.nitram509.jmacaroons.util.Base64;
+import com.github.nitram509.jmacaroons.util.CaveatBytes;
 import com.github.nitram509.jmacaroons.verifier.TimestampCaveatVerifier;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 
 import static com.github.nitram509.jmacaroons.util.BinHex.hex2bin;
@@ -129,6 +133,136 @@ public class MacaroonsVerifierTest {
     assertThat(verifier.isValid(secret)).isTrue();
   }
 
+  @Test
+  public void verification_of_serialized_macaroon() {
+    m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .add_first_party_caveat("time < " + createTimeStamp1WeekInFuture())
+        .getMacaroon();
+
+    MacaroonsVerifier verifier = new MacaroonsVerifier(m.serialize());
+    assertThat(verifier.isValid(secret)).isFalse();
+
+    verifier.satisfyExact("account = 3735928559");
+    verifier.satisfyGeneral(new TimestampCaveatVerifier());
+    assertThat(verifier.isValid(secret)).isTrue();
+    assertThat(verifier.isValid("wrong secret")).isFalse();
+  }
+
+  @Test
+  public void verification_of_serialized_macaroon_deserializes_on_demand() {
+    m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+
+    MacaroonsVerifier verifier = new MacaroonsVerifier(m.serialize());
+    try {
+      verifier.assertIsValid(secret);
+      fail("Should have thrown a validation exception");
+    } catch (MacaroonValidationException e) {
+      assertThat(e.getMacaroon()).isEqualTo(m);
+    }
+    assertThat(verifier.getMacaroon()).isEqualTo(m);
+  }
+
+  @Test
+  public void verification_of_serialized_v2_binary_macaroon() {
+    m = new MacaroonsBuilder(location, secret, identifier, MacaroonVersion.VERSION_2)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+
+    MacaroonsVerifier verifier = new MacaroonsVerifier(m.serialize(MacaroonVersion.SerializationVersion.V2_BINARY));
+    assertThat(verifier.satisfyExact("account = 3735928559").isValid(secret)).isTrue();
+    assertThat(verifier.getMacaroon()).isEqualTo(m);
+  }
+
+  @Test
+  public void verification_of_serialized_v2_json_macaroon() {
+    m = new MacaroonsBuilder(location, secret, identifier, MacaroonVersion.VERSION_2).getMacaroon();
+
+    MacaroonsVerifier verifier = new MacaroonsVerifier(m.serialize(MacaroonVersion.SerializationVersion.V2_JSON));
+    assertThat(verifier.isValid(secret)).isTrue();
+  }
+
+  @Test(expectedExceptions = NotDeSerializableException.class)
+  public void verification_of_serialized_macaroon_without_signature_throws_NotDeSerializableException() {
+    m = new MacaroonsBuilder(location, secret, identifier).getMacaroon();
+    byte[] packets = Base64.decode(m.serialize());
+    // the signature packet is the last 0x2f bytes
+    byte[] withoutSignature = Arrays.copyOf(packets, packets.length - 0x2f);
+
+    new MacaroonsVerifier(Base64.encodeUrlSafeToString(withoutSignature));
+  }
+
+  private static final ContextualCaveatVerifier<String> ACCOUNT = new ContextualCaveatVerifier<String>() {
+    @Override
+    public boolean verifyCaveat(byte[] caveat, int offset, int length, String account) {
+      return new String(caveat, offset, length, StandardCharsets.UTF_8).equals("account = " + account);
+    }
+  };
+
+  @Test
+  public void verification_contextual() {
+    m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+
+    assertThat(new MacaroonsVerifier(m).satisfyGeneral(ACCOUNT, "3735928559").isValid(secret)).isTrue();
+    assertThat(new MacaroonsVerifier(m).satisfyGeneral(ACCOUNT, "42").isValid(secret)).isFalse();
+    assertThat(new MacaroonsVerifier(m.serialize()).satisfyGeneral(ACCOUNT, "3735928559").isValid(secret)).isTrue();
+    assertThat(new MacaroonsVerifier(m.serialize()).satisfyGeneral(ACCOUNT, "42").isValid(secret)).isFalse();
+  }
+
+  @Test
+  public void verification_contextual_gets_the_raw_bytes_of_a_caveat() {
+    m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = Jürgen")
+        .add_first_party_caveat("time < " + createTimeStamp1WeekInFuture())
+        .getMacaroon();
+
+    MacaroonsVerifier verifier = new MacaroonsVerifier(m.serialize())
+        .satisfyGeneral(ACCOUNT, "Jürgen")
+        .satisfyGeneral(new TimestampCaveatVerifier());
+    assertThat(verifier.isValid(secret)).isTrue();
+    assertThat(new MacaroonsVerifier(m).satisfyGeneral(ACCOUNT, "Jürgen").isValid(secret)).isFalse();
+  }
+
+  @Test
+  public void verification_raw_and_exact_caveats_are_matched_as_bytes() {
+    m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = Jürgen")
+        .add_first_party_caveat("limit = 42")
+        .getMacaroon();
+    final byte[] prefix = "limit = ".getBytes(StandardCharsets.UTF_8);
+    RawCaveatVerifier limit = new RawCaveatVerifier() {
+      @Override
+      public boolean verifyCaveat(byte[] caveat, int offset, int length) {
+        return CaveatBytes.startsWith(caveat, offset, length, prefix)
+            && CaveatBytes.parseLong(caveat, offset + prefix.length, offset + length) <= 100;
+      }
+
+      @Override
+      public boolean verifyCaveat(String caveat) {
+        throw new AssertionError("The caveat should not be decoded: " + caveat);
+      }
+    };
+
+    assertThat(new MacaroonsVerifier(m).satisfyExact("account = Jürgen").satisfyGeneral(limit).isValid(secret)).isTrue();
+    assertThat(new MacaroonsVerifier(m.serialize()).satisfyExact("account = Jürgen").satisfyGeneral(limit).isValid(secret)).isTrue();
+    assertThat(new MacaroonsVerifier(m.serialize()).satisfyExact("account = Jurgen").satisfyGeneral(limit).isValid(secret)).isFalse();
+  }
+
+  @Test
+  public void verification_raw_verifier_implemented_with_bytes_only() {
+    m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("limit = 42")
+        .getMacaroon();
+    RawCaveatVerifier limit = (caveat, offset, length) -> CaveatBytes.equals(caveat, offset, length, "limit = 42".getBytes(StandardCharsets.UTF_8));
+
+    assertThat(limit.verifyCaveat("limit = 42")).isTrue();
+    assertThat(new MacaroonsVerifier(m.serialize()).satisfyGeneral(limit).isValid(secret)).isTrue();
+  }
+
   private String createTimeStamp1WeekInFuture() {
     final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm");
     return df.format(new Date(System.currentTimeMillis() + (1000 * 60 * 60 * 24 * 7)));
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.function.Function;
+
+import static com.github.nitram509.jmacaroons.CaveatPacket.Type;
+import static com.github.nitram509.jmacaroons.MacaroonVersion.SerializationVersion.V2_JSON;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class OffHeapMacaroonStoreTest {
+
+  private static final long NOW = 1_000_000L;
+  private static final long LATER = NOW + 60_000L;
+
+  private String identifier;
+  private String secret;
+  private String location;
+  private MutableClock clock;
+  private OffHeapMacaroonStore store;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    location = "http://mybank/";
+    secret = "this is our super secret key; only we should know it";
+    identifier = "we used our secret key";
+    clock = new MutableClock(NOW);
+    store = new OffHeapMacaroonStore(4096, clock);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    store.close();
+  }
+
+  @Test
+  public void stored_macaroon_can_be_read() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+
+    store.put(m.serialize(), LATER);
+
+    assertThat(store.size()).isEqualTo(1);
+    assertThat(store.contains(identifier)).isTrue();
+    assertThat(store.get(identifier)).isEqualTo(m);
+    assertThat(store.get("unknown")).isNull();
+  }
+
+  @Test
+  public void stored_macaroon_is_read_as_slices() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier)
+        .add_third_party_caveat("http://auth.mybank/", "4; guaranteed random by a fair toss of the dice", "this was how we remind auth of key/pred")
+        .getMacaroon();
+    store.put(m, LATER);
+
+    String caveatTypes = store.read(identifier, new Function<OffHeapMacaroonStore.Entry, String>() {
+      @Override
+      public String apply(OffHeapMacaroonStore.Entry entry) {
+        assertThat(entry.getIdentifier()).isEqualTo(ByteBuffer.wrap(identifier.getBytes()));
+        assertThat(entry.getLocation()).isEqualTo(ByteBuffer.wrap(location.getBytes()));
+        assertThat(entry.getSignatureBytes()).isEqualTo(m.signatureBytes);
+        assertThat(entry.getCaveat(1)).isEqualTo(ByteBuffer.wrap(m.caveatPackets[1].rawValue));
+        assertThat(entry.getCaveat(1).isReadOnly()).isTrue();
+        assertThat(entry.getExpiresAt()).isEqualTo(LATER);
+        return entry.getCaveatType(0) + "," + entry.getCaveatType(1) + "," + entry.getCaveatType(2);
+      }
+    });
+
+    assertThat(caveatTypes).isEqualTo(Type.cid + "," + Type.vid + "," + Type.cl);
+  }
+
+  @Test
+  public void stored_json_macaroon_can_be_read() {
+    Macaroon m = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+
+    store.put(m.serialize(V2_JSON), LATER);
+
+    assertThat(store.get(identifier).signature).isEqualTo(m.signature);
+  }
+
+  @Test
+  public void macaroon_with_same_identifier_is_replaced() {
+    Macaroon m1 = new MacaroonsBuilder(location, secret, identifier).getMacaroon();
+    Macaroon m2 = new MacaroonsBuilder(location, secret, identifier)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+
+    store.put(m1, LATER);
+    store.put(m2, LATER);
+
+    assertThat(store.size()).isEqualTo(1);
+    assertThat(store.get(identifier)).isEqualTo(m2);
+  }
+
+  @Test
+  public void removed_macaroon_is_gone() {
+    store.put(new MacaroonsBuilder(location, secret, identifier).getMacaroon(), LATER);
+
+    assertThat(store.remove(identifier)).isTrue();
+    assertThat(store.remove(identifier)).isFalse();
+    assertThat(store.contains(identifier)).isFalse();
+    assertThat(store.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void expired_macaroon_is_not_returned_and_dropped_by_compaction() {
+    store.put(new MacaroonsBuilder(location, secret, identifier).getMacaroon(), LATER);
+    store.put(new MacaroonsBuilder(location, secret, "other").getMacaroon(), LATER + 1);
+
+    clock.millis = LATER;
+
+    assertThat(store.contains(identifier)).isFalse();
+    assertThat(store.contains("other")).isTrue();
+    store.compact();
+    assertThat(store.size()).isEqualTo(1);
+    assertThat(store.contains("other")).isTrue();
+  }
+
+  @Test
+  public void compaction_reclaims_space_of_dead_records() {
+    for (int i = 0; i < 200; i++) {
+      store.put(new MacaroonsBuilder(location, secret, "id-" + i).getMacaroon(), LATER);
+    }
+    for (int i = 0; i < 200; i++) {
+      if (i % 10 != 0) {
+        store.remove("id-" + i);
+      }
+    }
+    long usedBefore = store.getUsedBytes();
+
+    store.compact();
+
+    assertThat(store.getUsedBytes()).isLessThan(usedBefore);
+    assertThat(store.size()).isEqualTo(20);
+    for (int i = 0; i < 200; i++) {
+      assertThat(store.contains("id-" + i)).isEqualTo(i % 10 == 0);
+    }
+    assertThat(store.get("id-50").identifier).isEqualTo("id-50");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void macaroon_larger_than_a_segment_is_rejected() {
+    StringBuilder caveat = new StringBuilder();
+    while (caveat.length() < 5000) {
+      caveat.append("0123456789");
+    }
+    CaveatPacket[] caveats = {new CaveatPacket(Type.cid, caveat.toString())};
+
+    store.put(new Macaroon(location, identifier, new byte[32], caveats, MacaroonVersion.VERSION_1), LATER);
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void closed_store_can_not_be_used() {
+    store.close();
+
+    store.contains(identifier);
+  }
+
+  private static class MutableClock extends Clock {
+    private long millis;
+
+    private MutableClock(long millis) {
+      this.millis = millis;
+    }
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public long millis() {
+      return millis;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(millis);
+    }
+  }
+}
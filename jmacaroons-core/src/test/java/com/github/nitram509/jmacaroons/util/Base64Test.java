@@ -3,6 +3,10 @@ package com.github.nitram509.jmacaroons.util;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 import static org.fest.assertions.Assertions.assertThat;
 
 public class Base64Test {
@@ -78,4 +82,80 @@ public class Base64Test {
   public void decoder_works_with_invalid_input(String base64Str) {
     assertThat(Base64.decode(base64Str)).isEqualTo(new byte[]{});
   }
-}
\ No newline at end of file
+
+  @Test(dataProvider = "URL_safe_base64_strings_and_bytes")
+  public void decoder_works_with_a_part_of_ASCII_bytes_or_chars(String base64str, byte expected) {
+    String surrounded = "[" + base64str + "]";
+    byte[] ascii = surrounded.getBytes(StandardCharsets.US_ASCII);
+
+    assertThat(Base64.decode(ascii, 1, base64str.length())).isEqualTo(new byte[]{expected});
+    assertThat(Base64.decode(new StringBuilder(surrounded), 1, base64str.length())).isEqualTo(new byte[]{expected});
+  }
+
+  @Test
+  public void encoder_writes_the_same_ASCII_bytes_as_chars_into_a_buffer() {
+    for (int length = 0; length < 8; length++) {
+      byte[] bytes = new byte[length];
+      for (int i = 0; i < length; i++) bytes[i] = (byte) (0xf0 + 7 * i);
+      String expected = Base64.encodeUrlSafeToString(bytes);
+
+      byte[] dst = new byte[2 + Base64.encodedLengthUrlSafe(length)];
+      int written = Base64.encodeUrlSafe(bytes, 0, length, dst, 2);
+
+      assertThat(written).isEqualTo(expected.length());
+      assertThat(new String(dst, 2, written, StandardCharsets.US_ASCII)).isEqualTo(expected);
+    }
+  }
+
+  @DataProvider(name = "malformed_base64_strings")
+  public static Object[][] malformed_base64_strings() {
+    return new Object[][]{
+        {"A"},
+        {"AAAAA"},
+        {"AA=A"},
+        {"A==="},
+        {"AA="},
+        {"AAA\n"},
+        {"AAø="},
+        {"AA AA"},
+    };
+  }
+
+  @Test(dataProvider = "malformed_base64_strings", expectedExceptions = IllegalArgumentException.class)
+  public void slice_decoder_rejects_malformed_bytes(String base64Str) {
+    byte[] ascii = base64Str.getBytes(StandardCharsets.UTF_8);
+    Base64.decode(ascii, 0, ascii.length);
+  }
+
+  @Test(dataProvider = "malformed_base64_strings", expectedExceptions = IllegalArgumentException.class)
+  public void slice_decoder_rejects_malformed_chars(String base64Str) {
+    Base64.decode(base64Str, 0, base64Str.length());
+  }
+
+  @Test
+  public void slice_decoder_accepts_padded_and_unpadded_input_of_both_alphabets() {
+    byte[] expected = {(byte) 0xfb, (byte) 0xff, 0x01, (byte) 0xfe};
+    for (String base64Str : new String[]{"-_8B_g", "-_8B_g==", "+/8B/g", "+/8B/g=="}) {
+      byte[] dst = new byte[6];
+      byte[] ascii = base64Str.getBytes(StandardCharsets.US_ASCII);
+
+      assertThat(Base64.decode(ascii, 0, ascii.length, dst, 1)).isEqualTo(4);
+      assertThat(Arrays.copyOfRange(dst, 1, 5)).isEqualTo(expected);
+      assertThat(Base64.decode(base64Str, 0, base64Str.length())).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  public void buffers_are_encoded_and_decoded_between_their_positions_and_limits() {
+    byte[] bytes = {(byte) 0xfb, (byte) 0xff, 0x01, (byte) 0xfe};
+    ByteBuffer encoded = ByteBuffer.allocateDirect(8);
+    assertThat(Base64.encodeUrlSafe(ByteBuffer.wrap(bytes), encoded)).isEqualTo(6);
+    encoded.flip();
+
+    ByteBuffer decoded = ByteBuffer.allocate(4);
+    assertThat(Base64.decode(encoded, decoded)).isEqualTo(4);
+
+    assertThat(encoded.hasRemaining()).isFalse();
+    assertThat(decoded.array()).isEqualTo(bytes);
+  }
+}
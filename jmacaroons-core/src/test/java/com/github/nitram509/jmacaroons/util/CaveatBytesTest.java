@@ -0,0 +1,70 @@
+package com.github.nitram509.jmacaroons.util;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class CaveatBytesTest {
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void matches_prefixes_and_whole_caveats_in_a_slice() {
+    byte[] caveat = bytes("..account = 42..");
+
+    assertThat(CaveatBytes.startsWith(caveat, 2, 12, bytes("account = "))).isTrue();
+    assertThat(CaveatBytes.startsWith(caveat, 2, 5, bytes("account = "))).isFalse();
+    assertThat(CaveatBytes.startsWith(caveat, 0, 12, bytes("account = "))).isFalse();
+    assertThat(CaveatBytes.equals(caveat, 2, 12, bytes("account = 42"))).isTrue();
+    assertThat(CaveatBytes.equals(caveat, 2, 11, bytes("account = 42"))).isFalse();
+    assertThat(CaveatBytes.indexOf(caveat, 2, 14, '=')).isEqualTo(10);
+    assertThat(CaveatBytes.indexOf(caveat, 11, 14, '=')).isEqualTo(-1);
+    assertThat(CaveatBytes.skipWhitespace(caveat, 11, 14)).isEqualTo(12);
+  }
+
+  @DataProvider(name = "Numbers")
+  public static Object[][] numbers() {
+    return new Object[][]{
+        {"0"},
+        {"42"},
+        {"-42"},
+        {"+42"},
+        {"007"},
+        {"9223372036854775807"},
+        {"-9223372036854775808"},
+    };
+  }
+
+  @Test(dataProvider = "Numbers")
+  public void parses_numbers_like_Long(String number) {
+    byte[] caveat = bytes("n = " + number + ";");
+
+    assertThat(CaveatBytes.parseLong(caveat, 4, caveat.length - 1)).isEqualTo(Long.parseLong(number));
+  }
+
+  @DataProvider(name = "NoNumbers")
+  public static Object[][] noNumbers() {
+    return new Object[][]{
+        {""},
+        {"-"},
+        {"4 2"},
+        {"0x2a"},
+        {"٤٢"},
+        {"9223372036854775808"},
+        {"-9223372036854775809"},
+        {"99999999999999999999"},
+    };
+  }
+
+  @Test(dataProvider = "NoNumbers", expectedExceptions = NumberFormatException.class)
+  public void rejects_what_Long_rejects(String number) {
+    byte[] caveat = bytes(number);
+
+    CaveatBytes.parseLong(caveat, 0, caveat.length);
+  }
+}
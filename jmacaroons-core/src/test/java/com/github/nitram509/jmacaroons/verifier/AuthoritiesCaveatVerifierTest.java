@@ -20,6 +20,8 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.nio.charset.StandardCharsets;
+
 import static org.fest.assertions.Assertions.assertThat;
 
 public class AuthoritiesCaveatVerifierTest {
@@ -58,5 +60,45 @@ public class AuthoritiesCaveatVerifierTest {
     // Verify the helper method as well
     verifier = AuthoritiesCaveatVerifier.hasAuthority(authorityToHave);
     assertThat(verifier.verifyCaveat(sampleCaveat)).isEqualTo(isValid);
+
+    byte[] bytes = sampleCaveat.getBytes(StandardCharsets.UTF_8);
+    assertThat(verifier.verifyCaveat(bytes, 0, bytes.length)).isEqualTo(isValid);
+  }
+
+  @Test(dataProvider = "SingleAuthorityCombinations")
+  public void verify_a_single_authority_by_name_with_a_dictionary(String sampleCaveat, String[] authorityToHave, Boolean isValid) throws Exception {
+    AuthorityDictionary dictionary = new AuthorityDictionary("ADMIN", "BAR");
+    verifier = AuthoritiesCaveatVerifier.hasAuthority(dictionary, authorityToHave);
+
+    assertThat(verifier.verifyCaveat(sampleCaveat)).isEqualTo(isValid);
+    byte[] bytes = sampleCaveat.getBytes(StandardCharsets.UTF_8);
+    assertThat(verifier.verifyCaveat(bytes, 0, bytes.length)).isEqualTo(isValid);
+  }
+
+  @Test
+  public void authorities_are_verified_by_known_and_unknown_names() {
+    AuthorityDictionary dictionary = new AuthorityDictionary("ROLE_USER", "ROLE_ADMIN");
+    String caveat = "authorities = ROLE_USER, DEV_TOOLS_AVAILABLE, Jürgen";
+
+    assertThat(AuthoritiesCaveatVerifier.hasAuthority(dictionary, "ROLE_USER", "DEV_TOOLS_AVAILABLE", "Jürgen").verifyCaveat(caveat)).isTrue();
+    assertThat(AuthoritiesCaveatVerifier.hasAuthority(dictionary, "ROLE_USER", "ROLE_ADMIN").verifyCaveat(caveat)).isFalse();
+    assertThat(AuthoritiesCaveatVerifier.hasAuthority(dictionary, "ROLE_USER", "DEV_TOOLS").verifyCaveat(caveat)).isFalse();
+    assertThat(AuthoritiesCaveatVerifier.hasAuthority(dictionary, "Jürgen").verifyCaveat("authorities = Jürgen2")).isFalse();
+  }
+
+  @Test
+  public void the_empty_authority_is_listed_like_String_split_does() {
+    verifier = AuthoritiesCaveatVerifier.hasAuthority("");
+
+    for (String caveat : new String[]{"authorities =", "authorities = A, ,B", "authorities = A,,B"}) {
+      byte[] bytes = caveat.getBytes(StandardCharsets.UTF_8);
+      assertThat(verifier.verifyCaveat(caveat)).isTrue();
+      assertThat(verifier.verifyCaveat(bytes, 0, bytes.length)).isTrue();
+    }
+    for (String caveat : new String[]{"authorities = A,,", "authorities = A, B"}) {
+      byte[] bytes = caveat.getBytes(StandardCharsets.UTF_8);
+      assertThat(verifier.verifyCaveat(caveat)).isFalse();
+      assertThat(verifier.verifyCaveat(bytes, 0, bytes.length)).isFalse();
+    }
   }
 }
\ No newline at end of file
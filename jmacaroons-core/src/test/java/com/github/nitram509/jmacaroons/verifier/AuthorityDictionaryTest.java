@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class AuthorityDictionaryTest {
+
+  @Test
+  public void authorities_are_numbered_in_order() {
+    AuthorityDictionary dictionary = new AuthorityDictionary("ROLE_USER", "ROLE_ADMIN");
+
+    assertThat(dictionary.size()).isEqualTo(2);
+    assertThat(dictionary.indexOf("ROLE_USER")).isEqualTo(0);
+    assertThat(dictionary.indexOf("ROLE_ADMIN")).isEqualTo(1);
+    assertThat(dictionary.indexOf("role_admin")).isEqualTo(-1);
+    assertThat(dictionary.authority(1)).isEqualTo("ROLE_ADMIN");
+  }
+
+  @Test
+  public void the_bits_of_a_caveat_hold_its_known_authorities() {
+    AuthorityDictionary dictionary = new AuthorityDictionary("A", "B", "C");
+    byte[] bytes = "authorities = C, X,A".getBytes(StandardCharsets.UTF_8);
+
+    assertThat(dictionary.bitsOf("authorities = C, X,A")).isEqualTo(5L);
+    assertThat(dictionary.bitsOf(bytes, 0, bytes.length)).isEqualTo(5L);
+    assertThat(dictionary.bitsOf("authorities = X")).isEqualTo(0L);
+    assertThat(dictionary.bitsOf("time < 2042-01-01T00:00")).isNull();
+  }
+
+  @Test
+  public void a_dictionary_holds_64_authorities() {
+    String[] authorities = new String[AuthorityDictionary.MAX_SIZE];
+    for (int i = 0; i < authorities.length; i++) {
+      authorities[i] = "A" + i;
+    }
+    AuthorityDictionary dictionary = new AuthorityDictionary(authorities);
+
+    assertThat(dictionary.bitsOf("authorities = A63, A0")).isEqualTo(Long.MIN_VALUE | 1L);
+    assertThat(AuthoritiesCaveatVerifier.hasAuthority(dictionary, "A63").verifyCaveat("authorities = A63")).isTrue();
+  }
+
+  @DataProvider(name = "InvalidDictionaries")
+  public static Object[][] invalidDictionaries() {
+    String[] tooMany = new String[AuthorityDictionary.MAX_SIZE + 1];
+    for (int i = 0; i < tooMany.length; i++) {
+      tooMany[i] = "A" + i;
+    }
+    return new Object[][]{
+        {tooMany},
+        {new String[]{"A", "A"}},
+        {new String[]{""}},
+        {new String[]{"A,B"}},
+        {new String[]{" A"}},
+        {new String[]{null}},
+    };
+  }
+
+  @Test(dataProvider = "InvalidDictionaries", expectedExceptions = IllegalArgumentException.class)
+  public void invalid_authorities_are_rejected(String[] authorities) {
+    new AuthorityDictionary(authorities);
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ClientAddressCaveatVerifierTest {
+
+  @DataProvider(name = "AddressesAndNetworks")
+  public static Object[][] addressesAndNetworks() {
+    return new Object[][]{
+        {"10.1.2.3", "ip in 10.0.0.0/8", true},
+        {"11.1.2.3", "ip in 10.0.0.0/8", false},
+        {"192.168.4.77", "ip in 10.0.0.0/8,192.168.4.0/24", true},
+        {"192.168.5.77", "ip in 10.0.0.0/8, 192.168.4.0/24", false},
+        {"192.168.4.77", "ip in 192.168.4.77", true},
+        {"192.168.4.78", "ip in 192.168.4.77", false},
+        {"192.168.4.78", "ip in 192.168.4.77/31", false},
+        {"192.168.4.76", "ip in 192.168.4.77/31", true},
+        {"8.8.8.8", "ip in 0.0.0.0/0", true},
+        {"2001:db8::1", "ip in 0.0.0.0/0", false},
+        {"2001:db8::1", "ip in ::/0", true},
+        {"2001:db8:0:0:0:0:0:1", "ip in 2001:db8::/32", true},
+        {"2001:db9::1", "ip in 2001:db8::/32", false},
+        {"fe80::1%eth0", "ip in fe80::/10", true},
+        {"::ffff:10.1.2.3", "ip in 10.0.0.0/8", true},
+        {"10.1.2.3", "ip in ::ffff:10.0.0.0/104", true},
+        {"::1", "ip in ::1", true},
+        {"10.1.2.3", "ip in 10.0.0.0/33", false},
+        {"10.1.2.3", "ip in 10.0.0.0/8,", false},
+        {"10.1.2.3", "ip in 10.0.0/8", false},
+        {"10.1.2.3", "ip in 10.0.0.256/8", false},
+        {"10.1.2.3", "ip in 1:2:3:4:5:6:7:8:9/8", false},
+        {"10.1.2.3", "ip in 1::2::3/8", false},
+        {"10.1.2.3", "ip = 10.1.2.3", false},
+    };
+  }
+
+  @Test(dataProvider = "AddressesAndNetworks")
+  public void verifies_the_client_address(String address, String caveat, Boolean isValid) throws Exception {
+    byte[] bytes = caveat.getBytes(StandardCharsets.UTF_8);
+
+    ClientAddressCaveatVerifier verifier = new ClientAddressCaveatVerifier(address);
+    assertThat(verifier.verifyCaveat(caveat)).isEqualTo(isValid);
+    assertThat(verifier.verifyCaveat(bytes, 0, bytes.length)).isEqualTo(isValid);
+
+    // without the zone, which names an interface of the host
+    verifier = new ClientAddressCaveatVerifier(InetAddress.getByName(address.replaceFirst("%.*", "")).getAddress());
+    assertThat(verifier.verifyCaveat(caveat)).isEqualTo(isValid);
+  }
+
+  @DataProvider(name = "InvalidAddresses")
+  public static Object[][] invalidAddresses() {
+    return new Object[][]{
+        {"localhost"},
+        {"1.2.3"},
+        {"1.2.3.4.5"},
+        {"1:2:3"},
+        {"::1::"},
+        {"12345::"},
+        {""},
+    };
+  }
+
+  @Test(dataProvider = "InvalidAddresses", expectedExceptions = IllegalArgumentException.class)
+  public void rejects_invalid_addresses(String address) {
+    new ClientAddressCaveatVerifier(address);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void rejects_addresses_of_wrong_length() {
+    new ClientAddressCaveatVerifier(new byte[5]);
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import com.github.nitram509.jmacaroons.Macaroon;
+import com.github.nitram509.jmacaroons.MacaroonsBuilder;
+import com.github.nitram509.jmacaroons.MacaroonsVerifier;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ExpressionCaveatVerifierTest {
+
+  private final ExpressionCaveatVerifier verifier = new ExpressionCaveatVerifier();
+
+  private static Map<String, Object> attributes() {
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("account", 3735928559L);
+    attributes.put("op", "write");
+    attributes.put("bytes", 4096);
+    attributes.put("bucket", "acme-reports");
+    attributes.put("user.name", "Jürgen");
+    return attributes;
+  }
+
+  @DataProvider(name = "Conditions")
+  public static Object[][] conditions() {
+    return new Object[][]{
+        {"account = 3735928559", true},
+        {"account=3735928559", true},
+        {"account = 42", false},
+        {"account != 42", true},
+        {"op = write", true},
+        {"op = read", false},
+        {"op != read", true},
+        {"user.name = Jürgen", true},
+        {"bytes < 1048576", true},
+        {"bytes <= 4096", true},
+        {"bytes < 4096", false},
+        {"bytes > 4095", true},
+        {"bytes >= 4097", false},
+        {"op < 5", false},
+        {"op in read, write", true},
+        {"op in read,list", false},
+        {"bytes in 1024, 4096", true},
+        {"account in 42,3735928559", true},
+        {"bucket matches acme-*", true},
+        {"bucket matches *-rep?rts", true},
+        {"bucket matches acme", false},
+        {"bucket matches *", true},
+        {"missing = 42", false},
+        {"missing != 42", false},
+        {"bytes < lots", false},
+        {"op is write", false},
+        {"opin read", false},
+        {"time < 2042-01-01T00:00", false},
+        {"= 42", false},
+        {"", false},
+    };
+  }
+
+  @Test(dataProvider = "Conditions")
+  public void verifies_conditions_on_attributes(String caveat, Boolean satisfied) {
+    byte[] bytes = ("xx" + caveat).getBytes(StandardCharsets.UTF_8);
+
+    assertThat(verifier.verifyCaveat(caveat, attributes())).isEqualTo(satisfied);
+    assertThat(verifier.verifyCaveat(bytes, 2, bytes.length - 2, attributes())).isEqualTo(satisfied);
+    // second time from the cache
+    assertThat(verifier.verifyCaveat(bytes, 2, bytes.length - 2, attributes())).isEqualTo(satisfied);
+  }
+
+  @Test
+  public void other_attributes_are_compared_as_text() {
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("size", new StringBuilder("42"));
+
+    assertThat(verifier.verifyCaveat("size = 42", attributes)).isTrue();
+    assertThat(verifier.verifyCaveat("size < 43", attributes)).isTrue();
+    assertThat(verifier.verifyCaveat("size in 41,42", attributes)).isTrue();
+    assertThat(verifier.verifyCaveat("size matches 4*", attributes)).isTrue();
+    assertThat(verifier.verifyCaveat("size = 42", null)).isFalse();
+  }
+
+  @Test
+  public void a_single_verifier_serves_all_requests() {
+    String secret = "this is our super secret key; only we should know it";
+    Macaroon m = new MacaroonsBuilder("http://mybank/", secret, "we used our secret key")
+        .add_first_party_caveat("op in read, write")
+        .add_first_party_caveat("bytes < 1048576")
+        .getMacaroon();
+    Map<String, Object> small = attributes();
+    Map<String, Object> big = attributes();
+    big.put("bytes", 1 << 20);
+
+    assertThat(new MacaroonsVerifier(m).satisfyGeneral(verifier, small).isValid(secret)).isTrue();
+    assertThat(new MacaroonsVerifier(m.serialize()).satisfyGeneral(verifier, small).isValid(secret)).isTrue();
+    assertThat(new MacaroonsVerifier(m.serialize()).satisfyGeneral(verifier, big).isValid(secret)).isFalse();
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ParsedCaveatCacheTest {
+
+  private AtomicInteger parsed;
+  private ParsedCaveatCache<String> cache;
+
+  @BeforeMethod
+  public void setUp() {
+    parsed = new AtomicInteger();
+    cache = new ParsedCaveatCache<>(64, 32, caveat -> {
+      parsed.incrementAndGet();
+      return caveat.toUpperCase();
+    });
+  }
+
+  @Test
+  public void a_caveat_is_parsed_once_for_strings_and_bytes() {
+    byte[] bytes = "xxaccount = 3735928559".getBytes(StandardCharsets.US_ASCII);
+
+    assertThat(cache.get("account = 3735928559")).isEqualTo("ACCOUNT = 3735928559");
+    assertThat(cache.get("account = 3735928559")).isEqualTo("ACCOUNT = 3735928559");
+    assertThat(cache.get(bytes, 2, bytes.length - 2)).isEqualTo("ACCOUNT = 3735928559");
+    assertThat(parsed.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void non_ascii_caveats_are_keyed_by_their_utf8_bytes() {
+    String caveat = "user = Jürgen";
+    byte[] bytes = caveat.getBytes(StandardCharsets.UTF_8);
+
+    assertThat(cache.get(bytes, 0, bytes.length)).isEqualTo("USER = JÜRGEN");
+    assertThat(cache.get(caveat)).isEqualTo("USER = JÜRGEN");
+    assertThat(parsed.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void long_caveats_are_not_remembered() {
+    String caveat = "a caveat, which is longer than 32 bytes";
+
+    cache.get(caveat);
+    cache.get(caveat);
+
+    assertThat(parsed.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void the_cache_is_bounded_and_returns_right_results_for_colliding_caveats() {
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 1000; i++) {
+        assertThat(cache.get("caveat " + i)).isEqualTo("CAVEAT " + i);
+      }
+    }
+    assertThat(parsed.get()).isGreaterThan(1000);
+  }
+
+  @Test
+  public void the_cache_is_shared_between_threads() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        results.add(executor.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            boolean ok = true;
+            for (int i = 0; i < 20000; i++) {
+              ok &= cache.get("caveat " + (i % 100)).equals("CAVEAT " + (i % 100));
+            }
+            return ok;
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertThat(result.get()).isTrue();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PathCaveatVerifierTest {
+
+  @DataProvider(name = "PathsAndGlobs")
+  public static Object[][] pathsAndGlobs() {
+    return new Object[][]{
+        {"/buckets/acme/2014/reports/q3/sales.pdf", "path = /buckets/acme/*/reports/**", true},
+        {"/buckets/acme/2014/11/reports/sales.pdf", "path = /buckets/acme/*/reports/**", false},
+        {"/buckets/other/2014/reports/sales.pdf", "path = /buckets/acme/*/reports/**", false},
+        {"/buckets/acme/reports/", "path = /buckets/acme/**/reports/", false},
+        {"/buckets/acme//reports/", "path = /buckets/acme/**/reports/", true},
+        {"/buckets/acme/a/b/reports/", "path = /buckets/acme/**/reports/", true},
+        {"/index.html", "path = /index.html", true},
+        {"/index.htm", "path = /index.html", false},
+        {"/img/logo.png", "path = /*.html, /img/*.png", true},
+        {"/img/logo.gif", "path = /*.html,/img/*.png", false},
+        {"/a.html", "path = /*.html,/img/*.png", true},
+        {"/v1/users", "path = /v?/users", true},
+        {"/v12/users", "path = /v?/users", false},
+        {"/v/users", "path = /v?/users", false},
+        {"/v//users", "path = /v?/users", false},
+        {"/fürth/ß", "path = /f?rth/?", true},
+        {"/fürth/ß", "path = /fürth/*", true},
+        {"/fürth/ß", "path = /furth/*", false},
+        {"/", "path = **", true},
+        {"/a", "path = *", false},
+        {"/a", "path = /a ", true},
+        {"/a", "path != /a", false},
+    };
+  }
+
+  @Test(dataProvider = "PathsAndGlobs")
+  public void verifies_the_requested_path(String path, String caveat, Boolean isValid) {
+    byte[] bytes = caveat.getBytes(StandardCharsets.UTF_8);
+
+    PathCaveatVerifier verifier = new PathCaveatVerifier(path);
+    assertThat(verifier.verifyCaveat(caveat)).isEqualTo(isValid);
+    assertThat(verifier.verifyCaveat(bytes, 0, bytes.length)).isEqualTo(isValid);
+  }
+
+  @DataProvider(name = "NonCanonicalPaths")
+  public static Object[][] nonCanonicalPaths() {
+    return new Object[][]{
+        {"/buckets/acme/x/reports/../../../other/secret"},
+        {"/buckets/acme/%2e%2e/reports/x"},
+        {"/buckets/acme/x/reports/.."},
+        {"/buckets/acme/./reports/x"},
+        {".."},
+        {"/buckets/acme/x/reports/%2F..%2F"},
+    };
+  }
+
+  @Test(dataProvider = "NonCanonicalPaths", expectedExceptions = IllegalArgumentException.class)
+  public void non_canonical_paths_are_rejected(String path) {
+    new PathCaveatVerifier(path);
+  }
+
+  @Test
+  public void dots_within_segments_are_allowed() {
+    assertThat(new PathCaveatVerifier("/buckets/acme/.x/reports/..y/...").verifyCaveat("path = /buckets/acme/*/reports/**")).isTrue();
+  }
+
+  @Test
+  public void globs_with_too_many_states_are_never_satisfied() {
+    // the automaton has to remember which of the last chars were an 'a'
+    String caveat = "path = **a?????????????";
+
+    assertThat(new PathCaveatVerifier("/abcdefghijklmn").verifyCaveat(caveat)).isFalse();
+    assertThat(new PathCaveatVerifier("/abcdefghijk").verifyCaveat("path = **a??????????")).isTrue();
+  }
+
+  @Test
+  public void long_caveats_are_rejected_without_compiling_them() {
+    String caveat = "path = " + repeat("*?", 3000);
+    byte[] bytes = caveat.getBytes(StandardCharsets.UTF_8);
+    PathCaveatVerifier verifier = new PathCaveatVerifier("/" + repeat("a", 3000));
+
+    long start = System.nanoTime();
+    for (int i = 0; i < 10; i++) {
+      assertThat(verifier.verifyCaveat(caveat)).isFalse();
+      assertThat(verifier.verifyCaveat(bytes, 0, bytes.length)).isFalse();
+    }
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(1000);
+    assertThat(new PathCaveatVerifier("/" + repeat("a", 3000)).verifyCaveat("path = /**")).isTrue();
+    // fewer chars, but more UTF-8 bytes than allowed
+    String nonAscii = "path = " + repeat("**ä?", 250);
+    assertThat(nonAscii.length()).isLessThan(PathCaveatVerifier.MAX_CAVEAT_LENGTH);
+    assertThat(new PathCaveatVerifier("/" + repeat("äa", 250)).verifyCaveat(nonAscii)).isFalse();
+  }
+
+  @Test
+  public void globs_which_take_too_long_to_compile_are_never_satisfied() {
+    // short enough to be compiled, but every state of the automaton holds almost all states of the globs
+    String caveat = "path = " + repeat("*?", (PathCaveatVerifier.MAX_CAVEAT_LENGTH - 8) / 2);
+
+    assertThat(new PathCaveatVerifier(repeat("a", 1000)).verifyCaveat(caveat)).isFalse();
+  }
+
+  private static String repeat(String s, int count) {
+    StringBuilder sb = new StringBuilder(s.length() * count);
+    for (int i = 0; i < count; i++) {
+      sb.append(s);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import com.github.nitram509.jmacaroons.Macaroon;
+import com.github.nitram509.jmacaroons.MacaroonsBuilder;
+import com.github.nitram509.jmacaroons.MacaroonsVerifier;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class RevocationCaveatVerifierTest {
+
+  private static final String SECRET = "this is our super secret key; only we should know it";
+
+  @Test
+  public void revoked_ids_are_not_satisfied() throws IOException {
+    RevocationCaveatVerifier verifier = verifierOf("4f1c2a", "identifier");
+    byte[] revoked = "revocation-id = 4f1c2a".getBytes(StandardCharsets.UTF_8);
+    byte[] valid = "revocation-id = 4f1c2b".getBytes(StandardCharsets.UTF_8);
+
+    assertThat(verifier.verifyCaveat("revocation-id = 4f1c2a")).isFalse();
+    assertThat(verifier.verifyCaveat(revoked, 0, revoked.length)).isFalse();
+    assertThat(verifier.verifyCaveat("revocation-id = 4f1c2b")).isTrue();
+    assertThat(verifier.verifyCaveat(valid, 0, valid.length)).isTrue();
+    assertThat(verifier.isRevoked("identifier")).isTrue();
+    assertThat(verifier.isRevoked("other identifier")).isFalse();
+  }
+
+  @Test
+  public void other_caveats_are_not_satisfied() throws IOException {
+    RevocationCaveatVerifier verifier = verifierOf("4f1c2a");
+    byte[] other = "revocation-id == 4f1c2b".getBytes(StandardCharsets.UTF_8);
+
+    assertThat(verifier.verifyCaveat("account = 3735928559")).isFalse();
+    assertThat(verifier.verifyCaveat(other, 0, other.length)).isFalse();
+  }
+
+  @Test
+  public void reloading_swaps_the_snapshot() throws IOException {
+    Path file = Files.createTempFile("revoked", ".snapshot");
+    try {
+      RevocationCaveatVerifier verifier = new RevocationCaveatVerifier(RevocationSnapshot.EMPTY);
+      assertThat(verifier.verifyCaveat("revocation-id = 4f1c2a")).isTrue();
+
+      RevocationSnapshot.write(file, Collections.singletonList("4f1c2a"));
+      verifier.reload(file);
+      assertThat(verifier.verifyCaveat("revocation-id = 4f1c2a")).isFalse();
+
+      RevocationSnapshot replaced = verifier.update(RevocationSnapshot.EMPTY);
+      assertThat(replaced.isRevoked("4f1c2a")).isTrue();
+      assertThat(verifier.snapshot()).isSameAs(RevocationSnapshot.EMPTY);
+      assertThat(verifier.verifyCaveat("revocation-id = 4f1c2a")).isTrue();
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void a_verifier_for_the_snapshot_does_not_see_updates() throws IOException {
+    RevocationCaveatVerifier verifier = new RevocationCaveatVerifier(RevocationSnapshot.EMPTY);
+    RevocationCaveatVerifier pinned = verifier.forSnapshot();
+
+    verifier.update(verifierOf("4f1c2a", "identifier").snapshot());
+
+    assertThat(pinned.snapshot()).isSameAs(RevocationSnapshot.EMPTY);
+    assertThat(pinned.verifyCaveat("revocation-id = 4f1c2a")).isTrue();
+    assertThat(pinned.isRevoked("identifier")).isFalse();
+    assertThat(verifier.verifyCaveat("revocation-id = 4f1c2a")).isFalse();
+    assertThat(verifier.forSnapshot().isRevoked("identifier")).isTrue();
+  }
+
+  @Test
+  public void macaroons_with_revoked_ids_are_not_valid() throws IOException {
+    Macaroon macaroon = new MacaroonsBuilder("http://www.example.org", SECRET, "we used our secret key")
+        .add_first_party_caveat("revocation-id = 4f1c2a")
+        .getMacaroon();
+
+    assertThat(new MacaroonsVerifier(macaroon).satisfyGeneral(verifierOf("4f1c2b")).isValid(SECRET)).isTrue();
+    assertThat(new MacaroonsVerifier(macaroon).satisfyGeneral(verifierOf("4f1c2a")).isValid(SECRET)).isFalse();
+  }
+
+  private static RevocationCaveatVerifier verifierOf(String... revokedIds) throws IOException {
+    Path file = Files.createTempFile("revoked", ".snapshot");
+    try {
+      RevocationSnapshot.write(file, Arrays.asList(revokedIds));
+      return new RevocationCaveatVerifier(RevocationSnapshot.open(file));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class RevocationSnapshotTest {
+
+  @Test
+  public void written_ids_are_revoked_others_are_not() throws IOException {
+    List<String> revoked = new ArrayList<>();
+    for (int i = 0; i < 20000; i++) {
+      revoked.add("id-" + i);
+    }
+    Path file = Files.createTempFile("revoked", ".snapshot");
+    try {
+      RevocationSnapshot.write(file, revoked);
+      RevocationSnapshot snapshot = RevocationSnapshot.open(file);
+
+      assertThat(snapshot.size()).isEqualTo(20000);
+      for (String id : revoked) {
+        assertThat(snapshot.isRevoked(id)).isTrue();
+      }
+      for (int i = 20000; i < 40000; i++) {
+        assertThat(snapshot.isRevoked("id-" + i)).isFalse();
+      }
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void ids_are_checked_within_a_byte_array() throws IOException {
+    Path file = Files.createTempFile("revoked", ".snapshot");
+    try {
+      RevocationSnapshot.write(file, Arrays.asList("4f1c2a", "fürth"));
+      RevocationSnapshot snapshot = RevocationSnapshot.open(file);
+      byte[] bytes = "xx4f1c2ayy".getBytes("UTF-8");
+
+      assertThat(snapshot.isRevoked(bytes, 2, 6)).isTrue();
+      assertThat(snapshot.isRevoked(bytes, 2, 5)).isFalse();
+      assertThat(snapshot.isRevoked("fürth")).isTrue();
+      assertThat(snapshot.isRevoked("furth")).isFalse();
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void duplicates_are_stored_once() throws IOException {
+    Path file = Files.createTempFile("revoked", ".snapshot");
+    try {
+      RevocationSnapshot.write(file, Arrays.asList("a", "b", "a", "a"));
+
+      assertThat(RevocationSnapshot.open(file).size()).isEqualTo(2);
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void writing_replaces_the_file_and_open_snapshots_keep_their_ids() throws IOException {
+    Path file = Files.createTempFile("revoked", ".snapshot");
+    try {
+      RevocationSnapshot.write(file, Collections.singletonList("old"));
+      RevocationSnapshot old = RevocationSnapshot.open(file);
+      RevocationSnapshot.write(file, Collections.singletonList("new"));
+      RevocationSnapshot current = RevocationSnapshot.open(file);
+
+      assertThat(old.isRevoked("old")).isTrue();
+      assertThat(old.isRevoked("new")).isFalse();
+      assertThat(current.isRevoked("old")).isFalse();
+      assertThat(current.isRevoked("new")).isTrue();
+      assertThat(Files.list(file.toAbsolutePath().getParent())
+          .filter(p -> p.getFileName().toString().startsWith(file.getFileName().toString()) && !p.equals(file))
+          .count()).isEqualTo(0L);
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void empty_snapshot_revokes_nothing() {
+    assertThat(RevocationSnapshot.EMPTY.size()).isEqualTo(0);
+    assertThat(RevocationSnapshot.EMPTY.isRevoked("")).isFalse();
+    assertThat(RevocationSnapshot.EMPTY.isRevoked("id")).isFalse();
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void other_files_are_rejected() throws IOException {
+    Path file = Files.createTempFile("revoked", ".snapshot");
+    try {
+      Files.write(file, "not a snapshot, but long enough".getBytes("UTF-8"));
+      RevocationSnapshot.open(file);
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void truncated_snapshots_are_rejected() throws IOException {
+    Path file = Files.createTempFile("revoked", ".snapshot");
+    try {
+      byte[] snapshot = RevocationSnapshot.build(new long[]{1, 2, 3});
+      Files.write(file, Arrays.copyOf(snapshot, snapshot.length - 1));
+      RevocationSnapshot.open(file);
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import com.github.nitram509.jmacaroons.Macaroon;
+import com.github.nitram509.jmacaroons.MacaroonsBuilder;
+import com.github.nitram509.jmacaroons.MacaroonsVerifier;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class SingleUseCaveatVerifierTest {
+
+  private static final String SECRET = "this is our super secret key; only we should know it";
+
+  @Test
+  public void a_nonce_is_used_up_after_the_verification() {
+    TimeWindowedReplayStore store = new TimeWindowedReplayStore(1, TimeUnit.MINUTES);
+    SingleUseCaveatVerifier verifier = new SingleUseCaveatVerifier(store);
+    byte[] caveat = "nonce = 7c9e6679".getBytes(StandardCharsets.UTF_8);
+
+    verifier.beforeVerification();
+    assertThat(verifier.verifyCaveat(caveat, 0, caveat.length)).isTrue();
+    assertThat(verifier.verifyCaveat("nonce = 7c9e6679")).isTrue();
+    assertThat(store.size()).isEqualTo(0);
+    assertThat(verifier.afterVerification()).isTrue();
+    assertThat(store.size()).isEqualTo(1);
+
+    verifier.beforeVerification();
+    assertThat(verifier.verifyCaveat(caveat, 0, caveat.length)).isFalse();
+    assertThat(verifier.verifyCaveat("nonce = 7c9e667a")).isTrue();
+  }
+
+  @Test
+  public void other_caveats_are_not_checked() {
+    RecordingReplayStore store = new RecordingReplayStore();
+    SingleUseCaveatVerifier verifier = new SingleUseCaveatVerifier(store);
+
+    verifier.beforeVerification();
+    assertThat(verifier.verifyCaveat("nonce == 7c9e6679")).isFalse();
+    assertThat(verifier.verifyCaveat("nonce = ")).isFalse();
+    assertThat(verifier.verifyCaveat("account = 3735928559")).isFalse();
+    assertThat(store.checked).isEmpty();
+    assertThat(verifier.verifyCaveat("nonce = fürth")).isTrue();
+    assertThat(store.checked).isEqualTo(Collections.singletonList("fürth"));
+    assertThat(store.used).isEmpty();
+    assertThat(verifier.afterVerification()).isTrue();
+    assertThat(store.used).isEqualTo(Collections.singletonList("fürth"));
+  }
+
+  @Test
+  public void macaroons_with_a_nonce_are_valid_once() {
+    Macaroon macaroon = new MacaroonsBuilder("http://www.example.org", SECRET, "we used our secret key")
+        .add_first_party_caveat("nonce = 7c9e6679")
+        .getMacaroon();
+    ReplayStore store = new TimeWindowedReplayStore(1, TimeUnit.MINUTES);
+
+    assertThat(new MacaroonsVerifier(macaroon).satisfyGeneral(new SingleUseCaveatVerifier(store)).isValid(SECRET)).isTrue();
+    assertThat(new MacaroonsVerifier(macaroon).satisfyGeneral(new SingleUseCaveatVerifier(store)).isValid(SECRET)).isFalse();
+  }
+
+  @Test
+  public void forged_macaroons_do_not_use_up_the_nonce() {
+    Macaroon macaroon = new MacaroonsBuilder("http://www.example.org", SECRET, "we used our secret key")
+        .add_first_party_caveat("nonce = 7c9e6679")
+        .getMacaroon();
+    Macaroon forged = new MacaroonsBuilder("http://www.example.org", "not our secret key", "we used our secret key")
+        .add_first_party_caveat("nonce = 7c9e6679")
+        .getMacaroon();
+    Macaroon unsatisfied = new MacaroonsBuilder(macaroon)
+        .add_first_party_caveat("account = 3735928559")
+        .getMacaroon();
+    TimeWindowedReplayStore store = new TimeWindowedReplayStore(1, TimeUnit.MINUTES);
+
+    assertThat(new MacaroonsVerifier(forged).satisfyGeneral(new SingleUseCaveatVerifier(store)).isValid(SECRET)).isFalse();
+    assertThat(new MacaroonsVerifier(unsatisfied).satisfyGeneral(new SingleUseCaveatVerifier(store)).isValid(SECRET)).isFalse();
+    assertThat(store.size()).isEqualTo(0);
+    assertThat(new MacaroonsVerifier(macaroon).satisfyGeneral(new SingleUseCaveatVerifier(store)).isValid(SECRET)).isTrue();
+    assertThat(store.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void a_failed_verification_does_not_leave_nonces_behind() {
+    Macaroon forged = new MacaroonsBuilder("http://www.example.org", "not our secret key", "we used our secret key")
+        .add_first_party_caveat("nonce = 7c9e6679")
+        .getMacaroon();
+    Macaroon macaroon = new MacaroonsBuilder("http://www.example.org", SECRET, "we used our secret key")
+        .add_first_party_caveat("nonce = 4f1c2a")
+        .getMacaroon();
+    TimeWindowedReplayStore store = new TimeWindowedReplayStore(1, TimeUnit.MINUTES);
+    SingleUseCaveatVerifier verifier = new SingleUseCaveatVerifier(store);
+
+    assertThat(new MacaroonsVerifier(forged).satisfyGeneral(verifier).isValid(SECRET)).isFalse();
+    assertThat(new MacaroonsVerifier(macaroon).satisfyGeneral(verifier).isValid(SECRET)).isTrue();
+    assertThat(markUsed(store, "7c9e6679")).isTrue();
+  }
+
+  @Test
+  public void of_two_concurrent_verifications_only_the_first_to_commit_is_valid() {
+    TimeWindowedReplayStore store = new TimeWindowedReplayStore(1, TimeUnit.MINUTES);
+    SingleUseCaveatVerifier first = new SingleUseCaveatVerifier(store);
+    SingleUseCaveatVerifier second = new SingleUseCaveatVerifier(store);
+
+    first.beforeVerification();
+    second.beforeVerification();
+    assertThat(first.verifyCaveat("nonce = 7c9e6679")).isTrue();
+    assertThat(second.verifyCaveat("nonce = 7c9e6679")).isTrue();
+    assertThat(second.afterVerification()).isTrue();
+    assertThat(first.afterVerification()).isFalse();
+  }
+
+  private static boolean markUsed(ReplayStore store, String nonce) {
+    byte[] bytes = nonce.getBytes(StandardCharsets.UTF_8);
+    return store.markUsed(bytes, 0, bytes.length);
+  }
+
+  private static class RecordingReplayStore implements ReplayStore {
+    final List<String> checked = new ArrayList<>();
+    final List<String> used = new ArrayList<>();
+
+    @Override
+    public boolean isUsed(byte[] nonce, int offset, int length) {
+      checked.add(new String(nonce, offset, length, StandardCharsets.UTF_8));
+      return false;
+    }
+
+    @Override
+    public boolean markUsed(byte[] nonce, int offset, int length) {
+      used.add(new String(nonce, offset, length, StandardCharsets.UTF_8));
+      return true;
+    }
+  }
+}
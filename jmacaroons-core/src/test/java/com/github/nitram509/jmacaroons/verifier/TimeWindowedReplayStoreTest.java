@@ -0,0 +1,258 @@
+/*
+ * Copyright 2014 Martin W. Kirst
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.nitram509.jmacaroons.verifier;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class TimeWindowedReplayStoreTest {
+
+  @Test
+  public void a_nonce_is_used_once() {
+    TimeWindowedReplayStore store = new TimeWindowedReplayStore(7, TimeUnit.SECONDS, new MutableClock());
+
+    assertThat(markUsed(store, "7c9e6679")).isTrue();
+    assertThat(markUsed(store, "7c9e6679")).isFalse();
+    assertThat(markUsed(store, "7c9e667")).isTrue();
+    assertThat(store.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void checking_a_nonce_does_not_use_it() {
+    TimeWindowedReplayStore store = new TimeWindowedReplayStore(7, TimeUnit.SECONDS, new MutableClock());
+    byte[] nonce = "7c9e6679".getBytes(StandardCharsets.UTF_8);
+
+    assertThat(store.isUsed(nonce, 0, nonce.length)).isFalse();
+    assertThat(store.isUsed(nonce, 0, nonce.length)).isFalse();
+    assertThat(store.size()).isEqualTo(0);
+    assertThat(store.markUsed(nonce, 0, nonce.length)).isTrue();
+    assertThat(store.isUsed(nonce, 0, nonce.length)).isTrue();
+    assertThat(store.isUsed(nonce, 1, nonce.length - 1)).isFalse();
+  }
+
+  @Test
+  public void nonces_are_remembered_for_the_window_and_forgotten_with_their_bucket() {
+    MutableClock clock = new MutableClock();
+    // 7 seconds are covered by buckets of a second
+    TimeWindowedReplayStore store = new TimeWindowedReplayStore(7, TimeUnit.SECONDS, clock);
+    clock.millis = 999;
+    markUsed(store, "a");
+    clock.millis = 1000;
+    markUsed(store, "b");
+
+    clock.millis = 999 + 7000;
+    assertThat(markUsed(store, "a")).isFalse();
+    clock.millis = 8000;
+    assertThat(store.size()).isEqualTo(1);
+    assertThat(markUsed(store, "a")).isTrue();
+    assertThat(markUsed(store, "b")).isFalse();
+    clock.millis = 9000;
+    assertThat(markUsed(store, "b")).isTrue();
+  }
+
+  @Test
+  public void long_nonces_are_never_satisfied() {
+    TimeWindowedReplayStore store = new TimeWindowedReplayStore(1, TimeUnit.MINUTES);
+    byte[] nonce = new byte[TimeWindowedReplayStore.MAX_NONCE_LENGTH + 1];
+
+    assertThat(store.isUsed(nonce, 0, nonce.length)).isTrue();
+    assertThat(store.markUsed(nonce, 0, nonce.length)).isFalse();
+    assertThat(store.markUsed(nonce, 1, nonce.length - 1)).isTrue();
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void an_empty_window_is_rejected() {
+    new TimeWindowedReplayStore(0, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void concurrent_uses_of_a_nonce_succeed_once() throws Exception {
+    TimeWindowedReplayStore store = new TimeWindowedReplayStore(1, TimeUnit.MINUTES);
+    AtomicInteger firstUses = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<?>[] futures = new Future<?>[4];
+      for (int t = 0; t < futures.length; t++) {
+        futures[t] = executor.submit(() -> {
+          for (int i = 0; i < 10000; i++) {
+            if (markUsed(store, "nonce-" + i)) firstUses.incrementAndGet();
+          }
+        });
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(firstUses.get()).isEqualTo(10000);
+    assertThat(store.size()).isEqualTo(10000);
+  }
+
+  @Test
+  public void used_nonces_survive_a_restart_with_a_journal() throws IOException {
+    Path directory = Files.createTempDirectory("nonces");
+    MutableClock clock = new MutableClock();
+    try {
+      clock.millis = 1000;
+      try (TimeWindowedReplayStore store = new TimeWindowedReplayStore(7, TimeUnit.SECONDS, directory, clock)) {
+        markUsed(store, "a");
+        clock.millis = 2000;
+        markUsed(store, "b");
+      }
+      try (TimeWindowedReplayStore store = new TimeWindowedReplayStore(7, TimeUnit.SECONDS, directory, clock)) {
+        assertThat(store.size()).isEqualTo(2);
+        assertThat(markUsed(store, "a")).isFalse();
+        assertThat(markUsed(store, "b")).isFalse();
+        assertThat(markUsed(store, "c")).isTrue();
+      }
+      clock.millis = 9000;
+      try (TimeWindowedReplayStore store = new TimeWindowedReplayStore(7, TimeUnit.SECONDS, directory, clock)) {
+        assertThat(store.size()).isEqualTo(2);
+        assertThat(markUsed(store, "a")).isTrue();
+        assertThat(markUsed(store, "b")).isFalse();
+      }
+      assertThat(journalFiles(directory)).isEqualTo(2);
+    } finally {
+      deleteAll(directory);
+    }
+  }
+
+  @Test
+  public void journal_files_of_forgotten_buckets_are_deleted() throws IOException {
+    Path directory = Files.createTempDirectory("nonces");
+    MutableClock clock = new MutableClock();
+    try {
+      try (TimeWindowedReplayStore store = new TimeWindowedReplayStore(7, TimeUnit.SECONDS, directory, clock)) {
+        for (int second = 0; second < 20; second++) {
+          clock.millis = second * 1000L;
+          markUsed(store, "nonce-" + second);
+        }
+        assertThat(journalFiles(directory)).isEqualTo(TimeWindowedReplayStore.BUCKETS);
+      }
+    } finally {
+      deleteAll(directory);
+    }
+  }
+
+  @Test
+  public void journal_files_read_after_a_restart_are_deleted_with_their_buckets() throws IOException {
+    Path directory = Files.createTempDirectory("nonces");
+    MutableClock clock = new MutableClock();
+    try {
+      clock.millis = 1000;
+      try (TimeWindowedReplayStore store = new TimeWindowedReplayStore(7, TimeUnit.SECONDS, directory, clock)) {
+        markUsed(store, "a");
+        clock.millis = 2000;
+        markUsed(store, "b");
+      }
+      try (TimeWindowedReplayStore store = new TimeWindowedReplayStore(7, TimeUnit.SECONDS, directory, clock)) {
+        assertThat(journalFiles(directory)).isEqualTo(2);
+        clock.millis = 20000;
+        assertThat(markUsed(store, "c")).isTrue();
+        assertThat(journalFiles(directory)).isEqualTo(1);
+      }
+    } finally {
+      deleteAll(directory);
+    }
+  }
+
+  @Test
+  public void a_cut_off_journal_record_is_dropped() throws IOException {
+    Path directory = Files.createTempDirectory("nonces");
+    MutableClock clock = new MutableClock();
+    try {
+      try (TimeWindowedReplayStore store = new TimeWindowedReplayStore(7, TimeUnit.SECONDS, directory, clock)) {
+        markUsed(store, "a");
+      }
+      Path file = directory.resolve("0.nonces");
+      Files.write(file, new byte[]{0, 5, 'b', 'c'}, StandardOpenOption.APPEND);
+
+      try (TimeWindowedReplayStore store = new TimeWindowedReplayStore(7, TimeUnit.SECONDS, directory, clock)) {
+        assertThat(store.size()).isEqualTo(1);
+        assertThat(markUsed(store, "d")).isTrue();
+      }
+      try (TimeWindowedReplayStore store = new TimeWindowedReplayStore(7, TimeUnit.SECONDS, directory, clock)) {
+        assertThat(markUsed(store, "a")).isFalse();
+        assertThat(markUsed(store, "d")).isFalse();
+      }
+    } finally {
+      deleteAll(directory);
+    }
+  }
+
+  private static boolean markUsed(TimeWindowedReplayStore store, String nonce) {
+    byte[] bytes = nonce.getBytes(StandardCharsets.UTF_8);
+    return store.markUsed(bytes, 0, bytes.length);
+  }
+
+  private static long journalFiles(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.count();
+    }
+  }
+
+  private static void deleteAll(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+
+  private static class MutableClock extends Clock {
+    long millis;
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public long millis() {
+      return millis;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(millis);
+    }
+  }
+}
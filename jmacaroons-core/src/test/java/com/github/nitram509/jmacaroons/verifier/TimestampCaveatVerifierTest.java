@@ -19,9 +19,14 @@ package com.github.nitram509.jmacaroons.verifier;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Clock;
+import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalUnit;
@@ -102,6 +107,55 @@ public class TimestampCaveatVerifierTest {
     assertThat(verifier.verifyCaveat("not a < real one")).isFalse();
   }
 
+  @Test
+  public void expiry_is_reported_in_epoch_millis() {
+    TimestampCaveatVerifier utc = new TimestampCaveatVerifier(Clock.systemUTC());
+
+    assertThat(utc.expiresAt("time < 2014-09-23")).isEqualTo(Instant.parse("2014-09-23T00:00:00Z").toEpochMilli());
+    assertThat(utc.expiresAt("time < 2014-09-23T17")).isEqualTo(Instant.parse("2014-09-23T17:00:00Z").toEpochMilli());
+    assertThat(utc.expiresAt("time < 2014-09-23T17:42")).isEqualTo(Instant.parse("2014-09-23T17:42:00Z").toEpochMilli());
+    assertThat(utc.expiresAt("time < 2014-09-23T17:42:35")).isEqualTo(Instant.parse("2014-09-23T17:42:35Z").toEpochMilli());
+    assertThat(utc.expiresAt("time < 2014-09-23T17:42:35.123")).isEqualTo(Instant.parse("2014-09-23T17:42:35.123Z").toEpochMilli());
+    assertThat(utc.expiresAt("time < foobar")).isEqualTo(TimestampCaveatVerifier.NO_TIMESTAMP);
+    assertThat(utc.expiresAt("account = 3735928559")).isEqualTo(TimestampCaveatVerifier.NO_TIMESTAMP);
+  }
+
+  @Test
+  public void time_zones_are_applied() {
+    TimestampCaveatVerifier utc = new TimestampCaveatVerifier(Clock.systemUTC());
+    long expected = Instant.parse("2014-09-23T15:42:35Z").toEpochMilli();
+
+    assertThat(utc.expiresAt("time < 2014-09-23T17:42:35+0200")).isEqualTo(expected);
+    assertThat(utc.expiresAt("time < 2014-09-23T17:42:35+02:00")).isEqualTo(expected);
+    assertThat(utc.expiresAt("time < 2014-09-23T15:42:35Z")).isEqualTo(expected);
+    assertThat(utc.expiresAt("time < 2014-09-23T13:12:35-0230")).isEqualTo(expected);
+    assertThat(new TimestampCaveatVerifier(Clock.system(ZoneId.of("Europe/Berlin"))).expiresAt("time < 2014-09-23T17:42:35")).isEqualTo(expected);
+  }
+
+  @Test
+  public void fields_overflow_like_a_lenient_calendar() {
+    TimestampCaveatVerifier utc = new TimestampCaveatVerifier(Clock.systemUTC());
+
+    assertThat(utc.expiresAt("time < 2014-13-40T25:61:61")).isEqualTo(Instant.parse("2015-02-10T02:02:01Z").toEpochMilli());
+    assertThat(utc.expiresAt("time < 2014-00-00")).isEqualTo(Instant.parse("2013-11-30T00:00:00Z").toEpochMilli());
+    assertThat(utc.expiresAt("time < 2014-9-3T1:2:3")).isEqualTo(Instant.parse("2014-09-03T01:02:03Z").toEpochMilli());
+  }
+
+  @Test
+  public void the_clock_is_compared_in_milliseconds() {
+    Instant expiry = Instant.parse("2014-09-23T17:42:35.500Z");
+    String caveat = "time < 2014-09-23T17:42:35.500Z";
+    byte[] bytes = ("xx" + caveat).getBytes(StandardCharsets.US_ASCII);
+
+    TimestampCaveatVerifier before = new TimestampCaveatVerifier(Clock.fixed(expiry.minusMillis(1), ZoneOffset.UTC));
+    TimestampCaveatVerifier at = new TimestampCaveatVerifier(Clock.fixed(expiry, ZoneOffset.UTC));
+
+    assertThat(before.verifyCaveat(caveat)).isTrue();
+    assertThat(before.verifyCaveat(bytes, 2, caveat.length())).isTrue();
+    assertThat(at.verifyCaveat(caveat)).isFalse();
+    assertThat(at.verifyCaveat(bytes, 2, caveat.length())).isFalse();
+  }
+
   private String createTimeStamp1DayInFuture(DateFormat dateFormat) {
     return dateFormat.format(new Date(System.currentTimeMillis() + (1000 * 60 * 60 * 24)));
   }